@@ -28,7 +28,7 @@ public class BenchmarkCSV {
                 new Composition(new BinaryPacking(), new VariableByte()) };
         static ByteIntegerCODEC regbcodecs[] = { new VariableByte() };
 
-        private static ArrayList<int[]> loadIntegers(final String filename, final Format f)
+        static ArrayList<int[]> loadIntegers(final String filename, final Format f)
                 throws IOException {
                 int misparsed = 0;
                 if (f == Format.ONEARRAYPERLINE) {
@@ -115,7 +115,7 @@ public class BenchmarkCSV {
                 }
         }
 
-        private enum Format {
+        enum Format {
                 ONEARRAYPERLINE, ONEARRAYPERFILE, ONEINTPERLINE
         }
 
@@ -0,0 +1,543 @@
+/**
+ * This code is released under the
+ * Apache License Version 2.0 http://www.apache.org/licenses/.
+ *
+ * (c) Daniel Lemire, http://lemire.me/en/
+ */
+package me.lemire.integercompression.benchmarktools;
+
+import com.kamikaze.pfordelta.LCPForDelta;
+import com.kamikaze.pfordelta.PForDelta;
+
+import me.lemire.integercompression.BinaryPacking;
+import me.lemire.integercompression.Composition;
+import me.lemire.integercompression.DeltaZigzagBinaryPacking;
+import me.lemire.integercompression.DeltaZigzagVariableByte;
+import me.lemire.integercompression.FastPFOR;
+import me.lemire.integercompression.FastPFOR128;
+import me.lemire.integercompression.IntWrapper;
+import me.lemire.integercompression.IntegerCODEC;
+import me.lemire.integercompression.JustCopy;
+import me.lemire.integercompression.NewPFD;
+import me.lemire.integercompression.NewPFDS16;
+import me.lemire.integercompression.NewPFDS9;
+import me.lemire.integercompression.OptPFD;
+import me.lemire.integercompression.OptPFDS16;
+import me.lemire.integercompression.OptPFDS9;
+import me.lemire.integercompression.Simple16;
+import me.lemire.integercompression.Simple9;
+import me.lemire.integercompression.Util;
+import me.lemire.integercompression.VariableByte;
+import me.lemire.integercompression.differential.Delta;
+import me.lemire.integercompression.differential.IntegratedBinaryPacking;
+import me.lemire.integercompression.differential.IntegratedComposition;
+import me.lemire.integercompression.differential.IntegratedIntegerCODEC;
+import me.lemire.integercompression.differential.IntegratedVariableByte;
+import me.lemire.integercompression.differential.XorBinaryPacking;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Runs every bundled codec over posting lists exported from a real index
+ * (see search.index.PostingsExport) rather than synthetic data. The docid
+ * lists are compressed as differences, the offset lists as they are.
+ * Results are reported per bucket of list lengths, since short lists
+ * favour different schemes from long ones, and written as CSV.
+ *
+ * @author desmond
+ *
+ */
+public class BenchmarkPostings {
+
+        /**
+         * The smallest list length in each bucket.
+         */
+        static final int[] BUCKETS = { 1, 8, 128, 1024, 16384 };
+
+        /**
+         * The exported files and whether they hold sorted lists.
+         */
+        static final String[] FILES = { "docids.csv", "offsets.csv",
+                "offset-gaps.csv" };
+        static final boolean[] SORTED = { true, false, false };
+
+        /**
+         * A Kamikaze block codec applied to blocks of 128 integers, each
+         * preceded by its compressed length, since the blocks don't say
+         * how long they are.
+         */
+        static abstract class KamikazeBlocks implements IntegerCODEC {
+                static final int BLOCK_SIZE = 128;
+
+                final int[] block = new int[BLOCK_SIZE];
+
+                /**
+                 * Compress a block.
+                 *
+                 * @param in
+                 *                the block
+                 * @return the compressed block
+                 */
+                abstract int[] compressBlock(int[] in);
+
+                /**
+                 * Uncompress a block.
+                 *
+                 * @param out
+                 *                where to put the block
+                 * @param in
+                 *                the compressed block
+                 */
+                abstract void uncompressBlock(int[] out, int[] in);
+
+                @Override
+                public void compress(int[] in, IntWrapper inpos,
+                        int inlength, int[] out, IntWrapper outpos) {
+                        inlength = Util.greatestMultiple(inlength, BLOCK_SIZE);
+                        if (inlength == 0)
+                                return;
+                        int op = outpos.get();
+                        out[op++] = inlength;
+                        int ip = inpos.get();
+                        for (int k = 0; k < inlength; k += BLOCK_SIZE) {
+                                System.arraycopy(in, ip + k, block, 0,
+                                        BLOCK_SIZE);
+                                int[] comp = compressBlock(block);
+                                out[op++] = comp.length;
+                                System.arraycopy(comp, 0, out, op,
+                                        comp.length);
+                                op += comp.length;
+                        }
+                        inpos.add(inlength);
+                        outpos.set(op);
+                }
+
+                @Override
+                public void uncompress(int[] in, IntWrapper inpos,
+                        int inlength, int[] out, IntWrapper outpos) {
+                        if (inlength == 0)
+                                return;
+                        int ip = inpos.get();
+                        int outlength = in[ip++];
+                        int op = outpos.get();
+                        for (int k = 0; k < outlength; k += BLOCK_SIZE) {
+                                int size = in[ip++];
+                                uncompressBlock(block, Arrays.copyOfRange(in,
+                                        ip, ip + size));
+                                System.arraycopy(block, 0, out, op,
+                                        BLOCK_SIZE);
+                                ip += size;
+                                op += BLOCK_SIZE;
+                        }
+                        inpos.set(ip);
+                        outpos.set(op);
+                }
+        }
+
+        /**
+         * Kamikaze's PForDelta with the best bit width for each block.
+         */
+        static class KamikazePForDelta extends KamikazeBlocks {
+                @Override
+                int[] compressBlock(int[] in) {
+                        return PForDelta.compressOneBlockOpt(in, BLOCK_SIZE);
+                }
+
+                @Override
+                void uncompressBlock(int[] out, int[] in) {
+                        PForDelta.decompressOneBlock(out, in, BLOCK_SIZE);
+                }
+
+                @Override
+                public String toString() {
+                        return "Kamikaze's PForDelta";
+                }
+        }
+
+        /**
+         * Kamikaze's LCPForDelta.
+         */
+        static class KamikazeLCP extends KamikazeBlocks {
+                private static class Compressor extends LCPForDelta {
+                        int[] buffer() {
+                                return getCompBuffer();
+                        }
+                }
+
+                private final Compressor lcp = new Compressor();
+
+                @Override
+                int[] compressBlock(int[] in) {
+                        int size = lcp.compress(in, BLOCK_SIZE);
+                        return Arrays.copyOf(lcp.buffer(), size);
+                }
+
+                @Override
+                void uncompressBlock(int[] out, int[] in) {
+                        LCPForDelta.decompressOneBlock(out, in, BLOCK_SIZE);
+                }
+
+                @Override
+                public String toString() {
+                        return "Kamikaze's LCPForDelta";
+                }
+        }
+
+        /**
+         * Kamikaze's own Simple16, which packs as many integers as fit in
+         * each word.
+         */
+        static class KamikazeSimple16 implements IntegerCODEC {
+                @Override
+                public void compress(int[] in, IntWrapper inpos,
+                        int inlength, int[] out, IntWrapper outpos) {
+                        if (inlength == 0)
+                                return;
+                        int op = outpos.get();
+                        out[op++] = inlength;
+                        int ip = inpos.get();
+                        int end = ip + inlength;
+                        while (ip < end) {
+                                int n = com.kamikaze.pfordelta.Simple16
+                                        .s16Compress(out, op, in, ip,
+                                                end - ip, 0);
+                                if (n < 0)
+                                        throw new RuntimeException(
+                                                "Kamikaze's Simple16 can't encode "
+                                                        + in[ip]);
+                                ip += n;
+                                op++;
+                        }
+                        inpos.set(ip);
+                        outpos.set(op);
+                }
+
+                @Override
+                public void uncompress(int[] in, IntWrapper inpos,
+                        int inlength, int[] out, IntWrapper outpos) {
+                        if (inlength == 0)
+                                return;
+                        int ip = inpos.get();
+                        int outlength = in[ip++];
+                        int op = outpos.get();
+                        int end = op + outlength;
+                        while (op < end) {
+                                op += com.kamikaze.pfordelta.Simple16
+                                        .s16Decompress(out, op, in, ip++,
+                                                end - op);
+                        }
+                        inpos.set(ip);
+                        outpos.set(op);
+                }
+
+                @Override
+                public String toString() {
+                        return "Kamikaze's Simple16";
+                }
+        }
+
+        /**
+         * The codecs to try on lists of either kind.
+         *
+         * @return new instances of the codecs
+         */
+        static ArrayList<IntegerCODEC> codecs() {
+                ArrayList<IntegerCODEC> list = new ArrayList<IntegerCODEC>();
+                list.add(new JustCopy());
+                list.add(new VariableByte());
+                list.add(new Composition(new BinaryPacking(),
+                        new VariableByte()));
+                list.add(new Composition(new FastPFOR(), new VariableByte()));
+                list.add(new Composition(new FastPFOR128(), new VariableByte()));
+                list.add(new Composition(new NewPFD(), new VariableByte()));
+                list.add(new Composition(new NewPFDS9(), new VariableByte()));
+                list.add(new Composition(new NewPFDS16(), new VariableByte()));
+                list.add(new Composition(new OptPFD(), new VariableByte()));
+                list.add(new Composition(new OptPFDS9(), new VariableByte()));
+                list.add(new Composition(new OptPFDS16(), new VariableByte()));
+                list.add(new Simple9());
+                list.add(new Simple16());
+                list.add(new Composition(new KamikazePForDelta(),
+                        new VariableByte()));
+                list.add(new Composition(new KamikazeLCP(),
+                        new VariableByte()));
+                list.add(new KamikazeSimple16());
+                return list;
+        }
+
+        /**
+         * The codecs that only make sense on sorted lists, which they
+         * difference themselves.
+         *
+         * @return new instances of the codecs
+         */
+        static ArrayList<IntegerCODEC> sortedCodecs() {
+                ArrayList<IntegerCODEC> list = new ArrayList<IntegerCODEC>();
+                list.add(new IntegratedComposition(
+                        new IntegratedBinaryPacking(),
+                        new IntegratedVariableByte()));
+                list.add(new IntegratedVariableByte());
+                list.add(new IntegratedComposition(new XorBinaryPacking(),
+                        new IntegratedVariableByte()));
+                return list;
+        }
+
+        /**
+         * The codecs that difference unsorted lists themselves.
+         *
+         * @return new instances of the codecs
+         */
+        static ArrayList<IntegerCODEC> unsortedCodecs() {
+                ArrayList<IntegerCODEC> list = new ArrayList<IntegerCODEC>();
+                list.add(new Composition(new DeltaZigzagBinaryPacking(),
+                        new VariableByte()));
+                list.add(new DeltaZigzagVariableByte());
+                return list;
+        }
+
+        /**
+         * Does a codec take the sorted lists whole rather than their
+         * differences?
+         *
+         * @param c
+         *                the codec
+         * @return true if it differences the lists itself
+         */
+        private static boolean selfDifferencing(IntegerCODEC c) {
+                return c instanceof IntegratedIntegerCODEC;
+        }
+
+        /**
+         * Compress and uncompress a set of lists, checking the result.
+         *
+         * @param c
+         *                the codec
+         * @param data
+         *                the lists
+         * @param delta
+         *                whether to compress the differences of the lists
+         * @param repeat
+         *                how many times to time it
+         * @return the bits per int, and the compression and decompression
+         *         speeds in millions of integers per second
+         */
+        static double[] testCodec(IntegerCODEC c, int[][] data,
+                boolean delta, int repeat) {
+                int totalSize = 0;
+                int maxLength = 0;
+                for (int[] x : data) {
+                        totalSize += x.length;
+                        if (x.length > maxLength)
+                                maxLength = x.length;
+                }
+                int[] compressBuffer = new int[4 * maxLength + 1024];
+                int[] decompressBuffer = new int[maxLength + 1024];
+                long compressTime = 0;
+                long decompressTime = 0;
+                long size = 0;
+                IntWrapper inpos = new IntWrapper();
+                IntWrapper outpos = new IntWrapper();
+                // the first round warms up the JIT and isn't counted
+                for (int r = 0; r <= repeat; ++r) {
+                        size = 0;
+                        long compress = 0;
+                        long decompress = 0;
+                        for (int[] x : data) {
+                                int[] backup = Arrays.copyOf(x, x.length);
+                                long bef = System.nanoTime();
+                                if (delta && !selfDifferencing(c))
+                                        Delta.delta(backup);
+                                inpos.set(0);
+                                outpos.set(0);
+                                c.compress(backup, inpos, backup.length,
+                                        compressBuffer, outpos);
+                                long aft = System.nanoTime();
+                                compress += aft - bef;
+                                int thiscompsize = outpos.get();
+                                size += thiscompsize;
+                                bef = System.nanoTime();
+                                inpos.set(0);
+                                outpos.set(0);
+                                c.uncompress(compressBuffer, inpos,
+                                        thiscompsize, decompressBuffer, outpos);
+                                if (delta && !selfDifferencing(c))
+                                        Delta.fastinverseDelta(
+                                                decompressBuffer, 0,
+                                                outpos.get(), 0);
+                                aft = System.nanoTime();
+                                decompress += aft - bef;
+                                if (outpos.get() != x.length)
+                                        throw new RuntimeException(
+                                                "we have a bug (diff length) "
+                                                        + c + " expected "
+                                                        + x.length + " got "
+                                                        + outpos.get());
+                                for (int m = 0; m < x.length; ++m)
+                                        if (decompressBuffer[m] != x[m])
+                                                throw new RuntimeException(
+                                                        "we have a bug (actual difference) "
+                                                                + c
+                                                                + ", expected "
+                                                                + x[m]
+                                                                + " found "
+                                                                + decompressBuffer[m]
+                                                                + " at " + m);
+                        }
+                        if (r > 0) {
+                                compressTime += compress;
+                                decompressTime += decompress;
+                        }
+                }
+                double bitsPerInt = size * 32.0 / totalSize;
+                // integers per microsecond = millions per second
+                double compressSpeed = totalSize * (double) repeat * 1000.0
+                        / Math.max(1, compressTime);
+                double decompressSpeed = totalSize * (double) repeat
+                        * 1000.0 / Math.max(1, decompressTime);
+                return new double[] { bitsPerInt, compressSpeed,
+                        decompressSpeed };
+        }
+
+        /**
+         * Split lists into buckets by their length.
+         *
+         * @param data
+         *                the lists
+         * @return the lists in each bucket
+         */
+        static int[][][] bucket(ArrayList<int[]> data) {
+                ArrayList<ArrayList<int[]>> buckets = new ArrayList<ArrayList<int[]>>();
+                for (int b = 0; b < BUCKETS.length; ++b)
+                        buckets.add(new ArrayList<int[]>());
+                for (int[] x : data) {
+                        if (x.length == 0)
+                                continue;
+                        int b = BUCKETS.length - 1;
+                        while (x.length < BUCKETS[b])
+                                --b;
+                        buckets.get(b).add(x);
+                }
+                int[][][] answer = new int[BUCKETS.length][][];
+                for (int b = 0; b < BUCKETS.length; ++b)
+                        answer[b] = buckets.get(b).toArray(new int[0][]);
+                return answer;
+        }
+
+        /**
+         * Describe a bucket.
+         *
+         * @param b
+         *                the bucket number
+         * @return the range of lengths it holds
+         */
+        static String bucketName(int b) {
+                if (b + 1 < BUCKETS.length)
+                        return BUCKETS[b] + "-" + (BUCKETS[b + 1] - 1);
+                return BUCKETS[b] + "+";
+        }
+
+        /**
+         * Benchmark every codec over the exported lists of one kind.
+         *
+         * @param csvLog
+         *                Writer for CSV log.
+         * @param name
+         *                the name of the data
+         * @param data
+         *                the lists
+         * @param sorted
+         *                whether the lists are sorted
+         * @param repeat
+         *                how many times to repeat each test
+         */
+        static void test(PrintWriter csvLog, String name,
+                ArrayList<int[]> data, boolean sorted, int repeat) {
+                int[][][] buckets = bucket(data);
+                for (int b = 0; b < buckets.length; ++b) {
+                        if (buckets[b].length == 0)
+                                continue;
+                        long ints = 0;
+                        for (int[] x : buckets[b])
+                                ints += x.length;
+                        System.out.println("# " + name + ", lengths "
+                                + bucketName(b) + ": " + buckets[b].length
+                                + " lists, " + ints + " ints");
+                        System.out.println("# bits per int, compress speed (mis), decompression speed (mis) ");
+                        ArrayList<IntegerCODEC> list = codecs();
+                        list.addAll(sorted ? sortedCodecs() : unsortedCodecs());
+                        for (IntegerCODEC c : list) {
+                                double[] r = testCodec(c, buckets[b], sorted,
+                                        repeat);
+                                System.out.println(String.format(
+                                        "%1$s\t%2$.2f\t%3$.0f\t%4$.0f",
+                                        c.toString(), r[0], r[1], r[2]));
+                                csvLog.format("\"%1$s\",\"%2$s\",\"%3$s\",%4$d,%5$d,%6$.2f,%7$.0f,%8$.0f\n",
+                                        name, c.toString(), bucketName(b),
+                                        buckets[b].length, ints, r[0], r[1],
+                                        r[2]);
+                                csvLog.flush();
+                        }
+                        System.out.println();
+                }
+        }
+
+        /**
+         * Main method.
+         *
+         * @param args
+         *                the directory of exported lists, then optionally
+         *                --repeat N and --csv FILE
+         * @throws IOException
+         *                 when the lists can't be read or the CSV written
+         */
+        public static void main(String[] args) throws IOException {
+                String dir = null;
+                int repeat = 5;
+                String csvName = null;
+                for (int i = 0; i < args.length; ++i) {
+                        if (args[i].equals("--repeat") && i + 1 < args.length)
+                                repeat = Integer.parseInt(args[++i]);
+                        else if (args[i].equals("--csv") && i + 1 < args.length)
+                                csvName = args[++i];
+                        else if (args[i].startsWith("-"))
+                                throw new RuntimeException("I don't understand: "
+                                        + args[i]);
+                        else
+                                dir = args[i];
+                }
+                if (dir == null) {
+                        System.out.println("usage: java "
+                                + BenchmarkPostings.class.getName()
+                                + " <export-dir> [--repeat N] [--csv FILE]");
+                        System.out.println("Export the lists first with search.index.PostingsExport.");
+                        return;
+                }
+                File csvFile = new File(csvName != null ? csvName
+                        : String.format(
+                                "postings-%1$tY%1$tm%1$tdT%1$tH%1$tM%1$tS.csv",
+                                System.currentTimeMillis()));
+                PrintWriter writer = new PrintWriter(csvFile);
+                try {
+                        writer.format("\"Data\",\"Algorithm\",\"Lengths\",\"Lists\",\"Ints\",\"Bits per int\",\"Compress speed (MiS)\",\"Decompress speed (MiS)\"\n");
+                        for (int f = 0; f < FILES.length; ++f) {
+                                File file = new File(dir, FILES[f]);
+                                if (!file.exists()) {
+                                        System.out.println("# no " + file);
+                                        continue;
+                                }
+                                ArrayList<int[]> data = BenchmarkCSV
+                                        .loadIntegers(file.getPath(),
+                                                BenchmarkCSV.Format.ONEARRAYPERLINE);
+                                test(writer, FILES[f], data, SORTED[f], repeat);
+                        }
+                } finally {
+                        writer.close();
+                }
+                System.out.println("Results were written into a CSV file: "
+                        + csvFile.getName());
+        }
+}
@@ -14,6 +14,10 @@ import calliope.core.exception.CalliopeExceptionMessage;
 import java.util.Enumeration;
 import search.handler.*;
 import search.exception.*;
+import search.cache.IndexRegistry;
+import search.index.Index;
+import search.index.MergeScheduler;
+import search.index.BuildScheduler;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
@@ -101,6 +105,29 @@ public class SearchWebApp extends HttpServlet
                         repository = getRepository(value,Repository.MONGO);
                     else if ( param.equals("host") )
                         host = value;
+                    else if ( param.equals("indexRoot") )
+                        JettyServer.indexRoot = value;
+                    else if ( param.equals("indexCache") )
+                        IndexRegistry.setMaxBytes(
+                            getInteger(value,512)*1024L*1024L );
+                    else if ( param.equals("buildThreads") )
+                        Index.buildThreads = getInteger(value,
+                            Index.buildThreads);
+                    else if ( param.equals("buildMemory") )
+                        Index.buildMemory = getInteger(value,
+                            (int)(Index.buildMemory/(1024*1024)))
+                            *1024L*1024L;
+                    else if ( param.equals("buildJobs") )
+                        BuildScheduler.maxJobs = getInteger(value,
+                            BuildScheduler.maxJobs);
+                    else if ( param.equals("mergeInterval") )
+                        MergeScheduler.interval = getInteger(value,
+                            MergeScheduler.interval);
+                    else if ( param.equals("storeChunks") )
+                        Index.storeChunks = Boolean.parseBoolean( value );
+                    else if ( param.equals("chunkSize") )
+                        Index.chunkSize = getInteger(value,
+                            Index.chunkSize/1024)*1024;
                 }
                 Connector.init( repository, user, 
                     password, host, "calliope", dbPort, wsPort, webRoot );
@@ -110,7 +137,9 @@ public class SearchWebApp extends HttpServlet
             SearchHandler handler;
             String service = Utils.first(target);
             if ( service.equals(Service.BUILD)||service.equals(Service.FIND)
-                ||service.equals(Service.VOFFSETS)||service.equals(Service.LIST) )
+                ||service.equals(Service.VOFFSETS)||service.equals(Service.LIST)
+                ||service.equals(Service.UPDATE)
+                ||service.equals(Service.STATUS) )
             {
                 if ( method.equals("GET") )
                     handler = new SearchGetHandler();
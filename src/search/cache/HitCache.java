@@ -30,6 +30,20 @@ import calliope.core.Utils;
  */
 public class HitCache 
 {
+    /**
+     * Get the key of the hits of a query on one generation of an index. 
+     * A new generation gets new keys, so hits found in an older one are 
+     * never served again.
+     * @param projid the project identifier
+     * @param generation the generation of its index that was searched
+     * @param query the query string
+     * @return the key
+     */
+    public static String getKey( String projid, long generation, 
+        String query )
+    {
+        return getKey( projid+"@"+generation+":"+query );
+    }
     public static String getKey( String str )
     {
         try
@@ -0,0 +1,177 @@
+/*
+ * This file is part of Search.
+ *
+ *  Search is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Search is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Search.  If not, see <http://www.gnu.org/licenses/>.
+ *  (c) copyright Desmond Schmidt 2015
+ */
+package search.cache;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import search.exception.SearchException;
+import search.index.Index;
+
+/**
+ * Keep loaded indices resident so that each query doesn't have to fetch
+ * and deserialise the whole index. Indices are shared read-only between
+ * request threads and evicted least-recently-used first once their
+ * estimated size exceeds the budget. The size of an index includes its
+ * mapped segment files, which are outside the heap but become resident
+ * as queries read them.
+ * @author desmond
+ */
+public class IndexRegistry
+{
+    /** maximum estimated bytes of resident indices */
+    static long maxBytes = Runtime.getRuntime().maxMemory()/2;
+    /** loaded indices in access order, least recently used first */
+    private static LinkedHashMap<String,Index> indices
+        = new LinkedHashMap<String,Index>(16,0.75f,true);
+    /** estimated sizes of the loaded indices */
+    private static HashMap<String,Long> sizes = new HashMap<String,Long>();
+    /** locks so only one thread loads a given index, each shared by the 
+     * projects whose ids hash to it so there are never more of them */
+    private static final Object[] locks = new Object[64];
+    static
+    {
+        for ( int i=0;i<locks.length;i++ )
+            locks[i] = new Object();
+    }
+    /** total estimated size of all resident indices */
+    private static long used;
+    /**
+     * Set the memory budget for resident indices
+     * @param bytes the maximum number of bytes to keep loaded
+     */
+    public static synchronized void setMaxBytes( long bytes )
+    {
+        maxBytes = bytes;
+        evict( null );
+    }
+    /**
+     * Get the lock object for a project
+     * @param projid the project identifier
+     * @return an object to synchronise loading on
+     */
+    private static Object lockFor( String projid )
+    {
+        return locks[(projid.hashCode()&0x7FFFFFFF)%locks.length];
+    }
+    /**
+     * Look up a resident index
+     * @param projid the project identifier
+     * @return the index or null if not loaded
+     */
+    private static synchronized Index lookup( String projid )
+    {
+        return indices.get( projid );
+    }
+    /**
+     * Is an index resident?
+     * @param projid the project identifier
+     * @return true if it is loaded
+     */
+    public static synchronized boolean isResident( String projid )
+    {
+        return indices.containsKey( projid );
+    }
+    /**
+     * Get the estimated size of the resident indices
+     * @return the total in bytes
+     */
+    public static synchronized long residentBytes()
+    {
+        return used;
+    }
+    /**
+     * Get an index, loading it from the database if it isn't resident
+     * @param projid the project identifier
+     * @return the loaded index, which must be treated as read-only
+     * @throws SearchException
+     */
+    public static Index get( String projid ) throws SearchException
+    {
+        Index ind = lookup( projid );
+        if ( ind == null )
+        {
+            synchronized ( lockFor(projid) )
+            {
+                // another thread may have loaded it while we waited
+                ind = lookup( projid );
+                if ( ind == null )
+                {
+                    ind = Index.load( projid );
+                    put( projid, ind );
+                }
+            }
+        }
+        return ind;
+    }
+    /**
+     * Make an index resident, replacing any previous version
+     * @param projid the project identifier
+     * @param ind the index to keep
+     */
+    public static synchronized void put( String projid, Index ind )
+    {
+        remove( projid );
+        long size = ind.memorySize();
+        indices.put( projid, ind );
+        sizes.put( projid, size );
+        used += size;
+        evict( projid );
+    }
+    /**
+     * Forget a resident index, e.g. because a new version was saved
+     * @param projid the project identifier
+     */
+    public static synchronized void invalidate( String projid )
+    {
+        remove( projid );
+    }
+    /**
+     * Remove an index and its size from the registry
+     * @param projid the project identifier
+     */
+    private static void remove( String projid )
+    {
+        if ( indices.remove(projid) != null )
+        {
+            Long size = sizes.remove( projid );
+            if ( size != null )
+                used -= size;
+        }
+    }
+    /**
+     * Drop least recently used indices until we are within budget
+     * @param keep the project to keep even if it alone exceeds the budget
+     */
+    private static void evict( String keep )
+    {
+        Iterator<Map.Entry<String,Index>> iter = indices.entrySet().iterator();
+        while ( used > maxBytes && iter.hasNext() )
+        {
+            String key = iter.next().getKey();
+            if ( keep == null || !key.equals(keep) )
+            {
+                iter.remove();
+                Long size = sizes.remove( key );
+                if ( size != null )
+                    used -= size;
+            }
+        }
+    }
+}
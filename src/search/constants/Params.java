@@ -26,7 +26,9 @@ public class Params {
     public final static String LANGUAGE = "language";
     public final static String START = "start";
     public final static String DOCID = "docid";
+    public final static String DOCIDS = "docids";
     public final static String SELECTIONS = "selections";
     public final static String VERSION1 = "version1";
     public final static String FIRSTHIT = "firsthit";
+    public final static String JOBID = "jobid";
 }
@@ -29,4 +29,6 @@ public class Service {
  public static final String FIND = "find";
  public static final String VOFFSETS = "voffsets";
  public static final String LIST = "list";
+ public static final String UPDATE = "update";
+ public static final String STATUS = "status";
 }
@@ -19,6 +19,7 @@
 package search.handler;
 
 import search.cache.HitCache;
+import search.cache.IndexRegistry;
 import calliope.core.Utils;
 import calliope.core.constants.Database;
 import calliope.core.constants.JSONKeys;
@@ -34,9 +35,11 @@ import search.index.Match;
 import search.format.Formatter;
 import mvd.cache.MVDCache;
 import search.index.Progress;
+import search.index.BuildScheduler;
 import edu.luc.nmerge.mvd.MVD;
 import java.util.ArrayList;
 import java.util.BitSet;
+import java.util.HashSet;
 import org.json.simple.*;
 import mvd.cache.CacheEntry;
 import search.index.LiteralQuery;
@@ -146,15 +149,58 @@ public class SearchGetHandler extends SearchHandler
         {
             String first = Utils.first(urn);
             String projid = request.getParameter(Params.DOCID);
-            if ( !first.equals(Service.LIST) && (projid == null || projid.length()==0) )
+            if ( !first.equals(Service.LIST) && !first.equals(Service.STATUS)
+                && (projid == null || projid.length()==0) )
                 throw new Exception("Missing project id for search");
             else if ( first.equals(Service.BUILD) )
+            {
+                BuildScheduler.Job job = BuildScheduler.submit( projid );
+                response.setContentType("application/json");
+                response.getWriter().println( 
+                    BuildScheduler.status(job.getId()).toJSONString() );
+            }
+            else if ( first.equals(Service.STATUS) )
+            {
+                String jobid = request.getParameter(Params.JOBID);
+                String json;
+                if ( jobid != null && jobid.length()>0 )
+                {
+                    JSONObject jObj = BuildScheduler.status( jobid );
+                    if ( jObj == null )
+                        throw new Exception("Unknown build job "+jobid);
+                    json = jObj.toJSONString();
+                }
+                else if ( projid != null && projid.length()>0 )
+                {
+                    JSONObject jObj = BuildScheduler.latest( projid );
+                    if ( jObj == null )
+                        throw new Exception("No build job for "+projid);
+                    json = jObj.toJSONString();
+                }
+                else
+                {
+                    JSONArray jArr = new JSONArray();
+                    jArr.addAll( BuildScheduler.statusAll() );
+                    json = jArr.toJSONString();
+                }
+                response.setContentType("application/json");
+                response.getWriter().println( json );
+            }
+            else if ( first.equals(Service.UPDATE) )
             {
                 response.setContentType("text/plain");
-                Index ind = new Index(projid);
+                String docids = request.getParameter(Params.DOCIDS);
+                if ( docids == null || docids.length()==0 )
+                    throw new Exception("Missing docids to update");
+                ArrayList<String> list = new ArrayList<String>();
+                String[] parts = docids.split(",");
+                for ( int i=0;i<parts.length;i++ )
+                    if ( parts[i].trim().length()>0 )
+                        list.add( parts[i].trim() );
+                String[] arr = new String[list.size()];
+                list.toArray( arr );
                 Progress pg = new Progress(response.getWriter());
-                ind.build(pg);
-                ind.save();
+                Index ind = BuildScheduler.update( projid, arr, pg );
                 response.getWriter().flush();
                 String log = ind.getLog();
                 System.out.println(log);
@@ -168,7 +214,9 @@ public class SearchGetHandler extends SearchHandler
                 String queryStr = request.getParameter(Params.QUERY);
                 if ( queryStr != null && queryStr.length()>0 )
                 {
-                    String key = HitCache.getKey(projid+queryStr); 
+                    Index ind = IndexRegistry.get(projid);
+                    String key = HitCache.getKey( projid, 
+                        ind.getGeneration(), queryStr ); 
                     String hits;
                     if ( HitCache.exists(key) )
                     {
@@ -176,21 +224,26 @@ public class SearchGetHandler extends SearchHandler
                     }
                     else
                     {
-                        Index ind = Index.load(projid);
                         String lang = search.index.Utils.languageFromProjid(projid);
                         Query q = Query.parse(queryStr,lang);
                         Match[] matches = ind.find( q );
                         if ( q instanceof LiteralQuery )
                         {
+                            // the index has already checked the phrase: 
+                            // only find the versions it occurs in, unless 
+                            // the document has no variants
                             ArrayList<Match> mList = new ArrayList<Match>();
+                            HashSet<Match> seen = new HashSet<Match>();
                             LiteralQuery lq = (LiteralQuery)q;
                             for ( int i=0;i<matches.length;i++ )
                             {
                                 Match m = matches[i];
-                                if ( m.canBeLiteral() )
+                                int v = m.getFirstVersion();
+                                if ( v == 0 )
                                 {
-                                    CacheEntry ce = MVDCache.load( Database.CORTEX, 
-                                        ind.getDocid(m.docId) );
+                                    String docid = ind.getDocid( m.docId );
+                                    CacheEntry ce = MVDCache.load( 
+                                        Database.CORTEX, docid );
                                     String firstTerm = m.firstTerm();
                                     BitSet bs;
                                     if ( ce.mvd != null )
@@ -202,13 +255,13 @@ public class SearchGetHandler extends SearchHandler
                                         bs = new BitSet();
                                         bs.set(1);
                                     }
-                                    int v = bs.nextSetBit(0);
-                                    if ( v > 0 )
-                                    {
-                                        m.setFirstVersion(v);
-                                        if ( !mList.contains(m) )
-                                            mList.add( m );
-                                    }
+                                    v = bs.nextSetBit(0);
+                                }
+                                if ( v > 0 )
+                                {
+                                    m.setFirstVersion(v);
+                                    if ( seen.add(m) )
+                                        mList.add( m );
                                 }
                             }
                             Match[] mArray = new Match[mList.size()];
@@ -0,0 +1,360 @@
+/*
+ * This file is part of Search.
+ *
+ *  Search is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Search is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Search.  If not, see <http://www.gnu.org/licenses/>.
+ *  (c) copyright Desmond Schmidt 2015
+ */
+package search.index;
+import calliope.core.constants.Database;
+import calliope.core.constants.Formats;
+import calliope.core.constants.JSONKeys;
+import calliope.core.database.Connection;
+import edu.luc.nmerge.mvd.MVD;
+import edu.luc.nmerge.mvd.MVDFile;
+import edu.luc.nmerge.mvd.Pair;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.Random;
+import org.json.simple.JSONObject;
+import search.exception.SearchException;
+import search.source.MemoryDocumentSource;
+/**
+ * A generated corpus of MVDs for benchmarks. Each document is a run of
+ * words drawn from a Zipfian vocabulary, shared by all its versions
+ * except at variant sites, where the versions split into groups that
+ * each have their own reading. Into it are planted the probe terms
+ * queries are made of, at known document frequencies: each document
+ * chosen for a frequency class gets the class's probe terms as a phrase
+ * in a few places, in text shared by all versions. The MVDs are built
+ * pair by pair, since the variants are known and need no aligning.
+ * @author desmond
+ */
+public class BenchCorpus
+{
+    /** the names of the term frequency classes */
+    static final String[] FREQ_CLASSES = {"rare","medium","common"};
+    /** the fraction of documents containing each class's probe terms */
+    static final float[] FREQS = {0.01f,0.1f,0.5f};
+    /** suffixes of the probe terms of each class, so at most 8 a query */
+    static final String[] PROBES = {"alpha","bravo","charlie","delta",
+        "echo","foxtrot","golf","hotel"};
+    /** the number of times the probe phrase is planted in a document */
+    static final int PLANTINGS = 3;
+    /** the number of distinct filler words */
+    static final int VOCAB_SIZE = 5000;
+    /** the chance that a word is a variant site if there are versions */
+    static final float VARIANT_RATE = 0.05f;
+    static final String[] SYLLABLES = {"ka","lo","mi","ne","ru","ta","se",
+        "vo","pi","da","ge","hu","zo","fa","be","wi"};
+    String projid;
+    int nDocs;
+    int nVersions;
+    int nWords;
+    Random rand;
+    String[] vocab;
+    /** cumulative Zipfian weights of the vocabulary */
+    double[] weights;
+    String[] docids;
+    MVD[] mvds;
+    /**
+     * Generate a corpus
+     * @param projid the project to put its documents in
+     * @param nDocs the number of documents
+     * @param nVersions the number of versions of each
+     * @param nWords the number of words in each version
+     * @param seed the seed, so the same corpus can be made again
+     * @throws SearchException
+     */
+    public BenchCorpus( String projid, int nDocs, int nVersions, int nWords,
+        long seed ) throws SearchException
+    {
+        this.projid = projid;
+        this.nDocs = nDocs;
+        this.nVersions = nVersions;
+        this.nWords = nWords;
+        this.rand = new Random( seed );
+        makeVocab( Utils.getStopwords(Utils.languageFromProjid(projid)) );
+        generate();
+    }
+    /**
+     * Make up the filler words from syllables, skipping stopwords
+     * @param stopwords the project's stopwords
+     */
+    private void makeVocab( HashSet<String> stopwords )
+    {
+        vocab = new String[VOCAB_SIZE];
+        weights = new double[VOCAB_SIZE];
+        double total = 0.0;
+        for ( int i=0,n=SYLLABLES.length;i<VOCAB_SIZE;n++ )
+        {
+            StringBuilder sb = new StringBuilder();
+            for ( int v=n;v>0;v/=SYLLABLES.length )
+                sb.append( SYLLABLES[v%SYLLABLES.length] );
+            String word = sb.toString();
+            if ( !stopwords.contains(word) )
+            {
+                total += 1.0/(i+1);
+                weights[i] = total;
+                vocab[i++] = word;
+            }
+        }
+        for ( int i=0;i<VOCAB_SIZE;i++ )
+            weights[i] /= total;
+    }
+    /**
+     * Get a probe term
+     * @param freqClass the index of its frequency class
+     * @param i its index in the class's phrase
+     * @return the term
+     */
+    static String probe( int freqClass, int i )
+    {
+        return FREQ_CLASSES[freqClass]+PROBES[i];
+    }
+    /**
+     * Make a query out of probe terms
+     * @param freqClass the index of their frequency class
+     * @param length the number of terms
+     * @param literal true for a phrase query
+     * @return the query string
+     */
+    static String query( int freqClass, int length, boolean literal )
+    {
+        StringBuilder sb = new StringBuilder();
+        for ( int i=0;i<length;i++ )
+        {
+            if ( i > 0 )
+                sb.append( ' ' );
+            sb.append( probe(freqClass,i) );
+        }
+        return (literal)?"\""+sb+"\"":sb.toString();
+    }
+    /**
+     * Look up a frequency class by name
+     * @param name its name
+     * @return its index
+     */
+    static int freqClass( String name )
+    {
+        int index = Arrays.asList(FREQ_CLASSES).indexOf( name );
+        if ( index == -1 )
+            throw new IllegalArgumentException( "unknown term frequency "
+                +name );
+        return index;
+    }
+    /**
+     * Pick a filler word
+     * @return a word, common ones more often
+     */
+    private String word()
+    {
+        int index = Arrays.binarySearch( weights, rand.nextDouble() );
+        if ( index < 0 )
+            index = -index-1;
+        return vocab[Math.min(index,VOCAB_SIZE-1)];
+    }
+    /**
+     * Pick the punctuation after a word
+     * @param i the word's index
+     * @return a space or some punctuation
+     */
+    private String separator( int i )
+    {
+        if ( i%12 == 11 )
+            return "\n";
+        int r = rand.nextInt( 20 );
+        return (r==0)?". ":(r==1)?", ":" ";
+    }
+    /**
+     * Split the versions into two or three nonempty groups
+     * @param all all the versions
+     * @return the groups
+     */
+    private BitSet[] split( BitSet all )
+    {
+        int nGroups = Math.min( nVersions, 2+rand.nextInt(2) );
+        BitSet[] groups = new BitSet[nGroups];
+        for ( int g=0;g<nGroups;g++ )
+            groups[g] = new BitSet();
+        // deal one version to each group, then the rest at random
+        int[] order = new int[nVersions];
+        for ( int v=0;v<nVersions;v++ )
+            order[v] = v+1;
+        for ( int v=nVersions-1;v>0;v-- )
+        {
+            int j = rand.nextInt( v+1 );
+            int tmp = order[v];
+            order[v] = order[j];
+            order[j] = tmp;
+        }
+        for ( int v=0;v<nVersions;v++ )
+            groups[(v<nGroups)?v:rand.nextInt(nGroups)].set( order[v] );
+        return groups;
+    }
+    /**
+     * Add the shared text so far as a pair
+     * @param pairs the MVD's pairs
+     * @param all all the versions
+     * @param shared the text, emptied afterwards
+     */
+    private static void flush( ArrayList<Pair> pairs, BitSet all,
+        StringBuilder shared )
+    {
+        if ( shared.length() > 0 )
+        {
+            char[] data = new char[shared.length()];
+            shared.getChars( 0, data.length, data, 0 );
+            pairs.add( new Pair((BitSet)all.clone(),data) );
+            shared.setLength( 0 );
+        }
+    }
+    /**
+     * Make one document
+     * @param planted the frequency classes planted in it
+     * @return its MVD
+     * @throws Exception
+     */
+    private MVD makeMVD( boolean[] planted ) throws Exception
+    {
+        MVD mvd = new MVD( "benchmark" );
+        mvd.setEncoding( "UTF-8" );
+        for ( int v=1;v<=nVersions;v++ )
+            mvd.newVersion( "v"+v, "Version "+v, "Base", (short)0, false );
+        BitSet all = new BitSet();
+        all.set( 1, nVersions+1 );
+        // where each planted phrase goes
+        int[] sites = new int[FREQ_CLASSES.length*PLANTINGS];
+        Arrays.fill( sites, -1 );
+        for ( int c=0;c<FREQ_CLASSES.length;c++ )
+        {
+            if ( planted[c] )
+            {
+                for ( int k=0;k<PLANTINGS;k++ )
+                    sites[c*PLANTINGS+k] = rand.nextInt( nWords );
+            }
+        }
+        ArrayList<Pair> pairs = mvd.getPairs();
+        StringBuilder shared = new StringBuilder();
+        for ( int i=0;i<nWords;i++ )
+        {
+            for ( int s=0;s<sites.length;s++ )
+            {
+                if ( sites[s] == i )
+                {
+                    int c = s/PLANTINGS;
+                    for ( int k=0;k<PROBES.length;k++ )
+                    {
+                        shared.append( probe(c,k) );
+                        shared.append( ' ' );
+                    }
+                }
+            }
+            String sep = separator( i );
+            if ( nVersions > 1 && rand.nextFloat() < VARIANT_RATE )
+            {
+                flush( pairs, all, shared );
+                BitSet[] groups = split( all );
+                for ( int g=0;g<groups.length;g++ )
+                    pairs.add( new Pair(groups[g],
+                        (word()+sep).toCharArray()) );
+            }
+            else
+            {
+                shared.append( word() );
+                shared.append( sep );
+            }
+        }
+        flush( pairs, all, shared );
+        return mvd;
+    }
+    /**
+     * Make all the documents
+     * @throws SearchException
+     */
+    private void generate() throws SearchException
+    {
+        try
+        {
+            docids = new String[nDocs];
+            mvds = new MVD[nDocs];
+            for ( int d=0;d<nDocs;d++ )
+            {
+                boolean[] planted = new boolean[FREQ_CLASSES.length];
+                for ( int c=0;c<FREQ_CLASSES.length;c++ )
+                    planted[c] = rand.nextFloat() < FREQS[c];
+                // so every class has at least one document
+                if ( d == 0 )
+                    Arrays.fill( planted, true );
+                docids[d] = projid+"/doc"+d;
+                mvds[d] = makeMVD( planted );
+            }
+        }
+        catch ( Exception e )
+        {
+            throw new SearchException( e );
+        }
+    }
+    /**
+     * Store the documents and their titles in the database
+     * @param conn the database connection
+     * @throws SearchException
+     */
+    public void store( Connection conn ) throws SearchException
+    {
+        try
+        {
+            for ( int d=0;d<nDocs;d++ )
+            {
+                JSONObject cortex = new JSONObject();
+                cortex.put( JSONKeys.DOCID, docids[d] );
+                cortex.put( JSONKeys.FORMAT, Formats.MVD_TEXT );
+                cortex.put( JSONKeys.BODY, MVDFile.externalise(mvds[d]) );
+                cortex.put( JSONKeys.VERSION1, "/Base/v1" );
+                conn.putToDb( Database.CORTEX, docids[d],
+                    cortex.toJSONString() );
+                JSONObject md = new JSONObject();
+                md.put( JSONKeys.DOCID, docids[d] );
+                md.put( JSONKeys.TITLE, "Document "+d );
+                conn.putToDb( Database.METADATA, docids[d],
+                    md.toJSONString() );
+            }
+        }
+        catch ( Exception e )
+        {
+            throw new SearchException( e );
+        }
+    }
+    /**
+     * Get the documents for indexing
+     * @return a source of the externalised MVDs
+     * @throws SearchException
+     */
+    public MemoryDocumentSource source() throws SearchException
+    {
+        try
+        {
+            MemoryDocumentSource src = new MemoryDocumentSource();
+            for ( int d=0;d<nDocs;d++ )
+                src.add( docids[d], Formats.MVD_TEXT,
+                    MVDFile.externalise(mvds[d]) );
+            return src;
+        }
+        catch ( Exception e )
+        {
+            throw new SearchException( e );
+        }
+    }
+}
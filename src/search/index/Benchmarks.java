@@ -0,0 +1,613 @@
+/*
+ * This file is part of Search.
+ *
+ *  Search is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Search is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Search.  If not, see <http://www.gnu.org/licenses/>.
+ *  (c) copyright Desmond Schmidt 2015
+ */
+package search.index;
+import calliope.core.database.Connector;
+import edu.luc.nmerge.mvd.MVD;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.regex.Pattern;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.JSONValue;
+import search.JettyServer;
+import search.exception.SearchException;
+import search.format.Formatter;
+import search.source.MemoryConnection;
+/**
+ * Time the hot paths of searching and indexing over generated corpora of
+ * MVDs, held with their titles in a database in memory. For each number
+ * of versions a corpus is generated, indexed and loaded, then each
+ * benchmark is run for a number of timed iterations after some warm-up
+ * ones, and its mean time per call reported with the error at 99.9%
+ * confidence. The results may be written as JSON in the same form as
+ * JMH's, and two such files compared.
+ * @author desmond
+ */
+public class Benchmarks
+{
+    static final String PROJECT_PREFIX = "english/bench-v";
+    static final int[] QUERY_LENGTHS = {1,2,4};
+    static final int[] HIT_COUNTS = {1,10,50};
+    /** Student's t at 99.9% for 1 to 30 degrees of freedom */
+    static final double[] T_999 = {636.62,31.599,12.924,8.610,6.869,5.959,
+        5.408,5.041,4.781,4.587,4.437,4.318,4.221,4.140,4.073,4.015,3.965,
+        3.922,3.883,3.850,3.819,3.792,3.768,3.745,3.725,3.707,3.690,3.674,
+        3.659,3.646};
+    int[] versions = {1,8,64};
+    int nDocs = 200;
+    int nWords = 2000;
+    long seed = 42;
+    int warmups = 2;
+    int iterations = 5;
+    /** milliseconds per iteration */
+    long iterationTime = 500;
+    /** only run benchmarks whose names match this, or all if null */
+    Pattern filter;
+    JSONArray results;
+    /** all results are added to this so the work can't be left out */
+    long sink;
+    /**
+     * One benchmark with its parameters
+     */
+    abstract static class Bench
+    {
+        String name;
+        LinkedHashMap<String,String> params;
+        Bench( String name )
+        {
+            this.name = name;
+            this.params = new LinkedHashMap<String,String>();
+        }
+        /**
+         * Set a parameter, for reporting
+         * @param key its name
+         * @param value its value
+         * @return this benchmark
+         */
+        Bench param( String key, Object value )
+        {
+            params.put( key, value.toString() );
+            return this;
+        }
+        /**
+         * Do the work being timed once
+         * @return something computed from the result
+         * @throws Exception
+         */
+        abstract long run() throws Exception;
+    }
+    /**
+     * A corpus and its index, searched by all benchmarks with the same
+     * number of versions
+     */
+    static class Fixture
+    {
+        int nVersions;
+        String projid;
+        BenchCorpus corpus;
+        Index index;
+        Formatter formatter;
+        HashSet<String> stopwords;
+        /** the corpus's MVDs by docid */
+        HashMap<String,MVD> mvds;
+    }
+    /**
+     * Generate a corpus, store it in the database, then index it
+     * @param nVersions the number of versions of each document
+     * @return the loaded index and its corpus
+     * @throws SearchException
+     */
+    Fixture fixture( int nVersions ) throws SearchException
+    {
+        try
+        {
+            Fixture f = new Fixture();
+            f.nVersions = nVersions;
+            f.projid = PROJECT_PREFIX+nVersions;
+            long start = System.currentTimeMillis();
+            f.corpus = new BenchCorpus( f.projid, nDocs, nVersions, nWords,
+                seed );
+            f.corpus.store( Connector.getConnection() );
+            Index ind = new Index( f.projid );
+            ind.build( f.corpus.source(), new Progress() );
+            ind.save();
+            f.index = Index.load( f.projid );
+            f.formatter = new Formatter( f.index );
+            f.stopwords = Utils.getStopwords( f.index.lang );
+            f.mvds = new HashMap<String,MVD>();
+            for ( int d=0;d<nDocs;d++ )
+                f.mvds.put( f.corpus.docids[d], f.corpus.mvds[d] );
+            System.out.println( "# "+f.projid+": "+nDocs+" documents of "
+                +nVersions+" versions, "+nWords+" words, indexed in "
+                +(System.currentTimeMillis()-start)+"ms" );
+            return f;
+        }
+        catch ( SearchException se )
+        {
+            throw se;
+        }
+        catch ( Exception e )
+        {
+            throw new SearchException( e );
+        }
+    }
+    /**
+     * Search for a query of probe terms
+     * @param f the fixture to search
+     * @param freqClass the frequency class of the terms
+     * @param length the number of terms
+     * @return its matches
+     * @throws SearchException
+     */
+    static Match[] matches( Fixture f, int freqClass, int length )
+        throws SearchException
+    {
+        return f.index.find( Query.parse(BenchCorpus.query(freqClass,length,
+            false),f.index.lang) );
+    }
+    /**
+     * Index.find for each query length, term frequency and query type
+     * @param f the fixture
+     * @param list add the benchmarks to this
+     */
+    void findBenchmarks( final Fixture f, ArrayList<Bench> list )
+    {
+        for ( int len : QUERY_LENGTHS )
+        {
+            for ( int c=0;c<BenchCorpus.FREQ_CLASSES.length;c++ )
+            {
+                for ( int literal=0;literal<=((len>1)?1:0);literal++ )
+                {
+                    final Query q = Query.parse( BenchCorpus.query(c,len,
+                        literal==1), f.index.lang );
+                    list.add( new Bench("find") {
+                        long run() throws Exception
+                        {
+                            return f.index.find( q ).length;
+                        }
+                    }.param("versions",f.nVersions).param("queryLength",len)
+                    .param("termFreq",BenchCorpus.FREQ_CLASSES[c])
+                    .param("type",(literal==1)?"phrase":"and") );
+                }
+            }
+        }
+    }
+    /**
+     * Match scoring, over all the matches of a query
+     * @param f the fixture
+     * @param list add the benchmarks to this
+     * @throws SearchException
+     */
+    void scoreBenchmarks( final Fixture f, ArrayList<Bench> list )
+        throws SearchException
+    {
+        for ( int len : QUERY_LENGTHS )
+        {
+            for ( int c=0;c<BenchCorpus.FREQ_CLASSES.length;c++ )
+            {
+                final Match[] ms = matches( f, c, len );
+                list.add( new Bench("score") {
+                    long run()
+                    {
+                        float total = 0.0f;
+                        for ( int i=0;i<ms.length;i++ )
+                        {
+                            ms[i].scored = false;
+                            total += ms[i].getScore();
+                        }
+                        return (long)total;
+                    }
+                }.param("versions",f.nVersions).param("queryLength",len)
+                .param("termFreq",BenchCorpus.FREQ_CLASSES[c]) );
+            }
+        }
+    }
+    /**
+     * Formatter.matchesToHits and Formatter.getVPositions for each number
+     * of hits of a common two-term query
+     * @param f the fixture
+     * @param list add the benchmarks to this
+     * @throws SearchException
+     */
+    void formatBenchmarks( final Fixture f, ArrayList<Bench> list )
+        throws SearchException
+    {
+        Match[] all = matches( f, BenchCorpus.freqClass("common"), 2 );
+        for ( int nHits : HIT_COUNTS )
+        {
+            final Match[] hits = Arrays.copyOf( all,
+                Math.min(nHits,all.length) );
+            list.add( new Bench("matchesToHits") {
+                long run() throws Exception
+                {
+                    return f.formatter.matchesToHits( hits ).length();
+                }
+            }.param("versions",f.nVersions).param("hits",hits.length) );
+            // the positions of each term as matchToHit gets them
+            final MVD[] mvds = new MVD[hits.length];
+            final int[] firstVersions = new int[hits.length];
+            final int[][][] positions = new int[hits.length][][];
+            for ( int i=0;i<hits.length;i++ )
+            {
+                mvds[i] = f.mvds.get( f.index.getDocid(hits[i].docId) );
+                firstVersions[i] = hits[i].getVersions(mvds[i]).nextSetBit(0);
+                positions[i] = new int[hits[i].numTerms()][];
+                for ( int j=0;j<positions[i].length;j++ )
+                    positions[i][j] = hits[i].getTermPositions( j ).clone();
+            }
+            list.add( new Bench("getVPositions") {
+                long run()
+                {
+                    long n = 0;
+                    for ( int i=0;i<positions.length;i++ )
+                        for ( int j=0;j<positions[i].length;j++ )
+                            n += Formatter.getVPositions( positions[i][j],
+                                mvds[i], firstVersions[i] ).length;
+                    return n;
+                }
+            }.param("versions",f.nVersions).param("hits",hits.length) );
+        }
+    }
+    /**
+     * WordFinder.find over each document in turn, as when indexing
+     * @param f the fixture
+     * @param list add the benchmarks to this
+     */
+    void wordFinderBenchmarks( final Fixture f, ArrayList<Bench> list )
+    {
+        final BitSet bs = new BitSet();
+        bs.set( 1, f.nVersions+1 );
+        list.add( new Bench("wordFinder") {
+            int next;
+            long run() throws Exception
+            {
+                MVD mvd = f.corpus.mvds[next];
+                next = (next+1)%f.corpus.mvds.length;
+                TermTable table = new TermTable(
+                    new HashMap<String,Locations>(), f.stopwords );
+                WordFinder wf = new WordFinder( mvd.getPairs(), table,
+                    f.index.lang, f.projid, 0 );
+                return wf.find( bs );
+            }
+        }.param("versions",f.nVersions) );
+    }
+    /**
+     * Locations.save and Locations.load for a term of each frequency
+     * @param f the fixture
+     * @param list add the benchmarks to this
+     * @throws SearchException
+     */
+    void locationsBenchmarks( final Fixture f, ArrayList<Bench> list )
+        throws SearchException
+    {
+        for ( int c=0;c<BenchCorpus.FREQ_CLASSES.length;c++ )
+        {
+            Locations[] parts = f.index.getLocations( BenchCorpus.probe(c,0) );
+            if ( parts == null )
+                continue;
+            final Locations locs = parts[0];
+            final String saved = locs.save();
+            list.add( new Bench("locationsSave") {
+                long run() throws Exception
+                {
+                    return locs.save().length();
+                }
+            }.param("versions",f.nVersions)
+            .param("termFreq",BenchCorpus.FREQ_CLASSES[c]) );
+            list.add( new Bench("locationsLoad") {
+                long run() throws Exception
+                {
+                    return Locations.load( saved ).size();
+                }
+            }.param("versions",f.nVersions)
+            .param("termFreq",BenchCorpus.FREQ_CLASSES[c]) );
+        }
+    }
+    /**
+     * Call a benchmark repeatedly for one iteration
+     * @param b the benchmark
+     * @return the mean microseconds per call
+     * @throws Exception
+     */
+    double iteration( Bench b ) throws Exception
+    {
+        long start = System.nanoTime();
+        long deadline = start+iterationTime*1000000L;
+        long ops = 0;
+        long now;
+        do
+        {
+            sink += b.run();
+            ops++;
+            now = System.nanoTime();
+        }
+        while ( now < deadline );
+        return (now-start)/1000.0/ops;
+    }
+    /**
+     * Run a benchmark and record its result
+     * @param b the benchmark
+     * @throws Exception
+     */
+    void measure( Bench b ) throws Exception
+    {
+        System.gc();
+        for ( int i=0;i<warmups;i++ )
+            iteration( b );
+        JSONArray raw = new JSONArray();
+        double sum = 0.0;
+        double[] samples = new double[iterations];
+        for ( int i=0;i<iterations;i++ )
+        {
+            samples[i] = iteration( b );
+            sum += samples[i];
+            raw.add( samples[i] );
+        }
+        double mean = sum/iterations;
+        double error = Double.NaN;
+        if ( iterations > 1 )
+        {
+            double ss = 0.0;
+            for ( int i=0;i<iterations;i++ )
+                ss += (samples[i]-mean)*(samples[i]-mean);
+            double sd = Math.sqrt( ss/(iterations-1) );
+            // beyond 30 degrees of freedom the normal distribution will do
+            double t = (iterations-1<=T_999.length)?T_999[iterations-2]
+                :3.291;
+            error = t*sd/Math.sqrt( iterations );
+        }
+        JSONObject params = new JSONObject();
+        params.putAll( b.params );
+        JSONArray rawData = new JSONArray();
+        rawData.add( raw );
+        JSONObject metric = new JSONObject();
+        metric.put( "score", mean );
+        metric.put( "scoreError", Double.isNaN(error)?"NaN":error );
+        metric.put( "scoreUnit", "us/op" );
+        metric.put( "rawData", rawData );
+        JSONObject res = new JSONObject();
+        res.put( "benchmark", Benchmarks.class.getName()+"."+b.name );
+        res.put( "mode", "avgt" );
+        res.put( "threads", 1 );
+        res.put( "warmupIterations", warmups );
+        res.put( "warmupTime", iterationTime+" ms" );
+        res.put( "measurementIterations", iterations );
+        res.put( "measurementTime", iterationTime+" ms" );
+        res.put( "params", params );
+        res.put( "primaryMetric", metric );
+        results.add( res );
+        System.out.println( String.format("%-14s %-56s %12.3f +- %10.3f "
+            +"us/op",b.name,b.params.toString(),mean,error) );
+    }
+    /**
+     * Run all the benchmarks
+     * @return the results in JMH's JSON form
+     * @throws Exception
+     */
+    JSONArray run() throws Exception
+    {
+        results = new JSONArray();
+        for ( int v : versions )
+        {
+            Fixture f = fixture( v );
+            ArrayList<Bench> list = new ArrayList<Bench>();
+            findBenchmarks( f, list );
+            scoreBenchmarks( f, list );
+            formatBenchmarks( f, list );
+            wordFinderBenchmarks( f, list );
+            locationsBenchmarks( f, list );
+            for ( Bench b : list )
+            {
+                if ( filter == null || filter.matcher(b.name).matches() )
+                    measure( b );
+            }
+        }
+        System.out.println( "# checksum "+sink );
+        return results;
+    }
+    /**
+     * Make a key for a result from its benchmark and parameters
+     * @param res the result
+     * @return the key
+     */
+    static String resultKey( JSONObject res )
+    {
+        String name = (String)res.get( "benchmark" );
+        name = name.substring( name.lastIndexOf('.')+1 );
+        Object params = res.get( "params" );
+        if ( params == null )
+            return name;
+        else
+            return name+" "+new TreeMap<Object,Object>( (Map)params );
+    }
+    /**
+     * Get the score and error of a result
+     * @param res the result
+     * @return its score and its error or 0 if unknown
+     */
+    static double[] score( JSONObject res )
+    {
+        JSONObject metric = (JSONObject)res.get( "primaryMetric" );
+        double score = ((Number)metric.get("score")).doubleValue();
+        Object error = metric.get( "scoreError" );
+        return new double[]{score,(error instanceof Number)
+            ?((Number)error).doubleValue():0.0};
+    }
+    /**
+     * Compare the results of two runs, e.g. before and after a change.
+     * Changes bigger than the two errors put together are starred.
+     * @param before the earlier results
+     * @param after the later results
+     */
+    static void compare( JSONArray before, JSONArray after )
+    {
+        LinkedHashMap<String,JSONObject> old
+            = new LinkedHashMap<String,JSONObject>();
+        for ( int i=0;i<before.size();i++ )
+        {
+            JSONObject res = (JSONObject)before.get( i );
+            old.put( resultKey(res), res );
+        }
+        System.out.println( String.format("%-64s %12s %12s %8s","Benchmark",
+            "Before","After","Change") );
+        for ( int i=0;i<after.size();i++ )
+        {
+            JSONObject res = (JSONObject)after.get( i );
+            String key = resultKey( res );
+            double[] a = score( res );
+            JSONObject prev = old.remove( key );
+            if ( prev == null )
+                System.out.println( String.format("%-64s %12s %12.3f",key,
+                    "-",a[0]) );
+            else
+            {
+                double[] b = score( prev );
+                double change = (a[0]-b[0])*100.0/b[0];
+                boolean significant = Math.abs(a[0]-b[0]) > a[1]+b[1];
+                System.out.println( String.format("%-64s %12.3f %12.3f "
+                    +"%+7.1f%%%s",key,b[0],a[0],change,
+                    (significant)?" *":"") );
+            }
+        }
+        for ( Map.Entry<String,JSONObject> e : old.entrySet() )
+            System.out.println( String.format("%-64s %12.3f %12s",e.getKey(),
+                score(e.getValue())[0],"-") );
+    }
+    /**
+     * Read a JSON results file
+     * @param name its name
+     * @return the results
+     * @throws Exception
+     */
+    static JSONArray readResults( String name ) throws Exception
+    {
+        FileReader fr = new FileReader( name );
+        try
+        {
+            return (JSONArray)JSONValue.parse( fr );
+        }
+        finally
+        {
+            fr.close();
+        }
+    }
+    /**
+     * Parse a comma-separated list of ints
+     * @param list the list
+     * @return the ints
+     */
+    static int[] parseInts( String list )
+    {
+        String[] parts = list.split( "," );
+        int[] arr = new int[parts.length];
+        for ( int i=0;i<parts.length;i++ )
+            arr[i] = Integer.parseInt( parts[i].trim() );
+        return arr;
+    }
+    static void usage()
+    {
+        System.out.println( "usage: java search.index.Benchmarks "
+            +"[-i indexRoot] [--docs N] [--words N]\n"
+            +"    [--versions 1,8,64] [--warmup N] [--iterations N] "
+            +"[--time ms] [--bench regex]\n"
+            +"    [--seed N] [--json results.json]\n"
+            +"   or: java search.index.Benchmarks --compare before.json "
+            +"after.json" );
+    }
+    /**
+     * Run the benchmarks or compare two sets of results
+     * @param args the command line arguments
+     */
+    public static void main( String[] args )
+    {
+        try
+        {
+            Benchmarks bm = new Benchmarks();
+            String json = null;
+            String root = new File( System.getProperty("java.io.tmpdir"),
+                "search-bench" ).getPath();
+            for ( int i=0;i<args.length;i++ )
+            {
+                if ( args[i].equals("--compare") && i+2 < args.length )
+                {
+                    compare( readResults(args[i+1]), readResults(args[i+2]) );
+                    return;
+                }
+                else if ( i+1 == args.length )
+                {
+                    usage();
+                    return;
+                }
+                else if ( args[i].equals("-i") )
+                    root = args[++i];
+                else if ( args[i].equals("--docs") )
+                    bm.nDocs = Integer.parseInt( args[++i] );
+                else if ( args[i].equals("--words") )
+                    bm.nWords = Integer.parseInt( args[++i] );
+                else if ( args[i].equals("--versions") )
+                    bm.versions = parseInts( args[++i] );
+                else if ( args[i].equals("--warmup") )
+                    bm.warmups = Integer.parseInt( args[++i] );
+                else if ( args[i].equals("--iterations") )
+                    bm.iterations = Integer.parseInt( args[++i] );
+                else if ( args[i].equals("--time") )
+                    bm.iterationTime = Long.parseLong( args[++i] );
+                else if ( args[i].equals("--bench") )
+                    bm.filter = Pattern.compile( args[++i] );
+                else if ( args[i].equals("--seed") )
+                    bm.seed = Long.parseLong( args[++i] );
+                else if ( args[i].equals("--json") )
+                    json = args[++i];
+                else
+                {
+                    usage();
+                    return;
+                }
+            }
+            JettyServer.indexRoot = root;
+            MemoryConnection.install( new MemoryConnection() );
+            JSONArray results = bm.run();
+            if ( json != null )
+            {
+                FileWriter fw = new FileWriter( json );
+                try
+                {
+                    fw.write( results.toJSONString() );
+                }
+                finally
+                {
+                    fw.close();
+                }
+                System.out.println( "# results written to "+json );
+            }
+        }
+        catch ( Exception e )
+        {
+            e.printStackTrace( System.out );
+        }
+    }
+}
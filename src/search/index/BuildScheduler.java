@@ -0,0 +1,319 @@
+/*
+ * This file is part of Search.
+ *
+ *  Search is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Search is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Search.  If not, see <http://www.gnu.org/licenses/>.
+ *  (c) copyright Desmond Schmidt 2015
+ */
+package search.index;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import org.json.simple.JSONObject;
+import search.cache.IndexRegistry;
+import search.exception.SearchException;
+/**
+ * Build the indices of projects in the background, a few at a time, so
+ * that a build doesn't depend on the request that asked for it staying
+ * connected. Each build is a job with an id whose progress can be asked
+ * for later. Asking to build a project that is already waiting or being
+ * built just returns the job already under way. Updates of a project 
+ * wait for a build of it that is running.
+ * @author desmond
+ */
+public class BuildScheduler
+{
+    /** the number of builds that may run at once */
+    public static int maxJobs = 1;
+    /** the number of builds that may wait to run */
+    public static int maxQueued = 32;
+    /** the number of finished jobs we remember */
+    static final int MAX_FINISHED = 64;
+    /** the states of a job */
+    public static final String QUEUED = "queued";
+    public static final String RUNNING = "running";
+    public static final String DONE = "done";
+    public static final String FAILED = "failed";
+    private static ThreadPoolExecutor executor;
+    private static int nextId = 1;
+    /** all the jobs we know of by id, oldest first */
+    private static LinkedHashMap<String,Job> jobs
+        = new LinkedHashMap<String,Job>();
+    /** the unfinished job of each project */
+    private static HashMap<String,Job> active = new HashMap<String,Job>();
+    /** locks held by a build while it runs and by an update, so a build 
+     * can't save documents read before an update over it, each shared 
+     * by the projects whose ids hash to it so there are never more */
+    private static final Object[] projectLocks = new Object[64];
+    static
+    {
+        for ( int i=0;i<projectLocks.length;i++ )
+            projectLocks[i] = new Object();
+    }
+    /**
+     * Get the lock a project's builds and updates take
+     * @param projid the project identifier
+     * @return an object to synchronise on
+     */
+    private static Object projectLock( String projid )
+    {
+        return projectLocks[(projid.hashCode()&0x7FFFFFFF)
+            %projectLocks.length];
+    }
+    /**
+     * A build of one project
+     */
+    public static class Job implements Runnable
+    {
+        String id;
+        String projid;
+        String state;
+        Progress pg;
+        long submitted;
+        long started;
+        long finished;
+        String log;
+        String error;
+        Job( String id, String projid )
+        {
+            this.id = id;
+            this.projid = projid;
+            this.state = QUEUED;
+            this.submitted = System.currentTimeMillis();
+        }
+        /**
+         * Get the job's identifier
+         * @return a string
+         */
+        public String getId()
+        {
+            return id;
+        }
+        /**
+         * Build and save the index and make it the one searched. Whatever
+         * goes wrong, even running out of memory, the job is finished, so
+         * the project can be built again.
+         */
+        public void run()
+        {
+            start();
+            try
+            {
+                synchronized ( projectLock(projid) )
+                {
+                    Index ind = new Index( projid );
+                    ind.build( pg );
+                    ind.save();
+                    IndexRegistry.invalidate( projid );
+                    System.out.println( ind.getLog() );
+                    finish( DONE, ind.getLog(), null );
+                }
+            }
+            catch ( Throwable t )
+            {
+                System.out.println("Build of "+projid+" failed: "+t);
+                finish( FAILED, null, t.toString() );
+            }
+        }
+        /**
+         * Note that we have left the queue
+         */
+        private void start()
+        {
+            synchronized ( BuildScheduler.class )
+            {
+                this.state = RUNNING;
+                this.pg = new Progress();
+                this.started = System.currentTimeMillis();
+            }
+        }
+        /**
+         * Note that we have finished and let the project be built again
+         * @param state DONE or FAILED
+         * @param log the build log or null
+         * @param error the reason for failure or null
+         */
+        private void finish( String state, String log, String error )
+        {
+            synchronized ( BuildScheduler.class )
+            {
+                this.state = state;
+                this.log = log;
+                this.error = error;
+                this.finished = System.currentTimeMillis();
+                if ( active.get(projid) == this )
+                    active.remove( projid );
+                forgetFinished();
+            }
+        }
+        /**
+         * Describe the job's state and progress
+         * @return a JSON object
+         */
+        JSONObject toJSON()
+        {
+            JSONObject jObj = new JSONObject();
+            jObj.put( "jobid", id );
+            jObj.put( "docid", projid );
+            jObj.put( "state", state );
+            if ( pg != null )
+            {
+                long elapsed = ((finished!=0)?finished:
+                    System.currentTimeMillis())-started;
+                double secs = Math.max( elapsed, 1 )/1000.0;
+                int docs = pg.getAmount();
+                long words = pg.getWords();
+                jObj.put( "percent", pg.getPercent() );
+                jObj.put( "documents", docs );
+                jObj.put( "totalDocuments", pg.getTotal() );
+                jObj.put( "words", words );
+                jObj.put( "elapsed", elapsed );
+                jObj.put( "docsPerSec", Math.round(docs/secs) );
+                jObj.put( "wordsPerSec", Math.round(words/secs) );
+            }
+            else
+                jObj.put( "waiting",
+                    System.currentTimeMillis()-submitted );
+            if ( log != null )
+                jObj.put( "log", log );
+            if ( error != null )
+                jObj.put( "error", error );
+            return jObj;
+        }
+    }
+    /**
+     * Ask for a project to be built
+     * @param projid the project identifier
+     * @return the job that will build it
+     * @throws SearchException if too many builds are waiting
+     */
+    public static synchronized Job submit( String projid )
+        throws SearchException
+    {
+        Job job = active.get( projid );
+        if ( job == null )
+        {
+            if ( executor == null )
+            {
+                int n = Math.max( 1, maxJobs );
+                executor = new ThreadPoolExecutor( n, n, 0,
+                    TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(
+                    Math.max(1,maxQueued)), new ThreadFactory() {
+                    public Thread newThread( Runnable r )
+                    {
+                        Thread t = new Thread( r, "index-builder" );
+                        t.setDaemon( true );
+                        return t;
+                    }
+                });
+            }
+            job = new Job( Integer.toString(nextId++), projid );
+            try
+            {
+                executor.execute( job );
+            }
+            catch ( RejectedExecutionException e )
+            {
+                throw new SearchException("Too many builds waiting: try "
+                    +"again later");
+            }
+            jobs.put( job.id, job );
+            active.put( projid, job );
+        }
+        return job;
+    }
+    /**
+     * Reindex some documents of a project now, once any build of it that
+     * is running has finished. A build still waiting will read the new 
+     * versions itself. The updated index is searched at once and merged 
+     * in the background later.
+     * @param projid the project identifier
+     * @param docids the documents that have changed
+     * @param pg the progress object to record progress
+     * @return the updated index with its log
+     * @throws SearchException 
+     */
+    public static Index update( String projid, String[] docids, 
+        Progress pg ) throws SearchException
+    {
+        synchronized ( projectLock(projid) )
+        {
+            Index ind = Index.update( projid, docids, pg );
+            IndexRegistry.invalidate( projid );
+            MergeScheduler.schedule( projid );
+            return ind;
+        }
+    }
+    /**
+     * Drop the oldest finished jobs if we remember too many
+     */
+    private static void forgetFinished()
+    {
+        int nFinished = jobs.size()-active.size();
+        Iterator<Job> iter = jobs.values().iterator();
+        while ( nFinished > MAX_FINISHED && iter.hasNext() )
+        {
+            Job job = iter.next();
+            if ( job.finished != 0 )
+            {
+                iter.remove();
+                nFinished--;
+            }
+        }
+    }
+    /**
+     * Describe a job
+     * @param jobid its identifier
+     * @return its status as JSON or null if we don't know it
+     */
+    public static synchronized JSONObject status( String jobid )
+    {
+        Job job = jobs.get( jobid );
+        return (job==null)?null:job.toJSON();
+    }
+    /**
+     * Describe the latest job of a project
+     * @param projid the project identifier
+     * @return its status as JSON or null if it has none
+     */
+    public static synchronized JSONObject latest( String projid )
+    {
+        Job last = null;
+        Iterator<Job> iter = jobs.values().iterator();
+        while ( iter.hasNext() )
+        {
+            Job job = iter.next();
+            if ( job.projid.equals(projid) )
+                last = job;
+        }
+        return (last==null)?null:last.toJSON();
+    }
+    /**
+     * Describe all the jobs we remember
+     * @return their states, oldest first
+     */
+    public static synchronized ArrayList<JSONObject> statusAll()
+    {
+        ArrayList<JSONObject> list = new ArrayList<JSONObject>();
+        Iterator<Job> iter = jobs.values().iterator();
+        while ( iter.hasNext() )
+            list.add( iter.next().toJSON() );
+        return list;
+    }
+}
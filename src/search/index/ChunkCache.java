@@ -0,0 +1,259 @@
+/*
+ * This file is part of Search.
+ *
+ *  Search is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Search is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Search.  If not, see <http://www.gnu.org/licenses/>.
+ *  (c) copyright Desmond Schmidt 2015
+ */
+package search.index;
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.BitSet;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import search.exception.IndexException;
+import search.store.ChunkStore;
+/**
+ * A local copy of a file of an index kept in a ChunkStore, filled in a 
+ * chunk at a time as its bytes are first needed. The copy is a sparse 
+ * file of the full length mapped into memory, next to a file of the 
+ * chunks already fetched, so it survives a restart.
+ * @author desmond
+ */
+class ChunkCache
+{
+    /** keys of the table of a file's chunks in the index record */
+    static final String NAME = "name";
+    static final String LENGTH = "length";
+    static final String CHUNKS = "chunks";
+    /** suffixes of the local copy and of its list of fetched chunks */
+    static final String PART_SUFFIX = ".part";
+    static final String HAVE_SUFFIX = ".have";
+    ChunkStore store;
+    String projid;
+    long generation;
+    String name;
+    /** the offset of the start of each chunk in the file */
+    int[] starts;
+    int length;
+    MappedByteBuffer buf;
+    File haveFile;
+    BitSet have;
+    /**
+     * Open or create the local copy of a file
+     * @param store the store holding its chunks
+     * @param projid the project identifier
+     * @param generation the generation of the index
+     * @param table the table of its chunks from the index record
+     * @param dir the directory to keep the copy in
+     * @throws IndexException 
+     */
+    ChunkCache( ChunkStore store, String projid, long generation,
+        JSONObject table, File dir ) throws IndexException
+    {
+        try
+        {
+            this.store = store;
+            this.projid = projid;
+            this.generation = generation;
+            this.name = (String)table.get( NAME );
+            this.length = ((Number)table.get(LENGTH)).intValue();
+            JSONArray arr = (JSONArray)table.get( CHUNKS );
+            this.starts = new int[arr.size()];
+            for ( int i=0;i<starts.length;i++ )
+                starts[i] = ((Number)arr.get(i)).intValue();
+            if ( !dir.exists() && !dir.mkdirs() )
+                throw new IndexException("Couldn't create "+dir);
+            File part = new File( dir, name+PART_SUFFIX );
+            haveFile = new File( dir, name+HAVE_SUFFIX );
+            RandomAccessFile raf = new RandomAccessFile( part, "rw" );
+            if ( raf.length() != length || !haveFile.exists() )
+            {
+                raf.setLength( 0 );
+                raf.setLength( length );
+                have = new BitSet();
+            }
+            else
+                have = BitSet.valueOf( Files.readAllBytes(
+                    haveFile.toPath()) );
+            buf = raf.getChannel().map( FileChannel.MapMode.READ_WRITE, 0,
+                length );
+            raf.close();
+        }
+        catch ( IndexException ie )
+        {
+            throw ie;
+        }
+        catch ( Exception e )
+        {
+            throw new IndexException( e );
+        }
+    }
+    /**
+     * Get the name of the file
+     * @return its name within the generation
+     */
+    String getName()
+    {
+        return name;
+    }
+    /**
+     * Get the local copy, which must not be read before ensure is called
+     * @return the mapped buffer
+     */
+    MappedByteBuffer getBuffer()
+    {
+        return buf;
+    }
+    /**
+     * Find the chunk holding a byte
+     * @param pos its offset in the file
+     * @return the chunk number
+     */
+    private int chunkOf( int pos )
+    {
+        int top = 0;
+        int bot = starts.length-1;
+        while ( top < bot )
+        {
+            int mid = (top+bot+1)>>>1;
+            if ( starts[mid] <= pos )
+                top = mid;
+            else
+                bot = mid-1;
+        }
+        return top;
+    }
+    /**
+     * Fetch whatever chunks of a range of bytes we don't have yet. Being 
+     * synchronized also makes the fetched bytes visible to the caller.
+     * @param from the offset of the first byte
+     * @param to the offset after the last
+     * @throws IndexException 
+     */
+    synchronized void ensure( int from, int to ) throws IndexException
+    {
+        if ( from >= to )
+            return;
+        boolean fetched = false;
+        for ( int n=chunkOf(from);n<starts.length&&starts[n]<to;n++ )
+        {
+            if ( !have.get(n) )
+            {
+                byte[] data = store.get( projid, generation, name, n );
+                int end = (n+1<starts.length)?starts[n+1]:length;
+                if ( data == null || data.length != end-starts[n] )
+                    throw new IndexException("Chunk "+n+" of "+name
+                        +" of "+projid+" generation "+generation
+                        +" is missing");
+                ByteBuffer dup = buf.duplicate();
+                dup.position( starts[n] );
+                dup.put( data );
+                have.set( n );
+                fetched = true;
+            }
+        }
+        if ( fetched )
+        {
+            try
+            {
+                // the chunks must be on disk before we say we have them
+                buf.force();
+                Files.write( haveFile.toPath(), have.toByteArray() );
+            }
+            catch ( Exception e )
+            {
+                throw new IndexException( e );
+            }
+        }
+    }
+    /**
+     * Fetch the whole file
+     * @throws IndexException 
+     */
+    void ensureAll() throws IndexException
+    {
+        ensure( 0, length );
+    }
+    /**
+     * Store a file as chunks. Segments are cut at the start of their
+     * dictionary and postings, so a lookup fetches neither the other's 
+     * chunks nor more of the docid table than it must.
+     * @param store the store to put its chunks in
+     * @param projid the project identifier
+     * @param generation the generation of the index
+     * @param file the file to store
+     * @param chunkSize the most bytes in a chunk
+     * @return the table of its chunks for the index record
+     * @throws IndexException 
+     */
+    static JSONObject put( ChunkStore store, String projid, 
+        long generation, File file, int chunkSize ) throws IndexException
+    {
+        try
+        {
+            byte[] data = Files.readAllBytes( file.toPath() );
+            int[] sections;
+            ByteBuffer bb = ByteBuffer.wrap( data );
+            if ( data.length >= Segment.HEADER_SIZE 
+                && bb.getInt(0) == Segment.MAGIC )
+                sections = new int[]{0,bb.getInt(24),bb.getInt(28),
+                    data.length};
+            else
+                sections = new int[]{0,data.length};
+            JSONArray chunks = new JSONArray();
+            for ( int s=0;s+1<sections.length;s++ )
+            {
+                for ( int pos=sections[s];pos<sections[s+1];pos+=chunkSize )
+                {
+                    int end = Math.min( pos+chunkSize, sections[s+1] );
+                    store.put( projid, generation, file.getName(), 
+                        chunks.size(), Arrays.copyOfRange(data,pos,end) );
+                    chunks.add( pos );
+                }
+            }
+            JSONObject table = new JSONObject();
+            table.put( NAME, file.getName() );
+            table.put( LENGTH, data.length );
+            table.put( CHUNKS, chunks );
+            return table;
+        }
+        catch ( IndexException ie )
+        {
+            throw ie;
+        }
+        catch ( Exception e )
+        {
+            throw new IndexException( e );
+        }
+    }
+    /**
+     * Remove the chunks of a stored file
+     * @param store the store holding them
+     * @param projid the project identifier
+     * @param generation the generation of the index
+     * @param table the table of its chunks
+     * @throws IndexException 
+     */
+    static void remove( ChunkStore store, String projid, long generation,
+        JSONObject table ) throws IndexException
+    {
+        store.remove( projid, generation, (String)table.get(NAME),
+            ((JSONArray)table.get(CHUNKS)).size() );
+    }
+}
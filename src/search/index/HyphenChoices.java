@@ -0,0 +1,144 @@
+/*
+ * This file is part of Search.
+ *
+ *  Search is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Search is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Search.  If not, see <http://www.gnu.org/licenses/>.
+ *  (c) copyright Desmond Schmidt 2015
+ */
+package search.index;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+/**
+ * Words broken by a hyphen at a line-end that keep their hyphen only if
+ * the hyphenated form was indexed before them. Workers index documents
+ * in no fixed order and each sees only its own terms, so instead of
+ * deciding at once they note such words here. Once every document has
+ * been read the index decides them all in reading order, as a single
+ * thread reading the documents one after another would have done.
+ * @author desmond
+ */
+class HyphenChoices
+{
+    ArrayList<int[]> places;
+    ArrayList<String> hyphenated;
+    ArrayList<String> joined;
+    /** the document we were last given and the words noted in it */
+    int lastDoc;
+    HashSet<String> seen;
+    HyphenChoices()
+    {
+        this.places = new ArrayList<int[]>();
+        this.hyphenated = new ArrayList<String>();
+        this.joined = new ArrayList<String>();
+        this.lastDoc = -1;
+        this.seen = new HashSet<String>();
+    }
+    /**
+     * Note a word. Each worker indexes one document at a time so we only
+     * need to remember the words of the current one.
+     * @param docId its provisional document number
+     * @param pos its position in the document
+     * @param h its lowercased hyphenated form
+     * @param j its lowercased form without the hyphen
+     * @return true if the word had a new location
+     */
+    boolean add( int docId, int pos, String h, String j )
+    {
+        if ( docId != lastDoc )
+        {
+            seen.clear();
+            lastDoc = docId;
+        }
+        if ( !seen.add(pos+":"+h) )
+            return false;
+        places.add( new int[]{docId,pos} );
+        hyphenated.add( h );
+        joined.add( j );
+        return true;
+    }
+    /**
+     * Add the words noted by another worker
+     * @param other their choices
+     */
+    void addAll( HyphenChoices other )
+    {
+        places.addAll( other.places );
+        hyphenated.addAll( other.hyphenated );
+        joined.addAll( other.joined );
+    }
+    /**
+     * Get the hyphenated forms we need the first occurrences of
+     * @return the distinct hyphenated forms
+     */
+    Set<String> hyphenatedForms()
+    {
+        return new HashSet<String>( hyphenated );
+    }
+    /**
+     * Is there nothing to decide?
+     * @return true if no words were noted
+     */
+    boolean isEmpty()
+    {
+        return places.isEmpty();
+    }
+    /**
+     * Pack a place so places compare in reading order
+     * @param docId the provisional document number
+     * @param pos the position in the document
+     * @return a long
+     */
+    static long place( int docId, int pos )
+    {
+        return ((long)docId<<32) | (pos & 0xFFFFFFFFL);
+    }
+    /**
+     * Decide each word's form and note its location. A word keeps its
+     * hyphen if that form was indexed in an earlier place. A word that
+     * kept its hyphen can't be the first occurrence of that form, so the
+     * first definite occurrences are enough to decide them all.
+     * @param firsts the first place of each hyphenated form indexed
+     * definitely, from place(), Long.MIN_VALUE if it was indexed before
+     * this build, or absent if it never was
+     * @param stopwords words that have no locations
+     * @return a term map of the words' locations by provisional number
+     */
+    HashMap<String,Locations> resolve( Map<String,Long> firsts,
+        Set<String> stopwords )
+    {
+        HashMap<String,Locations> resolved
+            = new HashMap<String,Locations>();
+        for ( int i=0;i<places.size();i++ )
+        {
+            int[] at = places.get( i );
+            String h = hyphenated.get( i );
+            Long first = firsts.get( h );
+            String term = (first!=null && first.longValue()
+                < place(at[0],at[1]))?h:joined.get(i);
+            if ( term.length() > 0 && !stopwords.contains(term) )
+            {
+                Locations locs = resolved.get( term );
+                if ( locs == null )
+                {
+                    locs = new Locations();
+                    resolved.put( term, locs );
+                }
+                locs.add( at[0], at[1] );
+            }
+        }
+        return resolved;
+    }
+}
@@ -20,32 +20,134 @@ import calliope.AeseSpeller;
 import calliope.core.constants.Database;
 import calliope.core.constants.JSONKeys;
 import search.exception.*;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import calliope.core.database.*;
 import calliope.core.exception.DbException;
 import org.json.simple.*;
 /**
- * Perform hyphenation tasks
+ * Perform hyphenation tasks. There is one shared, thread-safe Hyphenator 
+ * per project and language, so the speller is only opened once per 
+ * language and a project's hyphen exceptions are read once per build. 
+ * Decisions are remembered, the least recently used being forgotten 
+ * first once there are too many.
  * @author desmond
  */
 public class Hyphenator 
 {
+    /** the most decisions of each kind to remember */
+    static int memoSize = 65536;
+    /** what resolve says to do with two words split by a hyphen */
+    static final int JOIN = 0;
+    static final int KEEP_HYPHEN = 1;
+    static final int KEEP_HYPHEN_IF_INDEXED = 2;
+    /** the hyphenators of each project */
+    private static HashMap<String,Hyphenator> hyphenators 
+        = new HashMap<String,Hyphenator>();
+    /** the spellers of each language, shared by all projects */
+    private static HashMap<String,AeseSpeller> spellers 
+        = new HashMap<String,AeseSpeller>();
     AeseSpeller speller;
     String lang;
     HashSet<String> hhExceptions;
-    public Hyphenator( String projid, String lang ) throws SpellException
+    /** remembered speller lookups, wantsHyphen and resolve decisions */
+    private Memo<Boolean> words;
+    private Memo<Boolean> wants;
+    private Memo<Integer> resolved;
+    /**
+     * A map that forgets its least recently used entries
+     */
+    private static class Memo<V> extends LinkedHashMap<String,V>
+    {
+        private static final long serialVersionUID = 1L;
+        Memo()
+        {
+            super( 1024, 0.75f, true );
+        }
+        @Override
+        protected boolean removeEldestEntry( Map.Entry<String,V> eldest )
+        {
+            return size() > memoSize;
+        }
+    }
+    private Hyphenator( String projid, String lang ) throws SpellException
     {
         try
         {
             this.lang = lang;
-            this.speller = new AeseSpeller( lang );
+            this.speller = spellerFor( lang );
             this.hhExceptions = getHHExceptions(projid);
+            this.words = new Memo<Boolean>();
+            this.wants = new Memo<Boolean>();
+            this.resolved = new Memo<Integer>();
+        }
+        catch ( SpellException se )
+        {
+            throw se;
         }
         catch ( Exception e )
         {
             throw new SpellException(e);
         }
     }
+    /**
+     * Get the shared hyphenator of a project
+     * @param projid the project identifier
+     * @param lang the language of its documents
+     * @return a Hyphenator, created the first time it is asked for
+     * @throws SpellException 
+     */
+    public static synchronized Hyphenator forProject( String projid, 
+        String lang ) throws SpellException
+    {
+        String key = projid+" "+lang;
+        Hyphenator h = hyphenators.get( key );
+        if ( h == null )
+        {
+            h = new Hyphenator( projid, lang );
+            hyphenators.put( key, h );
+        }
+        return h;
+    }
+    /**
+     * Forget a project's hyphenators so its exceptions are read again
+     * @param projid the project identifier
+     */
+    public static synchronized void forget( String projid )
+    {
+        Iterator<String> iter = hyphenators.keySet().iterator();
+        while ( iter.hasNext() )
+        {
+            if ( iter.next().startsWith(projid+" ") )
+                iter.remove();
+        }
+    }
+    /**
+     * Get the speller of a language, opening it if need be
+     * @param lang the language code
+     * @return the shared speller
+     * @throws SpellException 
+     */
+    private static AeseSpeller spellerFor( String lang ) throws SpellException
+    {
+        AeseSpeller speller = spellers.get( lang );
+        if ( speller == null )
+        {
+            try
+            {
+                speller = new AeseSpeller( lang );
+                spellers.put( lang, speller );
+            }
+            catch ( Exception e )
+            {
+                throw new SpellException( e );
+            }
+        }
+        return speller;
+    }
     /**
      * Get a set of hyphen exceptions
      * @param projid the project identifier
@@ -70,6 +172,31 @@ public class Hyphenator
         }
         return set;
     }
+    /**
+     * Is a word in the dictionary?
+     * @param word the word to look up
+     * @return true if the speller knows it
+     */
+    public boolean hasWord( String word )
+    {
+        synchronized ( this )
+        {
+            Boolean known = words.get( word );
+            if ( known != null )
+                return known;
+        }
+        boolean known;
+        // the speller is shared by every project in the language
+        synchronized ( speller )
+        {
+            known = speller.hasWord( word, lang );
+        }
+        synchronized ( this )
+        {
+            words.put( word, known );
+        }
+        return known;
+    }
     /**
      * Does a hyphenated word need its internal hyphen(s)?
      * @param hyphenated the word with embedded hyphens
@@ -77,25 +204,66 @@ public class Hyphenator
      */
     public boolean wantsHyphen( String hyphenated )
     {
+        synchronized ( this )
+        {
+            Boolean res = wants.get( hyphenated );
+            if ( res != null )
+                return res;
+        }
         String[] parts = hyphenated.split("-");
-        boolean wants = true;
+        boolean res = true;
         for ( int i=0;i<parts.length;i++ )
         {
-            if ( !this.speller.hasWord(parts[i],lang) )
+            if ( !hasWord(parts[i]) )
             {
-                wants = false;
+                res = false;
                 break;
             }
         }
-        if ( wants )    // check hhExceptions
+        if ( res )    // check hhExceptions
         {
-            String merged = hyphenated.replaceAll("-","");
-            if ( this.speller.hasWord(merged,lang) )
-                wants = false;
+            String merged = hyphenated.replace("-","");
+            if ( hasWord(merged) )
+                res = false;
             // if it is listed we *remove* the hyphen
             else if ( this.hhExceptions.contains(hyphenated) )
-                wants = false;
+                res = false;
+        }
+        synchronized ( this )
+        {
+            wants.put( hyphenated, res );
+        }
+        return res;
+    }
+    /**
+     * Decide how to index two words split by a hyphen at a line-end, 
+     * the first of which is in the dictionary
+     * @param first the first word
+     * @param second the second word
+     * @return JOIN to store them as one word, KEEP_HYPHEN to keep the 
+     * hyphen or KEEP_HYPHEN_IF_INDEXED to keep it only if the hyphenated 
+     * form is already indexed
+     */
+    public int resolve( String first, String second )
+    {
+        String hyphenated = first+"-"+second;
+        synchronized ( this )
+        {
+            Integer res = resolved.get( hyphenated );
+            if ( res != null )
+                return res;
+        }
+        int res;
+        if ( !hasWord(second) )
+            res = JOIN;
+        else if ( hasWord(first+second) )
+            res = KEEP_HYPHEN_IF_INDEXED;
+        else
+            res = KEEP_HYPHEN;
+        synchronized ( this )
+        {
+            resolved.put( hyphenated, res );
         }
-        return wants;
+        return res;
     }
 }
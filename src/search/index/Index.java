@@ -16,9 +16,9 @@
  *  (c) copyright Desmond Schmidt 2015
  */
 package search.index;
-import search.format.Formatter;
 import calliope.core.constants.Database;
 import search.exception.SearchException;
+import search.exception.IndexException;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -28,16 +28,52 @@ import org.json.simple.*;
 import edu.luc.nmerge.mvd.MVDFile;
 import edu.luc.nmerge.mvd.MVD;
 import edu.luc.nmerge.mvd.Base64;
+import edu.luc.nmerge.mvd.Pair;
 import calliope.core.constants.Formats;
 import calliope.core.database.Repository;
 import java.io.Serializable;
-import java.io.ObjectOutputStream;
 import java.io.ObjectInputStream;
-import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectOutputStream;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import search.JettyServer;
+import search.cache.IndexRegistry;
 import java.util.BitSet;
 import java.util.Map;
-import java.util.Collection;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.TreeSet;
+import java.util.TreeMap;
+import java.util.Random;
+import java.nio.ByteBuffer;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import search.source.ConnectionDocumentSource;
+import search.source.DocumentSource;
+import search.source.MongoDocumentSource;
+import search.source.SourceDocument;
+import search.source.MemoryConnection;
+import search.source.MemoryDocumentSource;
+import search.store.ChunkStore;
+import search.store.ConnectionChunkStore;
+import search.store.MongoChunkStore;
 /**
  * An index for searching MVDs etc.
  * @author desmond
@@ -47,10 +83,64 @@ public class Index implements Serializable {
     /** list of docids: index = document id */
     HashMap<String,Locations> map;
     ArrayList<String> documents;
+    /** the text of each document not read by all its versions, from 
+     * Phrase.variants, or null where it isn't known */
+    transient ArrayList<int[]> variants;
     transient StringBuilder log;
     String projid;
     String lang;
-    HashSet sw;
+    HashSet<String> sw;
+    /** the mapped segments of a loaded index, the full index first and 
+     * then any updates, or null while building */
+    transient ArrayList<Segment> segments;
+    /** documents replaced or removed by updates, or null if none */
+    transient BitSet deleted;
+    static final String SEGMENT_NAME = "index.seg";
+    /** prefix and suffix of the segments written by updates */
+    static final String UPDATE_PREFIX = "update-";
+    static final String UPDATE_SUFFIX = ".seg";
+    /** the file listing deleted document numbers */
+    static final String DELETED_NAME = "deleted.bits";
+    /** the file naming the generation being searched */
+    static final String CURRENT_NAME = "CURRENT";
+    /** prefix of the directories holding each generation's files */
+    static final String GENERATION_PREFIX = "gen-";
+    /** the generation a loaded index was read from, 0 for an index 
+     * written before there were generations */
+    transient long generation;
+    /** keys of the index record listing the chunks of each file of the 
+     * generation, and of the generation before, when they are stored */
+    static final String FILES = "files";
+    static final String PREVIOUS = "previous";
+    /** true if each generation is also kept in the database in chunks */
+    public static boolean storeChunks = false;
+    /** the most bytes in a stored chunk, well below a document's limit */
+    public static int chunkSize = 1024*1024;
+    /** the store chunks are kept in, opened when first needed */
+    private static ChunkStore store;
+    /** true if the index was loaded from chunks, not from local files */
+    transient boolean chunked;
+    /** locks so that only one thread changes a project's files at once, 
+     * each shared by the projects whose ids hash to it */
+    private static final Object[] writeLocks = new Object[64];
+    static
+    {
+        for ( int i=0;i<writeLocks.length;i++ )
+            writeLocks[i] = new Object();
+    }
+    /** the number of threads indexing documents at once */
+    public static int buildThreads = Runtime.getRuntime().availableProcessors();
+    /** the estimated bytes of terms and postings a build may hold before 
+     * spilling them to disk, or 0 to keep them all in memory */
+    public static long buildMemory = Runtime.getRuntime().maxMemory()/4;
+    /** prefix and suffix of the runs spilled by a build */
+    static final String RUN_PREFIX = "run-";
+    static final String RUN_SUFFIX = ".tmp";
+    /** the segment a build merged from its spilled runs, or null if its 
+     * terms are in the map */
+    transient File built;
+    /** the number of terms in the built segment */
+    transient int builtTerms;
     /**
      * Given a project docid find all resources to be indexed
      * @param projid 
@@ -59,6 +149,7 @@ public class Index implements Serializable {
     {
         this.projid = projid;
         this.documents = new ArrayList<String>();
+        this.variants = new ArrayList<int[]>();
         this.log = new StringBuilder();
         // 1. find all cortexs that have that projid as prefix
         try
@@ -73,236 +164,2232 @@ public class Index implements Serializable {
         }
     }
     /**
-     * Build the index one file at a time
+     * Open the usual source of a project's documents: a cursor straight 
+     * onto MongoDB or else a calliope connection
+     * @param projid the project identifier
+     * @return a document source that must be closed
+     * @throws IndexException 
+     */
+    static DocumentSource openSource( String projid ) throws IndexException
+    {
+        try
+        {
+            Connection conn = Connector.getConnection();
+            if ( Connector.getRepository() == Repository.MONGO )
+                return new MongoDocumentSource( conn.getHost(), 
+                    conn.getDbPort(), projid );
+            else
+                return new ConnectionDocumentSource( conn, projid );
+        }
+        catch ( IndexException ie )
+        {
+            throw ie;
+        }
+        catch ( Exception e )
+        {
+            throw new IndexException( e );
+        }
+    }
+    /**
+     * Open a source for just some documents of a project
+     * @param projid the project identifier
+     * @param docids the documents to fetch
+     * @return a document source that must be closed
+     * @throws IndexException 
+     */
+    static DocumentSource openSource( String projid, String[] docids ) 
+        throws IndexException
+    {
+        try
+        {
+            Connection conn = Connector.getConnection();
+            if ( Connector.getRepository() == Repository.MONGO )
+                return new MongoDocumentSource( conn.getHost(), 
+                    conn.getDbPort(), docids );
+            else
+                return new ConnectionDocumentSource( conn, docids );
+        }
+        catch ( IndexException ie )
+        {
+            throw ie;
+        }
+        catch ( Exception e )
+        {
+            throw new IndexException( e );
+        }
+    }
+    /**
+     * Get the store of index chunks for the database we are using
+     * @return the shared store
+     * @throws IndexException 
+     */
+    static synchronized ChunkStore getStore() throws IndexException
+    {
+        try
+        {
+            if ( store == null )
+            {
+                Connection conn = Connector.getConnection();
+                if ( Connector.getRepository() == Repository.MONGO )
+                    store = new MongoChunkStore( conn.getHost(), 
+                        conn.getDbPort() );
+                else
+                    store = new ConnectionChunkStore( conn );
+            }
+            return store;
+        }
+        catch ( IndexException ie )
+        {
+            throw ie;
+        }
+        catch ( Exception e )
+        {
+            throw new IndexException( e );
+        }
+    }
+    /**
+     * Build the index from the project's documents in the database
      * @param pg the progress object to record progress
      * @throws SearchException 
      */
     public void build( Progress pg ) throws SearchException
     {
+        DocumentSource src = null;
         try
         {
-            Connection conn = Connector.getConnection();
-            String[] docids = conn.listDocuments(Database.CORTEX,projid+"/.*",
-                JSONKeys.DOCID);
+            src = openSource( projid );
+            build( src, pg );
+        }
+        catch ( SearchException se )
+        {
+            throw se;
+        }
+        catch ( Exception e )
+        {
+            throw new SearchException( e );
+        }
+        finally
+        {
+            if ( src != null )
+                src.close();
+        }
+    }
+    /**
+     * Build the index using several worker threads. This thread reads the
+     * documents from the source and queues them, and each worker indexes 
+     * whole documents into its own term map. Then the maps are merged, 
+     * numbering the documents in the order they were read. Words broken
+     * at a line-end whose form depends on what was indexed before them 
+     * are decided then, in that order, so the index doesn't depend on the
+     * number of threads. If the maps grow beyond buildMemory they are 
+     * spilled to disk as sorted runs, which are finally merged into a 
+     * segment instead.
+     * @param src the source of the documents
+     * @param pg the progress object to record progress
+     * @throws SearchException 
+     */
+    public void build( DocumentSource src, Progress pg ) 
+        throws SearchException
+    {
+        try
+        {
+            pg.setTotal( src.size() );
+            // pick up any change to the project's hyphen exceptions
+            Hyphenator.forget( projid );
+            int nThreads = Math.max( 1, buildThreads );
+            BlockingQueue<BuildJob> queue 
+                = new ArrayBlockingQueue<BuildJob>( nThreads*2 );
+            ArrayList<BuildJob> jobs = new ArrayList<BuildJob>();
+            ExecutorService pool = Executors.newFixedThreadPool( nThreads );
+            ArrayList<Future<HashMap<String,Locations>>> results 
+                = new ArrayList<Future<HashMap<String,Locations>>>();
+            ArrayList<HashMap<String,Locations>> maps 
+                = new ArrayList<HashMap<String,Locations>>();
+            ArrayList<File> runs = new ArrayList<File>();
+            ArrayList<BuildWorker> workers = new ArrayList<BuildWorker>();
+            long budget = (buildMemory>0)?buildMemory/nThreads:0;
+            try
+            {
+                for ( int i=0;i<nThreads;i++ )
+                {
+                    BuildWorker worker = new BuildWorker( queue, pg, runs,
+                        budget );
+                    workers.add( worker );
+                    results.add( pool.submit(worker) );
+                }
+                SourceDocument doc;
+                while ( (doc=src.next()) != null )
+                {
+                    BuildJob job = new BuildJob( jobs.size(), doc );
+                    jobs.add( job );
+                    enqueue( queue, job, results );
+                }
+                for ( int i=0;i<nThreads;i++ )
+                    enqueue( queue, BuildJob.END, results );
+                for ( int i=0;i<results.size();i++ )
+                    maps.add( results.get(i).get() );
+            }
+            finally
+            {
+                pool.shutdownNow();
+                if ( maps.size() < nThreads )
+                    deleteRuns( runs );
+            }
+            // number the documents with words in the order they were read
+            int docBase = documents.size();
+            int[] renumber = new int[jobs.size()];
             int totalWords = 0;
-            pg.setTotal(docids.length);
-            for ( int i=0;i<docids.length;i++ )
+            int nIndexed = 0;
+            for ( int i=0;i<jobs.size();i++ )
             {
-                String bson = conn.getFromDb(Database.CORTEX,docids[i] );
-                JSONObject jObj = (JSONObject)JSONValue.parse( bson );
-                String format = (String)jObj.get(JSONKeys.FORMAT);
-                if ( format != null )
+                BuildJob job = jobs.get( i );
+                if ( job.warning != null )
+                    log.append( job.warning );
+                if ( job.nWords > 0 )
                 {
-                    int nWords = 0;
-                    String text = (String)jObj.get(JSONKeys.BODY);
-                    if ( format.equals(Formats.MVD_TEXT) )
-                    {
-                        MVD mvd = MVDFile.internalise( text );
-                        nWords = indexMVDWords( mvd, map, sw, lang, 
-                            documents.size() );
-                    }
-                    else if ( format.equals(Formats.TEXT) )
-                    {
-                        TextWordFinder twf = new TextWordFinder( text, map, 
-                            sw, lang, documents.size() );
-                        nWords = twf.find();
-                    }
-                    if ( nWords > 0 )
+                    renumber[i] = documents.size();
+                    documents.add( job.docid );
+                    variants.add( job.variants );
+                    totalWords += job.nWords;
+                    nIndexed++;
+                }
+                else
+                    renumber[i] = -1;
+            }
+            HyphenChoices choices = new HyphenChoices();
+            for ( int i=0;i<workers.size();i++ )
+                choices.addAll( workers.get(i).choices );
+            if ( runs.isEmpty() )
+            {
+                HashMap<String,Locations> hyphenated 
+                    = resolveHyphens( choices, maps, runs );
+                for ( int i=0;i<maps.size();i++ )
+                {
+                    mergeMap( maps.get(i), renumber );
+                    maps.set( i, null );
+                }
+                mergeMap( hyphenated, renumber );
+            }
+            else
+            {
+                try
+                {
+                    for ( int i=0;i<maps.size();i++ )
                     {
-                        documents.add( docids[i] );
-                        
-//                        log.append("Indexed ");
-//                        log.append( nWords );
-//                        log.append(" words from ");
-//                        log.append( docids[i] );
-//                        log.append("\n");
-                        totalWords += nWords;
+                        spill( maps.get(i), runs );
+                        maps.set( i, null );
                     }
+                    HashMap<String,Locations> hyphenated 
+                        = resolveHyphens( choices, maps, runs );
+                    if ( !hyphenated.isEmpty() )
+                        spill( hyphenated, runs );
+                    mergeRuns( runs, renumber, docBase );
+                    log.append("Merged "+runs.size()
+                        +" runs spilled to disk\n");
+                }
+                finally
+                {
+                    deleteRuns( runs );
                 }
-                // NB also handle plain text formats
-                else
-                    log.append("Warning: ignored format "+format+" in "
-                        +docids[i]+"\n");
-                pg.update( 1 );
             }
-            log.append("Indexed "+totalWords+" total words in "+documents.size()
+            log.append("Indexed "+totalWords+" total words in "+nIndexed
                 +" documents\n");
         }
+        catch ( ExecutionException e )
+        {
+            Throwable cause = e.getCause();
+            if ( cause instanceof SearchException )
+                throw (SearchException)cause;
+            else if ( cause instanceof Exception )
+                throw new SearchException( (Exception)cause );
+            else
+                throw new SearchException( e );
+        }
         catch ( Exception e )
         {
             throw new SearchException(e);
         }
     }
     /**
-     * Find the locations in documents where all the search terms occur
-     * @param query the query to search for
-     * @return an array of matches or null
+     * Queue a job for the workers, giving up if one of them has failed
+     * @param queue the queue of jobs
+     * @param job the job to add
+     * @param results the workers' results
+     * @throws Exception if a worker failed
+     */
+    private static void enqueue( BlockingQueue<BuildJob> queue, BuildJob job,
+        ArrayList<Future<HashMap<String,Locations>>> results ) 
+        throws Exception
+    {
+        while ( !queue.offer(job,100,TimeUnit.MILLISECONDS) )
+        {
+            // a failed worker will stop taking jobs: report its error
+            for ( int i=0;i<results.size();i++ )
+                if ( results.get(i).isDone() )
+                    results.get(i).get();
+        }
+    }
+    /**
+     * Estimate the heap used by a term map while building
+     * @param nPostings the number of postings in it
+     * @param nTerms the number of distinct terms
+     * @return an approximate size in bytes, allowing for the unused 
+     * capacity of the postings and the term table's own entries
+     */
+    static long estimate( long nPostings, int nTerms )
+    {
+        return nPostings*12 + nTerms*160L;
+    }
+    /**
+     * Write a term map out as a sorted run and empty it
+     * @param map the map, numbering documents in the order they were read
+     * @param runs the runs to add the new one to
+     * @throws Exception 
+     */
+    private void spill( HashMap<String,Locations> map, ArrayList<File> runs ) 
+        throws Exception
+    {
+        File dir = indexDir( projid );
+        // another worker may create it between our test and mkdirs
+        if ( !dir.mkdirs() && !dir.isDirectory() )
+            throw new IndexException("Couldn't create "+dir);
+        File run = File.createTempFile( RUN_PREFIX, RUN_SUFFIX, dir );
+        synchronized ( runs )
+        {
+            runs.add( run );
+        }
+        SegmentWriter.write( run, new ArrayList<String>(), map );
+        map.clear();
+    }
+    /**
+     * Decide the hyphenated words the workers left to us, by whether 
+     * the hyphenated form was indexed before them in reading order
+     * @param choices the words noted by all the workers
+     * @param maps the workers' term maps, which may be spilled
+     * @param runs the runs spilled by the workers
+     * @return a term map of the words, numbering documents in the order 
+     * they were read
+     * @throws Exception 
      */
-    public Match[] find( Query query ) 
+    private HashMap<String,Locations> resolveHyphens( HyphenChoices choices,
+        ArrayList<HashMap<String,Locations>> maps, ArrayList<File> runs )
+        throws Exception
     {
-        Match[] res=new Match[0];
-        Locations locs = map.get(query.terms[0].toLowerCase());
-        if ( locs != null )
+        if ( choices.isEmpty() )
+            return new HashMap<String,Locations>();
+        HashMap<String,Long> firsts = new HashMap<String,Long>();
+        ArrayList<Segment> segs = new ArrayList<Segment>();
+        try
         {
-            // merge into one hit per document
-            HashMap<Integer,Match> hitMap = new HashMap<Integer,Match>();
-            // all hits must contain first term
-            for ( int i=0;i<locs.size();i++ )
+            for ( int i=0;i<runs.size();i++ )
+                segs.add( Segment.open(runs.get(i)) );
+            for ( String h : choices.hyphenatedForms() )
             {
-                Location loc = locs.location(i);
-                if ( hitMap.containsKey(loc.docId) )
-                {
-                    Match hit = hitMap.get(loc.docId);
-                    hit.addTerm(loc,query.terms[0]);
-                }
+                if ( indexedLive(h) )
+                    firsts.put( h, Long.MIN_VALUE );
                 else
-                    hitMap.put(loc.docId, new Match(loc,query.terms[0],
-                        MatchType.fromQuery(query)) );
-            }
-            // add other terms if they occur in the same documents
-            for ( int i=1;i<query.terms.length;i++ )
-            {
-                locs = map.get(query.terms[i].toLowerCase());
-                for ( int k=0;k<locs.size();k++ )
                 {
-                    Location l = (Location)locs.location(k);
-                    // is this term in an already found document?
-                    Match hit = hitMap.get(l.docId);
-                    if ( hit != null )
-                        hit.addTerm(l,query.terms[i]);
+                    long first = Long.MAX_VALUE;
+                    for ( int i=0;i<maps.size();i++ )
+                        if ( maps.get(i) != null )
+                            first = Math.min( first, 
+                                firstPlace(maps.get(i).get(h)) );
+                    for ( int i=0;i<segs.size();i++ )
+                        first = Math.min( first, 
+                            firstPlace(segs.get(i).lookup(h)) );
+                    if ( first != Long.MAX_VALUE )
+                        firsts.put( h, first );
                 }
             }
-            Collection<Match> coll = hitMap.values();
-            res = new Match[coll.size()];
-            coll.toArray(res);
         }
-        return res;
+        finally
+        {
+            closeRuns( segs );
+        }
+        return choices.resolve( firsts, sw );
     }
     /**
-     * Index all the words of an MVD
-     * @param mvd the mvd to index
-     * @param map the map where to store the words and their locations
-     * @param sw a list of stopwords
-     * @param lang a ISO 2-letter language code
-     * @param docId the document identifier starting at 0
-     * @return the number of indexed words
+     * Was a term indexed in a live document before this build?
+     * @param term the lowercased term
+     * @return true if it is in a document not deleted by an update
+     * @throws Exception 
+     */
+    private boolean indexedLive( String term ) throws Exception
+    {
+        Locations[] parts = getLocations( term );
+        for ( int i=0;parts!=null&&i<parts.length;i++ )
+        {
+            Postings p = parts[i].postings();
+            for ( int j=0;j<p.size();j++ )
+                if ( deleted == null || !deleted.get(p.docId(j)) )
+                    return true;
+        }
+        return false;
+    }
+    /**
+     * Get the first place where a term occurs
+     * @param locs its locations or null
+     * @return the place as made by HyphenChoices.place or Long.MAX_VALUE
+     * @throws IndexException 
+     */
+    private static long firstPlace( Locations locs ) throws IndexException
+    {
+        Postings p = (locs==null)?null:locs.block( 0 );
+        return (p==null||p.size()==0)?Long.MAX_VALUE
+            :HyphenChoices.place( p.docId(0), p.position(0) );
+    }
+    /**
+     * Merge the runs spilled by a build into the built segment
+     * @param runs the runs
+     * @param renumber the final number of each provisional document number
+     * or -1 if the document was dropped
+     * @param docBase the number of the first document of the build
+     * @throws Exception 
      */
-    int indexMVDWords( MVD mvd, Map<String,Locations> map, 
-        HashSet<String> sw, String lang, int docId )
+    private void mergeRuns( ArrayList<File> runs, int[] renumber, 
+        int docBase ) throws Exception
     {
+        ArrayList<Segment> segs = new ArrayList<Segment>();
+        File dir = indexDir( projid );
+        built = File.createTempFile( RUN_PREFIX, RUN_SUFFIX, dir );
         try
         {
-            int mvdVersions = mvd.numVersions();
-            if ( mvdVersions>0 )
-            {
-                WordFinder wf = new WordFinder( mvd.getPairs(), map, sw, 
-                    lang, projid, docId );
-                BitSet bs = new BitSet();
-				for ( int i=1;i<=mvdVersions;i++ )
-                    bs.set( i );
-                return wf.find(bs);
-            }
+            for ( int i=0;i<runs.size();i++ )
+                segs.add( Segment.open(runs.get(i)) );
+            builtTerms = SegmentMerger.merge( segs, renumber, 
+                documents.subList(docBase,documents.size()), 
+                variants.subList(docBase,variants.size()), docBase, built );
         }
         catch ( Exception e )
         {
-            System.out.println(e.getMessage());
+            built.delete();
+            built = null;
+            throw e;
+        }
+        finally
+        {
+            closeRuns( segs );
         }
-        return 0;
     }
     /**
-     * Save the index in the database
-     * @throws SearchException 
+     * Unmap the runs we opened so their files can be deleted
+     * @param segs the opened runs
      */
-    public void save() throws SearchException
+    private static void closeRuns( ArrayList<Segment> segs )
     {
-        try
+        for ( int i=0;i<segs.size();i++ )
+            segs.get(i).close();
+    }
+    /**
+     * Delete the runs spilled by a build
+     * @param runs the run files
+     */
+    private static void deleteRuns( ArrayList<File> runs )
+    {
+        synchronized ( runs )
         {
-            ByteArrayOutputStream bos = new ByteArrayOutputStream();
-            ObjectOutputStream out = new ObjectOutputStream( bos );
-            out.writeObject( this );
-            out.close();
-            byte[] data = bos.toByteArray();
-            String b64Data = Base64.encodeBytes( data );
-            JSONObject jObj = new JSONObject();
-            jObj.put( JSONKeys.BODY, b64Data );
-            Connection conn = Connector.getConnection();
-            conn.putToDb( Database.INDICES, this.projid, jObj.toJSONString() );
+            for ( int i=0;i<runs.size();i++ )
+                runs.get(i).delete();
         }
-        catch ( Exception e )
+    }
+    /**
+     * Move the segment made by a build into place
+     * @param dst the file it should become
+     * @throws SearchException 
+     */
+    private void install( File dst ) throws SearchException
+    {
+        if ( dst.exists() )
+            dst.delete();
+        if ( !built.renameTo(dst) )
+            throw new SearchException("Couldn't rename "+built+" to "+dst);
+        built = null;
+    }
+    /**
+     * A document waiting to be indexed and what became of it
+     */
+    private static class BuildJob
+    {
+        /** tells a worker to stop */
+        static final BuildJob END = new BuildJob( -1, null );
+        /** the order in which the document was read */
+        int seq;
+        String docid;
+        /** the document, dropped once indexed */
+        SourceDocument doc;
+        int nWords;
+        /** the document's variant spans */
+        int[] variants;
+        String warning;
+        BuildJob( int seq, SourceDocument doc )
         {
-            throw new SearchException(e);
+            this.seq = seq;
+            this.doc = doc;
+            this.docid = (doc!=null)?doc.docid:null;
         }
     }
     /**
-     * Load the index into memory for searching
+     * Index documents from the queue until told to stop
      */
-    public static Index load( String projid ) throws SearchException
+    private class BuildWorker implements Callable<HashMap<String,Locations>>
     {
-        try
+        BlockingQueue<BuildJob> queue;
+        Progress pg;
+        /** the runs spilled by all the workers */
+        ArrayList<File> runs;
+        /** our share of buildMemory or 0 if we never spill */
+        long budget;
+        /** the hyphenated words we couldn't decide */
+        HyphenChoices choices;
+        BuildWorker( BlockingQueue<BuildJob> queue, Progress pg, 
+            ArrayList<File> runs, long budget )
         {
-            Connection conn = Connector.getConnection();
-            String bson = conn.getFromDb( Database.INDICES, projid );
-            //System.out.println("about to parse index");
-            JSONObject jObj = (JSONObject)JSONValue.parse(bson);
-            //System.out.println("About to decode base 64");
-            byte[] data = Base64.decode( (String)jObj.get(JSONKeys.BODY) );
-            ByteArrayInputStream bis = new ByteArrayInputStream(data);
-            ObjectInputStream in = new ObjectInputStream( bis );
-            // System.out.println("About to read in index as object");
-            Index ind = (Index)in.readObject();
-            in.close();
-            //System.out.println("About to close connection");
-            return ind;
+            this.queue = queue;
+            this.pg = pg;
+            this.runs = runs;
+            this.budget = budget;
+            this.choices = new HyphenChoices();
         }
-        catch ( Exception e )
+        /**
+         * Index our share of the documents into a private map, spilling 
+         * it to disk whenever it gets too big
+         * @return the map of terms from the documents we indexed since we 
+         * last spilled, using the order they were read in as provisional 
+         * document numbers
+         * @throws Exception 
+         */
+        public HashMap<String,Locations> call() throws Exception
         {
-            throw new SearchException(e);
+            HashMap<String,Locations> local = new HashMap<String,Locations>();
+            TermTable table = new TermTable( local, sw, choices );
+            long nPostings = 0;
+            BuildJob job;
+            while ( (job=queue.take()) != BuildJob.END )
+            {
+                String format = job.doc.format;
+                // NB also handle plain text formats
+                if ( format == null )
+                    job.warning = "Warning: ignored format "+format+" in "
+                        +job.docid+"\n";
+                else
+                    indexDocument( job, table );
+                job.doc = null;
+                nPostings += job.nWords;
+                if ( budget > 0 && estimate(nPostings,table.size()) > budget )
+                {
+                    spill( local, runs );
+                    table = new TermTable( local, sw, choices );
+                    nPostings = 0;
+                }
+                pg.update( 1, job.nWords );
+            }
+            return local;
         }
     }
-    public String getLog()
+    /**
+     * Index the words of one document, noting how many there were and 
+     * where its versions differ
+     * @param job the document and what became of it
+     * @param table the terms to add its words to
+     * @throws IndexException 
+     */
+    private void indexDocument( BuildJob job, TermTable table ) 
+        throws IndexException
     {
-        return this.log.toString();
+        String format = job.doc.format;
+        if ( format.equals(Formats.MVD_TEXT) )
+        {
+            MVD mvd = MVDFile.internalise( job.doc.body );
+            job.variants = Phrase.variants( mvd );
+            job.nWords = indexMVDWords( mvd, table, lang, job.seq );
+        }
+        else if ( format.equals(Formats.TEXT) )
+        {
+            TextWordFinder twf = new TextWordFinder( job.doc.body, table, 
+                lang, projid, job.seq );
+            job.variants = new int[0];
+            job.nWords = twf.find();
+        }
     }
     /**
-     * Get the database string docid from its numeric index
-     * @param docId the index into the documents array
+     * Add the postings of a worker's map to the index
+     * @param local the worker's map
+     * @param renumber the final number of each provisional document number
+     * or -1 if the document was dropped
      */
-    public String getDocid( int docId )
+    private void mergeMap( HashMap<String,Locations> local, int[] renumber )
+        throws IndexException
     {
-        return this.documents.get( docId );
+        Iterator<Map.Entry<String,Locations>> iter 
+            = local.entrySet().iterator();
+        while ( iter.hasNext() )
+        {
+            Map.Entry<String,Locations> entry = iter.next();
+            Postings p = entry.getValue().block( 0 );
+            Locations locs = map.get( entry.getKey() );
+            if ( locs == null )
+            {
+                locs = new Locations();
+                map.put( entry.getKey(), locs );
+            }
+            locs.addAll( p, renumber );
+            iter.remove();
+        }
     }
-    public static void main(String[] args )
+    /**
+     * Get the locations of a term from the map or the segments
+     * @param term the lowercased term
+     * @return its locations in each segment that has it, in document 
+     * order, or null if it isn't indexed
+     * @throws SearchException 
+     */
+    Locations[] getLocations( String term ) throws SearchException
     {
         try
         {
-            Connector.init( Repository.MONGO, "admin", 
-            "jabberw0cky", "localhost", "calliope", 27017, 8080, "/var/www" );
-            Index ind = new Index( "english/conrad/nostromo" );
-            System.out.println(ind.getLog());
-            ind.save();
-            Index ind2 = Index.load("english/conrad/nostromo");
-            Match[] res1 = ind2.find( new LiteralQuery("vertical ravines","en") );
-            Match[] res2 = ind2.find( new BooleanQuery("estancias sugar-cane","en") );
-            Formatter f = new Formatter(ind);
-            if ( res1 != null && res1.length>0 )
+            if ( segments != null )
             {
-                String json = f.matchesToHits( res1 );
-                System.out.println( json );
+                ArrayList<Locations> parts = new ArrayList<Locations>();
+                for ( int i=0;i<segments.size();i++ )
+                {
+                    Locations locs = segments.get(i).lookup( term );
+                    if ( locs != null )
+                        parts.add( locs );
+                }
+                if ( parts.isEmpty() )
+                    return null;
+                Locations[] arr = new Locations[parts.size()];
+                return parts.toArray( arr );
             }
             else
-                System.out.println("vertical ravines not found");
-            if ( res2 != null && res2.length>0 )
             {
-                String json = f.matchesToHits( res2 );
-                System.out.println( json );
+                Locations locs = map.get( term );
+                return (locs==null)?null:new Locations[]{locs};
             }
-            else
-                System.out.println("estancias suger-cane query not found");
         }
         catch ( Exception e )
         {
-            e.fillInStackTrace();
-            e.printStackTrace();
+            throw new SearchException(e);
+        }
+    }
+    /**
+     * List the indexed terms that start with a prefix
+     * @param prefix the lowercased prefix
+     * @return the terms in every segment that start with it, in order
+     * @throws SearchException
+     */
+    public ArrayList<String> termsWithPrefix( String prefix )
+        throws SearchException
+    {
+        TreeSet<String> terms = new TreeSet<String>();
+        if ( segments != null )
+        {
+            try
+            {
+                for ( int i=0;i<segments.size();i++ )
+                {
+                    Segment seg = segments.get( i );
+                    addTerms( seg, seg.prefixRange(prefix), terms );
+                }
+            }
+            catch ( Exception e )
+            {
+                throw new SearchException( e );
+            }
+        }
+        else
+        {
+            Iterator<String> iter = map.keySet().iterator();
+            while ( iter.hasNext() )
+            {
+                String term = iter.next();
+                if ( term.startsWith(prefix) )
+                    terms.add( term );
+            }
+        }
+        return new ArrayList<String>( terms );
+    }
+    /**
+     * List the indexed terms in a range
+     * @param from the least term to include
+     * @param to the term to stop before or null for all the rest
+     * @return the terms in every segment in the range, in order
+     * @throws SearchException
+     */
+    public ArrayList<String> termsInRange( String from, String to )
+        throws SearchException
+    {
+        TreeSet<String> terms = new TreeSet<String>();
+        if ( segments != null )
+        {
+            try
+            {
+                for ( int i=0;i<segments.size();i++ )
+                {
+                    Segment seg = segments.get( i );
+                    addTerms( seg, seg.range(from,to), terms );
+                }
+            }
+            catch ( Exception e )
+            {
+                throw new SearchException( e );
+            }
+        }
+        else
+        {
+            Iterator<String> iter = map.keySet().iterator();
+            while ( iter.hasNext() )
+            {
+                String term = iter.next();
+                if ( term.compareTo(from) >= 0
+                    && (to == null || term.compareTo(to) < 0) )
+                    terms.add( term );
+            }
+        }
+        return new ArrayList<String>( terms );
+    }
+    /**
+     * Add a run of a segment's terms to a set
+     * @param seg the segment
+     * @param range the first ordinal and one past the last
+     * @param terms the set to add them to
+     * @throws IndexException
+     */
+    private static void addTerms( Segment seg, int[] range,
+        TreeSet<String> terms ) throws IndexException
+    {
+        TermCursor tc = seg.terms();
+        if ( tc.seek(range[0]) )
+        {
+            for ( int ord=range[0];ord<range[1];ord++ )
+            {
+                terms.add( tc.term() );
+                tc.next();
+            }
+        }
+    }
+    /**
+     * Move a cursor to the first document at or after a target that hasn't
+     * been deleted by an update
+     * @param cursor the cursor to advance
+     * @param target the least docId we want
+     * @return the docId reached or NO_MORE_DOCS
+     * @throws IndexException 
+     */
+    private int advanceLive( PostingsCursor cursor, int target ) 
+        throws IndexException
+    {
+        int docId = cursor.advance( target );
+        while ( deleted != null && docId != PostingsCursor.NO_MORE_DOCS 
+            && deleted.get(docId) )
+            docId = cursor.advance( deleted.nextClearBit(docId) );
+        return docId;
+    }
+    /**
+     * Find the locations in documents where all the search terms occur.
+     * The documents are found by leapfrogging the posting cursors of all 
+     * the terms from the rarest term, decoding only the blocks we need.
+     * For literal queries only documents where the terms make up the 
+     * phrase are kept, and only the positions that take part in it, as 
+     * checked by Phrase. So their scores and highlights are of the phrase,
+     * not of every occurrence of its terms. If the document has no 
+     * variants that check is exact and the match's first version is set.
+     * Documents deleted by updates are skipped.
+     * @param query the query to search for
+     * @return an array of matches, one per document
+     * @throws SearchException 
+     */
+    public Match[] find( Query query ) throws SearchException
+    {
+        try
+        {
+            int nTerms = query.terms.length;
+            if ( nTerms == 0 )
+                return new Match[0];
+            PostingsCursor[] cursors = new PostingsCursor[nTerms];
+            final int[] freqs = new int[nTerms];
+            Integer[] order = new Integer[nTerms];
+            for ( int i=0;i<nTerms;i++ )
+            {
+                Locations[] parts = getLocations(
+                    query.terms[i].toLowerCase() );
+                // all terms must occur somewhere
+                if ( parts == null )
+                    return new Match[0];
+                cursors[i] = new PostingsCursor( parts );
+                freqs[i] = cursors[i].docFreq();
+                order[i] = i;
+            }
+            // visit the terms from rarest to commonest by document frequency
+            Arrays.sort( order, new Comparator<Integer>() {
+                public int compare( Integer a, Integer b )
+                {
+                    return (freqs[a]<freqs[b])?-1:(freqs[a]>freqs[b])?1:0;
+                }
+            });
+            PostingsCursor[] sorted = new PostingsCursor[nTerms];
+            for ( int i=0;i<nTerms;i++ )
+                sorted[i] = cursors[order[i]];
+            MatchType type = MatchType.fromQuery(query);
+            ArrayList<Match> hits = new ArrayList<Match>();
+            int docId = advanceLive( sorted[0], 0 );
+            while ( docId != PostingsCursor.NO_MORE_DOCS )
+            {
+                int k = 1;
+                while ( k < nTerms )
+                {
+                    int next = sorted[k].advance( docId );
+                    if ( next == docId )
+                        k++;
+                    else if ( next == PostingsCursor.NO_MORE_DOCS )
+                    {
+                        // a commoner term has run out: nothing else can match
+                        docId = next;
+                        break;
+                    }
+                    else
+                    {
+                        // leap the rarest term forward and start again
+                        docId = advanceLive( sorted[0], next );
+                        k = 1;
+                        if ( docId == PostingsCursor.NO_MORE_DOCS )
+                            break;
+                    }
+                }
+                if ( docId == PostingsCursor.NO_MORE_DOCS )
+                    break;
+                // all terms are in docId: add them in query order
+                int[][] positions = new int[nTerms][];
+                for ( int i=0;i<nTerms;i++ )
+                    positions[i] = cursors[i].positions();
+                // literal queries: the terms must also make up the phrase
+                int[] spans = variants.get( docId );
+                if ( type == MatchType.LITERAL && nTerms > 1 )
+                    positions = Phrase.match( (LiteralQuery)query, 
+                        positions, spans );
+                if ( positions != null )
+                {
+                    Match hit = new Match( docId, type );
+                    for ( int i=0;i<nTerms;i++ )
+                        hit.addTerm( query.terms[i], positions[i] );
+                    // every version of a document without variants has it
+                    if ( type == MatchType.LITERAL && spans != null 
+                        && spans.length == 0 )
+                        hit.setFirstVersion( 1 );
+                    hits.add( hit );
+                }
+                docId = advanceLive( sorted[0], docId+1 );
+            }
+            Match[] res = new Match[hits.size()];
+            hits.toArray( res );
+            return res;
+        }
+        catch ( IndexException e )
+        {
+            throw new SearchException(e);
+        }
+    }
+    /**
+     * Index all the words of an MVD
+     * @param mvd the mvd to index
+     * @param table the terms where to store the words and their locations
+     * @param lang a ISO 2-letter language code
+     * @param docId the document identifier starting at 0
+     * @return the number of indexed words
+     */
+    int indexMVDWords( MVD mvd, TermTable table, String lang, int docId )
+    {
+        try
+        {
+            int mvdVersions = mvd.numVersions();
+            if ( mvdVersions>0 )
+            {
+                WordFinder wf = new WordFinder( mvd.getPairs(), table, 
+                    lang, projid, docId );
+                BitSet bs = new BitSet();
+				for ( int i=1;i<=mvdVersions;i++ )
+                    bs.set( i );
+                return wf.find(bs);
+            }
+        }
+        catch ( Exception e )
+        {
+            System.out.println(e.getMessage());
+        }
+        return 0;
+    }
+    /**
+     * Get the directory where a project's index files are kept
+     * @param projid the project identifier
+     * @return the directory under the index root
+     * @throws SearchException 
+     */
+    static File indexDir( String projid ) throws SearchException
+    {
+        if ( projid.contains("..") )
+            throw new SearchException("Invalid project id "+projid);
+        return new File( JettyServer.indexRoot, projid );
+    }
+    /**
+     * Get the file where a generation's full index segment is kept
+     * @param dir the generation's directory
+     * @return the segment file
+     */
+    static File segmentFile( File dir )
+    {
+        return new File( dir, SEGMENT_NAME );
+    }
+    /**
+     * Get the generation of a project's index that is being searched
+     * @param projid the project identifier
+     * @return its number, or 0 if the index was written before there 
+     * were generations or doesn't exist
+     * @throws SearchException 
+     */
+    public static long currentGeneration( String projid ) 
+        throws SearchException
+    {
+        File file = new File( indexDir(projid), CURRENT_NAME );
+        if ( !file.exists() )
+            return 0;
+        try
+        {
+            byte[] data = Files.readAllBytes( file.toPath() );
+            return Long.parseLong( new String(data,"UTF-8").trim() );
+        }
+        catch ( Exception e )
+        {
+            throw new SearchException( e );
+        }
+    }
+    /**
+     * Get the directory holding the files of one generation of an index
+     * @param projid the project identifier
+     * @param gen the generation
+     * @return the directory, which for generation 0 is the index 
+     * directory itself
+     * @throws SearchException 
+     */
+    static File generationDir( String projid, long gen ) 
+        throws SearchException
+    {
+        if ( gen == 0 )
+            return indexDir( projid );
+        else
+            return new File( indexDir(projid), GENERATION_PREFIX+gen );
+    }
+    /**
+     * Get the number of a generation from its directory name
+     * @param name the file name
+     * @return its number or -1 if it isn't a generation directory
+     */
+    private static long generationNumber( String name )
+    {
+        if ( name.startsWith(GENERATION_PREFIX) )
+        {
+            try
+            {
+                return Long.parseLong( name.substring(
+                    GENERATION_PREFIX.length()) );
+            }
+            catch ( NumberFormatException e )
+            {
+            }
+        }
+        return -1;
+    }
+    /**
+     * Start a new generation after all the others, including any left 
+     * behind by a failed build. Must be called with the write lock held.
+     * @param projid the project identifier
+     * @return the number of the new generation, whose directory exists
+     * @throws SearchException 
+     */
+    static long newGeneration( String projid ) throws SearchException
+    {
+        long gen = currentGeneration( projid );
+        String[] names = indexDir(projid).list();
+        if ( names != null )
+        {
+            for ( int i=0;i<names.length;i++ )
+                gen = Math.max( gen, generationNumber(names[i]) );
+        }
+        gen++;
+        File dir = generationDir( projid, gen );
+        if ( !dir.exists() && !dir.mkdirs() )
+            throw new SearchException("Couldn't create "+dir);
+        return gen;
+    }
+    /**
+     * Make a complete generation the one that is searched. The CURRENT 
+     * file is replaced in one step, so a reader sees either the old 
+     * generation or the new one, never a mixture. The generation before
+     * is kept for indices still reading it and older ones are removed.
+     * Must be called with the write lock held.
+     * @param projid the project identifier
+     * @param gen the new generation
+     * @throws SearchException 
+     */
+    static void publish( String projid, long gen ) throws SearchException
+    {
+        long old = currentGeneration( projid );
+        File file = new File( indexDir(projid), CURRENT_NAME );
+        File tmp = new File( indexDir(projid), CURRENT_NAME+".tmp" );
+        try
+        {
+            Files.write( tmp.toPath(), Long.toString(gen).getBytes("UTF-8") );
+            Files.move( tmp.toPath(), file.toPath(), 
+                StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE );
+        }
+        catch ( Exception e )
+        {
+            throw new SearchException( e );
+        }
+        String[] names = indexDir(projid).list();
+        for ( int i=0;names!=null&&i<names.length;i++ )
+        {
+            long n = generationNumber( names[i] );
+            if ( n >= 0 && n != gen && n != old )
+                removeGeneration( projid, n );
+        }
+        if ( old != 0 && gen != 0 )
+            removeGeneration( projid, 0 );
+    }
+    /**
+     * Delete the files of a generation that is no longer searched
+     * @param projid the project identifier
+     * @param gen the generation
+     * @throws SearchException 
+     */
+    static void removeGeneration( String projid, long gen ) 
+        throws SearchException
+    {
+        File dir = generationDir( projid, gen );
+        File[] updates = updateFiles( dir );
+        for ( int i=0;i<updates.length;i++ )
+            updates[i].delete();
+        segmentFile(dir).delete();
+        new File( dir, DELETED_NAME ).delete();
+        if ( gen != 0 )
+        {
+            // anything left behind by a failed write
+            File[] files = dir.listFiles();
+            for ( int i=0;files!=null&&i<files.length;i++ )
+                files[i].delete();
+            dir.delete();
+        }
+    }
+    /**
+     * Share a file of the current generation with a new one. Generations 
+     * are never changed once published, so a hard link will do.
+     * @param src the file in the current generation
+     * @param dir the directory of the new generation
+     * @throws SearchException 
+     */
+    static void linkInto( File src, File dir ) throws SearchException
+    {
+        File dst = new File( dir, src.getName() );
+        try
+        {
+            Files.createLink( dst.toPath(), src.toPath() );
+        }
+        catch ( Exception e )
+        {
+            try
+            {
+                // the file system doesn't do links
+                Files.copy( src.toPath(), dst.toPath(), 
+                    StandardCopyOption.REPLACE_EXISTING );
+            }
+            catch ( Exception e2 )
+            {
+                throw new SearchException( e2 );
+            }
+        }
+    }
+    /**
+     * Get the lock that must be held while changing a project's files
+     * @param projid the project identifier
+     * @return an object to synchronise on
+     */
+    static Object writeLock( String projid )
+    {
+        return writeLocks[(projid.hashCode()&0x7FFFFFFF)%writeLocks.length];
+    }
+    /**
+     * Get the number of an update segment from its name
+     * @param name the file name
+     * @return its number or -1 if it isn't an update segment
+     */
+    private static int updateNumber( String name )
+    {
+        if ( name.startsWith(UPDATE_PREFIX) && name.endsWith(UPDATE_SUFFIX) )
+        {
+            try
+            {
+                return Integer.parseInt( name.substring(UPDATE_PREFIX.length(),
+                    name.length()-UPDATE_SUFFIX.length()) );
+            }
+            catch ( NumberFormatException e )
+            {
+            }
+        }
+        return -1;
+    }
+    /**
+     * List the segments written by updates in the order they were written
+     * @param dir the directory of a generation
+     * @return an array of update segment files, possibly empty
+     */
+    static File[] updateFiles( File dir )
+    {
+        File[] files = dir.listFiles();
+        ArrayList<File> updates = new ArrayList<File>();
+        if ( files != null )
+        {
+            for ( int i=0;i<files.length;i++ )
+                if ( updateNumber(files[i].getName()) >= 0 )
+                    updates.add( files[i] );
+        }
+        File[] arr = new File[updates.size()];
+        updates.toArray( arr );
+        Arrays.sort( arr, new Comparator<File>() {
+            public int compare( File a, File b )
+            {
+                int na = updateNumber( a.getName() );
+                int nb = updateNumber( b.getName() );
+                return (na<nb)?-1:(na>nb)?1:0;
+            }
+        });
+        return arr;
+    }
+    /**
+     * Read the set of deleted documents
+     * @param dir the directory of a generation
+     * @return the deleted document numbers or null if there are none
+     * @throws SearchException 
+     */
+    static BitSet readDeleted( File dir ) throws SearchException
+    {
+        File file = new File( dir, DELETED_NAME );
+        if ( !file.exists() )
+            return null;
+        try
+        {
+            DataInputStream in = new DataInputStream( new BufferedInputStream(
+                new FileInputStream(file)) );
+            try
+            {
+                long[] words = new long[in.readInt()];
+                for ( int i=0;i<words.length;i++ )
+                    words[i] = in.readLong();
+                return BitSet.valueOf( words );
+            }
+            finally
+            {
+                in.close();
+            }
+        }
+        catch ( Exception e )
+        {
+            throw new SearchException( e );
+        }
+    }
+    /**
+     * Read the set of deleted documents from a copy of its file
+     * @param bb the bytes of the file
+     * @return the deleted document numbers
+     */
+    static BitSet readDeleted( ByteBuffer bb )
+    {
+        long[] words = new long[bb.getInt(0)];
+        for ( int i=0;i<words.length;i++ )
+            words[i] = bb.getLong( 4+i*8 );
+        return BitSet.valueOf( words );
+    }
+    /**
+     * Save the set of deleted documents, replacing the old file
+     * @param dir the directory of a generation
+     * @param deleted the deleted document numbers
+     * @throws SearchException 
+     */
+    static void writeDeleted( File dir, BitSet deleted ) 
+        throws SearchException
+    {
+        File file = new File( dir, DELETED_NAME );
+        File tmp = new File( dir, DELETED_NAME+".tmp" );
+        try
+        {
+            long[] words = deleted.toLongArray();
+            DataOutputStream out = new DataOutputStream( 
+                new BufferedOutputStream(new FileOutputStream(tmp)) );
+            out.writeInt( words.length );
+            for ( int i=0;i<words.length;i++ )
+                out.writeLong( words[i] );
+            out.close();
+            if ( file.exists() )
+                file.delete();
+            if ( !tmp.renameTo(file) )
+                throw new SearchException("Couldn't rename "+tmp);
+        }
+        catch ( SearchException se )
+        {
+            throw se;
+        }
+        catch ( Exception e )
+        {
+            throw new SearchException( e );
+        }
+    }
+    /**
+     * Record the state of the index in the database
+     * @param nDocs the number of live documents
+     * @param nTerms the number of terms in the full segment
+     * @throws SearchException 
+     */
+    void record( int nDocs, int nTerms ) throws SearchException
+    {
+        try
+        {
+            JSONObject jObj = new JSONObject();
+            jObj.put( JSONKeys.FORMAT, Segment.FORMAT );
+            jObj.put( Segment.NDOCS, nDocs );
+            jObj.put( Segment.NTERMS, nTerms );
+            jObj.put( Segment.GENERATION, generation );
+            Connection conn = Connector.getConnection();
+            JSONObject last = null;
+            if ( storeChunks )
+            {
+                String bson = conn.getFromDb( Database.INDICES, projid );
+                if ( bson != null )
+                    last = (JSONObject)JSONValue.parse( bson );
+                jObj.put( FILES, storeFiles(generationDir(projid,
+                    generation)) );
+                if ( last != null && last.containsKey(FILES) )
+                {
+                    JSONObject prev = new JSONObject();
+                    prev.put( Segment.GENERATION, 
+                        last.get(Segment.GENERATION) );
+                    prev.put( FILES, last.get(FILES) );
+                    jObj.put( PREVIOUS, prev );
+                }
+            }
+            conn.putToDb( Database.INDICES, this.projid, jObj.toJSONString() );
+            // nodes may still be reading the previous generation's chunks
+            if ( last != null && last.containsKey(PREVIOUS) )
+                removeChunks( (JSONObject)last.get(PREVIOUS) );
+        }
+        catch ( Exception e )
+        {
+            throw new SearchException(e);
+        }
+    }
+    /**
+     * Store the files of a generation in chunks
+     * @param dir the directory of the generation
+     * @return the table of each file's chunks, the full segment first
+     * @throws IndexException 
+     */
+    private JSONArray storeFiles( File dir ) throws IndexException
+    {
+        ArrayList<File> files = new ArrayList<File>();
+        files.add( segmentFile(dir) );
+        files.addAll( Arrays.asList(updateFiles(dir)) );
+        if ( new File(dir,DELETED_NAME).exists() )
+            files.add( new File(dir,DELETED_NAME) );
+        JSONArray tables = new JSONArray();
+        for ( int i=0;i<files.size();i++ )
+            tables.add( ChunkCache.put(getStore(),projid,generation,
+                files.get(i),chunkSize) );
+        return tables;
+    }
+    /**
+     * Remove the stored chunks of a generation
+     * @param gen the generation and the table of its files
+     * @throws IndexException 
+     */
+    private void removeChunks( JSONObject gen ) throws IndexException
+    {
+        long n = ((Number)gen.get(Segment.GENERATION)).longValue();
+        JSONArray tables = (JSONArray)gen.get( FILES );
+        for ( int i=0;i<tables.size();i++ )
+            ChunkCache.remove( getStore(), projid, n, 
+                (JSONObject)tables.get(i) );
+    }
+    /**
+     * Save the index as a binary segment in a new generation, make it 
+     * the one searched and record it in the database. This replaces any 
+     * updates made to the previous version.
+     * @throws SearchException 
+     */
+    public void save() throws SearchException
+    {
+        try
+        {
+            int nTerms = (built!=null)?builtTerms:map.size();
+            synchronized ( writeLock(projid) )
+            {
+                long gen = newGeneration( projid );
+                File dir = generationDir( projid, gen );
+                try
+                {
+                    if ( built != null )
+                        install( segmentFile(dir) );
+                    else
+                        SegmentWriter.write( segmentFile(dir), documents, 
+                            variants, map, 0 );
+                    publish( projid, gen );
+                }
+                catch ( Exception e )
+                {
+                    removeGeneration( projid, gen );
+                    throw e;
+                }
+                generation = gen;
+                record( documents.size(), nTerms );
+                Segment seg = Segment.open( segmentFile(dir) );
+                try
+                {
+                    log.append( seg.codecReport() );
+                }
+                finally
+                {
+                    seg.close();
+                }
+            }
+        }
+        catch ( SearchException se )
+        {
+            throw se;
+        }
+        catch ( Exception e )
+        {
+            throw new SearchException(e);
+        }
+    }
+    /**
+     * Load the current generation of the index for searching. Segments 
+     * are memory-mapped, so only the docid tables are read now, and stay 
+     * readable after a newer generation replaces them. Old indices stored 
+     * as serialised objects in the database are converted to segments.
+     * @param projid the project identifier
+     * @return the loaded index
+     * @throws SearchException 
+     */
+    public static Index load( String projid ) throws SearchException
+    {
+        try
+        {
+            File file = segmentFile( generationDir(projid,
+                currentGeneration(projid)) );
+            if ( !file.exists() )
+            {
+                JSONObject rec = readRecord( projid );
+                if ( rec.containsKey(FILES) )
+                    return loadChunks( projid, rec );
+                synchronized ( writeLock(projid) )
+                {
+                    // another thread may have converted it while we waited
+                    file = segmentFile( generationDir(projid,
+                        currentGeneration(projid)) );
+                    if ( !file.exists() )
+                    {
+                        rec = readRecord( projid );
+                        if ( rec.containsKey(FILES) )
+                            return loadChunks( projid, rec );
+                        loadSerialised( projid, rec ).save();
+                    }
+                }
+            }
+            Index ind = new Index( projid );
+            synchronized ( writeLock(projid) )
+            {
+                ind.generation = currentGeneration( projid );
+                File dir = generationDir( projid, ind.generation );
+                ind.segments = new ArrayList<Segment>();
+                ind.segments.add( Segment.open(segmentFile(dir)) );
+                File[] updates = updateFiles( dir );
+                for ( int i=0;i<updates.length;i++ )
+                    ind.segments.add( Segment.open(updates[i]) );
+                ind.deleted = readDeleted( dir );
+            }
+            ind.readDocuments();
+            return ind;
+        }
+        catch ( SearchException se )
+        {
+            throw se;
+        }
+        catch ( Exception e )
+        {
+            throw new SearchException(e);
+        }
+    }
+    /**
+     * Load an index kept in the database in chunks. Only the docid tables
+     * and term indices are fetched now. The rest of each segment is 
+     * fetched a chunk at a time as lookups need it, into a local copy in 
+     * the generation's directory that later loads reuse.
+     * @param projid the project identifier
+     * @param rec the index record listing the chunks of each file
+     * @return the loaded index
+     * @throws SearchException 
+     */
+    static Index loadChunks( String projid, JSONObject rec ) 
+        throws SearchException
+    {
+        try
+        {
+            Index ind = new Index( projid );
+            ind.generation = ((Number)rec.get(Segment.GENERATION)).longValue();
+            ind.chunked = true;
+            ind.segments = new ArrayList<Segment>();
+            File dir = generationDir( projid, ind.generation );
+            JSONArray tables = (JSONArray)rec.get( FILES );
+            synchronized ( writeLock(projid) )
+            {
+                for ( int i=0;i<tables.size();i++ )
+                {
+                    ChunkCache cache = new ChunkCache( getStore(), projid, 
+                        ind.generation, (JSONObject)tables.get(i), dir );
+                    if ( cache.getName().equals(DELETED_NAME) )
+                    {
+                        cache.ensureAll();
+                        ind.deleted = readDeleted( cache.getBuffer() );
+                    }
+                    else
+                        ind.segments.add( Segment.open(cache) );
+                }
+                removeOlderCopies( projid, ind.generation );
+            }
+            ind.readDocuments();
+            return ind;
+        }
+        catch ( SearchException se )
+        {
+            throw se;
+        }
+        catch ( Exception e )
+        {
+            throw new SearchException(e);
+        }
+    }
+    /**
+     * Delete the local copies of chunked generations older than the one 
+     * before a generation just loaded. Nodes that only read an index from
+     * the database never publish, so nothing else would remove them. The
+     * one before is kept, as publish keeps it, for indices still reading 
+     * it. Must be called with the write lock held.
+     * @param projid the project identifier
+     * @param gen the generation loaded
+     * @throws SearchException 
+     */
+    private static void removeOlderCopies( String projid, long gen ) 
+        throws SearchException
+    {
+        String[] names = indexDir(projid).list();
+        long before = -1;
+        for ( int i=0;names!=null&&i<names.length;i++ )
+        {
+            long n = generationNumber( names[i] );
+            if ( n < gen )
+                before = Math.max( before, n );
+        }
+        for ( int i=0;names!=null&&i<names.length;i++ )
+        {
+            long n = generationNumber( names[i] );
+            if ( n >= 0 && n < before )
+                removeGeneration( projid, n );
+        }
+    }
+    /**
+     * Join the docid tables of the loaded segments
+     * @throws SearchException 
+     */
+    private void readDocuments() throws SearchException
+    {
+        if ( segments.size() == 1 )
+        {
+            documents = segments.get(0).getDocuments();
+            variants = segments.get(0).getVariants();
+        }
+        else
+        {
+            documents = new ArrayList<String>();
+            variants = new ArrayList<int[]>();
+            for ( int i=0;i<segments.size();i++ )
+            {
+                Segment seg = segments.get( i );
+                if ( seg.getDocBase() != documents.size() )
+                    throw new SearchException("Segment "+i+" of "+projid
+                        +" doesn't follow on from the one before");
+                documents.addAll( seg.getDocuments() );
+                variants.addAll( seg.getVariants() );
+            }
+        }
+    }
+    /**
+     * Reindex some documents of a project without rebuilding the rest. 
+     * Their old versions are marked as deleted and the new ones written 
+     * to a new update segment, in a new generation that shares the 
+     * unchanged segments of the current one. Documents no longer in the 
+     * database are just deleted.
+     * @param projid the project identifier
+     * @param docids the documents that have changed
+     * @param pg the progress object to record progress
+     * @return the updated index with its log
+     * @throws SearchException 
+     */
+    public static Index update( String projid, String[] docids, Progress pg )
+        throws SearchException
+    {
+        DocumentSource src = null;
+        try
+        {
+            for ( int i=0;i<docids.length;i++ )
+                if ( !docids[i].startsWith(projid+"/") )
+                    throw new SearchException(docids[i]+" is not in "+projid);
+            synchronized ( writeLock(projid) )
+            {
+                src = openSource( projid, docids );
+                Index ind = update( projid, docids, src, pg );
+                ind.record( ind.documents.size()-ind.deleted.cardinality(),
+                    ind.segments.get(0).numTerms() );
+                return ind;
+            }
+        }
+        catch ( SearchException se )
+        {
+            throw se;
+        }
+        catch ( Exception e )
+        {
+            throw new SearchException(e);
+        }
+        finally
+        {
+            if ( src != null )
+                src.close();
+        }
+    }
+    /**
+     * Reindex some documents read from a source
+     * @param projid the project identifier
+     * @param docids the documents that have changed
+     * @param src the source of their new versions
+     * @param pg the progress object to record progress
+     * @return the updated index with its log
+     * @throws SearchException 
+     */
+    static Index update( String projid, String[] docids, DocumentSource src,
+        Progress pg ) throws SearchException
+    {
+        synchronized ( writeLock(projid) )
+        {
+            Index ind = load( projid );
+            if ( ind.chunked )
+                throw new SearchException("The index of "+projid+" is only"
+                    +" in the database: rebuild it here to update it");
+            // the new documents are added to our own copy of the table
+            ind.documents = new ArrayList<String>( ind.documents );
+            ind.variants = new ArrayList<int[]>( ind.variants );
+            if ( ind.deleted == null )
+                ind.deleted = new BitSet();
+            // delete the current versions
+            HashSet<String> changed = new HashSet<String>();
+            for ( int i=0;i<docids.length;i++ )
+                changed.add( docids[i] );
+            int nDeleted = 0;
+            for ( int i=0;i<ind.documents.size();i++ )
+            {
+                if ( changed.contains(ind.documents.get(i)) 
+                    && !ind.deleted.get(i) )
+                {
+                    ind.deleted.set( i );
+                    nDeleted++;
+                }
+            }
+            // index the new versions after all the old documents
+            int docBase = ind.documents.size();
+            ind.build( src, pg );
+            File old = generationDir( projid, ind.generation );
+            long gen = newGeneration( projid );
+            File dir = generationDir( projid, gen );
+            try
+            {
+                linkInto( segmentFile(old), dir );
+                File[] updates = updateFiles( old );
+                for ( int i=0;i<updates.length;i++ )
+                    linkInto( updates[i], dir );
+                if ( ind.documents.size() > docBase )
+                {
+                    int n = (updates.length==0)?1
+                        :updateNumber(updates[updates.length-1].getName())+1;
+                    File file = new File( dir, UPDATE_PREFIX+n+UPDATE_SUFFIX );
+                    if ( ind.built != null )
+                        ind.install( file );
+                    else
+                        SegmentWriter.write( file, ind.documents.subList(
+                            docBase,ind.documents.size()), ind.variants.subList(
+                            docBase,ind.variants.size()), ind.map, docBase );
+                }
+                writeDeleted( dir, ind.deleted );
+                publish( projid, gen );
+            }
+            catch ( Exception e )
+            {
+                removeGeneration( projid, gen );
+                if ( e instanceof SearchException )
+                    throw (SearchException)e;
+                else
+                    throw new SearchException( e );
+            }
+            ind.generation = gen;
+            ind.log.append("Deleted "+nDeleted+" old documents\n");
+            return ind;
+        }
+    }
+    /**
+     * Check if a project has updates that could be merged
+     * @param projid the project identifier
+     * @return true if it has update segments or deleted documents
+     * @throws SearchException 
+     */
+    public static boolean hasUpdates( String projid ) throws SearchException
+    {
+        File dir = generationDir( projid, currentGeneration(projid) );
+        return updateFiles(dir).length > 0 
+            || new File(dir,DELETED_NAME).exists();
+    }
+    /**
+     * Merge a project's full segment and its updates into a new full 
+     * segment in a new generation, dropping deleted documents and 
+     * renumbering the rest
+     * @param projid the project identifier
+     * @throws SearchException 
+     */
+    public static void merge( String projid ) throws SearchException
+    {
+        synchronized ( writeLock(projid) )
+        {
+            Index ind = mergeUpdates( projid );
+            if ( ind != null )
+                ind.record( ind.documents.size(), 
+                    ind.segments.get(0).numTerms() );
+        }
+    }
+    /**
+     * Merge the segment files of a project
+     * @param projid the project identifier
+     * @return the merged index or null if there was nothing to merge
+     * @throws SearchException 
+     */
+    static Index mergeUpdates( String projid ) throws SearchException
+    {
+        try
+        {
+            synchronized ( writeLock(projid) )
+            {
+                if ( !hasUpdates(projid) )
+                    return null;
+                Index ind = load( projid );
+                long gen = newGeneration( projid );
+                try
+                {
+                    SegmentMerger.merge( ind.segments, ind.deleted, 
+                        segmentFile(generationDir(projid,gen)) );
+                    publish( projid, gen );
+                }
+                catch ( Exception e )
+                {
+                    removeGeneration( projid, gen );
+                    throw e;
+                }
+                return load( projid );
+            }
+        }
+        catch ( SearchException se )
+        {
+            throw se;
+        }
+        catch ( Exception e )
+        {
+            throw new SearchException(e);
+        }
+    }
+    /**
+     * Read the record of an index from the database
+     * @param projid the project identifier
+     * @return the record
+     * @throws SearchException 
+     */
+    static JSONObject readRecord( String projid ) throws SearchException
+    {
+        try
+        {
+            Connection conn = Connector.getConnection();
+            String bson = conn.getFromDb( Database.INDICES, projid );
+            if ( bson == null )
+                throw new SearchException("No index for "+projid);
+            return (JSONObject)JSONValue.parse(bson);
+        }
+        catch ( SearchException se )
+        {
+            throw se;
+        }
+        catch ( Exception e )
+        {
+            throw new SearchException(e);
+        }
+    }
+    /**
+     * Load an index stored as a serialised object in the database
+     * @param projid the project identifier
+     * @param jObj its record
+     * @return the loaded index
+     * @throws SearchException 
+     */
+    static Index loadSerialised( String projid, JSONObject jObj ) 
+        throws SearchException
+    {
+        try
+        {
+            if ( !jObj.containsKey(JSONKeys.BODY) )
+                throw new SearchException("Index segment for "+projid
+                    +" not found in "+JettyServer.indexRoot);
+            byte[] data = Base64.decode( (String)jObj.get(JSONKeys.BODY) );
+            ByteArrayInputStream bis = new ByteArrayInputStream(data);
+            ObjectInputStream in = new ObjectInputStream( bis );
+            Index ind = (Index)in.readObject();
+            in.close();
+            return ind;
+        }
+        catch ( SearchException se )
+        {
+            throw se;
+        }
+        catch ( Exception e )
+        {
+            throw new SearchException(e);
+        }
+    }
+    /**
+     * Read in an index saved as a serialised object, as they all once 
+     * were, and give it an empty log and unknown variants, which aren't 
+     * saved
+     */
+    private void readObject( ObjectInputStream in ) 
+        throws IOException, ClassNotFoundException
+    {
+        in.defaultReadObject();
+        log = new StringBuilder();
+        variants = new ArrayList<int[]>( documents.size() );
+        for ( int i=0;i<documents.size();i++ )
+            variants.add( null );
+    }
+    /**
+     * Estimate the memory occupied by this index once loaded: its term 
+     * map and tables and, if it was loaded from segments, their mapped 
+     * files, which become resident as queries read them
+     * @return an approximate size in bytes
+     */
+    public long memorySize()
+    {
+        long size = 0;
+        for ( Map.Entry<String,Locations> e : map.entrySet() )
+            size += 64 + 2*e.getKey().length() + e.getValue().memorySize();
+        if ( segments != null )
+        {
+            for ( int i=0;i<segments.size();i++ )
+                size += segments.get(i).memorySize();
+            // several segments' tables are joined into lists of our own
+            if ( segments.size() > 1 )
+                size += 8L*(documents.size()+variants.size());
+        }
+        else
+        {
+            for ( int i=0;i<documents.size();i++ )
+                size += 48 + 2*documents.get(i).length();
+            for ( int i=0;i<variants.size();i++ )
+                if ( variants.get(i) != null )
+                    size += 16 + 4*variants.get(i).length;
+        }
+        return size;
+    }
+    /**
+     * Get the generation this index was loaded from or saved as
+     * @return its number, 0 if it predates generations
+     */
+    public long getGeneration()
+    {
+        return this.generation;
+    }
+    public String getLog()
+    {
+        return this.log.toString();
+    }
+    /**
+     * Get the database string docid from its numeric index
+     * @param docId the index into the documents array
+     */
+    public String getDocid( int docId )
+    {
+        return this.documents.get( docId );
+    }
+    /**
+     * List the terms of a table and their positions
+     * @param map the table's term map
+     * @return each term with locations and its positions
+     * @throws IndexException 
+     */
+    private static TreeMap<String,String> positions( 
+        HashMap<String,Locations> map ) throws IndexException
+    {
+        TreeMap<String,String> terms = new TreeMap<String,String>();
+        for ( Map.Entry<String,Locations> e : map.entrySet() )
+        {
+            Postings p = e.getValue().postings();
+            if ( p.size() > 0 )
+                terms.put( e.getKey(), Arrays.toString(p.getPositions()) );
+        }
+        return terms;
+    }
+    /**
+     * Check that TextWordFinder, reading spans, finds the same terms at 
+     * the same positions as reading tokens with a StringTokenizer did, 
+     * over a sample of several languages with words broken by hyphens at
+     * line-ends, page numbers and punctuation, and over random mixtures 
+     * of its pieces
+     * @return true if it does
+     * @throws Exception 
+     */
+    private static boolean tokenizes() throws Exception
+    {
+        String[] pieces = {"The ","Cat ","sat ","ON ","don't ","it’s ",
+            "xii\n","iv ","IV\n","12 ","12th ","end-\nless ","End-\nless ",
+            "end-less ","Dog-","-","-\n","-\r\n","-\r"," ","\n","\r\n",
+            "\t",", ",". ","(word) ","\"quoted\" ","Élan ","naïve ",
+            "Straßen-\nbahn ","Zürich ","città ","λόγος ","Москва ",
+            "MacDonald ","ab1 ","vi-\nii ","word--word ","zzyzx-\nroad ",
+            "night-\nzzyzx ","zzyzx-\r\nxii\n","  "};
+        Hyphenator h = Hyphenator.forProject( "english/tokens", "en" );
+        HashSet<String> sw = new HashSet<String>();
+        sw.add( "the" );
+        Random r = new Random( 7 );
+        boolean ok = true;
+        int nWords = 0;
+        for ( int t=0;t<2000&&ok;t++ )
+        {
+            StringBuilder sb = new StringBuilder();
+            if ( t == 0 )
+                for ( int i=0;i<pieces.length;i++ )
+                    sb.append( pieces[i] );
+            else
+                for ( int i=r.nextInt(40);i>0;i-- )
+                    sb.append( pieces[r.nextInt(pieces.length)] );
+            String text = sb.toString();
+            HashMap<String,Locations> before 
+                = new HashMap<String,Locations>();
+            HashMap<String,Locations> after 
+                = new HashMap<String,Locations>();
+            TermTable t1 = new TermTable( before, sw );
+            TermTable t2 = new TermTable( after, sw );
+            // so that some hyphens are kept because already indexed
+            t1.intern( "end-less" );
+            t2.intern( "end-less" );
+            int n1 = new TextWordFinder.StringTokenizerFinder(text,t1,h,
+                0).find();
+            int n2 = new TextWordFinder(text,t2,"en","english/tokens",
+                0).find();
+            ok = n1 == n2 && positions(before).equals(positions(after));
+            nWords += n2;
+        }
+        return ok && nWords > 0;
+    }
+    /**
+     * Make an MVD out of pairs
+     * @param nVersions the number of versions
+     * @param texts the text of each pair
+     * @param versions the versions of each pair, as a string of digits
+     * @return the MVD
+     */
+    private static MVD makeMVD( int nVersions, String[] texts, 
+        String[] versions ) throws Exception
+    {
+        MVD mvd = new MVD( "phrase test" );
+        mvd.setEncoding( "UTF-8" );
+        for ( int v=1;v<=nVersions;v++ )
+            mvd.newVersion( "v"+v, "Version "+v, "Base", (short)0, false );
+        for ( int i=0;i<texts.length;i++ )
+        {
+            BitSet bs = new BitSet();
+            for ( int j=0;j<versions[i].length();j++ )
+                bs.set( versions[i].charAt(j)-'0' );
+            mvd.getPairs().add( new Pair(bs,texts[i].toCharArray()) );
+        }
+        return mvd;
+    }
+    /**
+     * Find the match of a document
+     * @param ind the index
+     * @param matches the matches of a query
+     * @param docid the document's identifier
+     * @return its match or null
+     */
+    private static Match matchOf( Index ind, Match[] matches, String docid )
+    {
+        for ( int i=0;i<matches.length;i++ )
+            if ( ind.getDocid(matches[i].docId).equals(docid) )
+                return matches[i];
+        return null;
+    }
+    /**
+     * Check that a phrase is found when another version's variant falls 
+     * between its terms, but not when its terms are in the wrong order or
+     * too far apart in the text every version shares, and that only the 
+     * occurrences of the terms that make up the phrase are kept
+     * @return true if they are
+     * @throws Exception 
+     */
+    private static boolean phrasesFound() throws Exception
+    {
+        // version 1 reads "vertical ravines", version 2 doesn't
+        MVD split = makeMVD( 2, new String[]{
+            "This is the peninsula of Azuera, cut about by vertical ",
+            "and exceedingly steep and perilous ",
+            "ravines. It lies far out to sea."}, 
+            new String[]{"12","2","12"} );
+        MVD reversed = makeMVD( 1, new String[]{
+            "ravines cut about by vertical cliffs"}, 
+            new String[]{"1"} );
+        // both versions read the words between the terms
+        MVD apart = makeMVD( 2, new String[]{
+            "vertical ",
+            "and exceedingly ",
+            "walls of rock above the deep ravines"}, 
+            new String[]{"12","1","12"} );
+        MemoryDocumentSource src = new MemoryDocumentSource();
+        src.add( "english/phrase/split", Formats.MVD_TEXT, 
+            MVDFile.externalise(split) );
+        src.add( "english/phrase/reversed", Formats.MVD_TEXT, 
+            MVDFile.externalise(reversed) );
+        src.add( "english/phrase/apart", Formats.MVD_TEXT, 
+            MVDFile.externalise(apart) );
+        src.add( "english/phrase/text", Formats.TEXT, 
+            "Vertical cliffs over ravines, then vertical ravines\n" );
+        src.add( "english/phrase/far", Formats.TEXT, 
+            "vertical cliffs and walls of rock and then ravines\n" );
+        Index ind = new Index( "english/phrase" );
+        ind.build( src, new Progress() );
+        LiteralQuery q = new LiteralQuery( "\"vertical ravines\"", "en" );
+        Match[] matches = ind.find( q );
+        Match m = matchOf( ind, matches, "english/phrase/split" );
+        Match t = matchOf( ind, matches, "english/phrase/text" );
+        boolean ok = matches.length == 2 && m != null && t != null;
+        if ( ok )
+        {
+            // the MVD is needed to say which versions have the phrase
+            BitSet bs = split.find( q.original, 
+                m.firstPositionOfTerm("vertical"), "vertical" );
+            ok = m.getFirstVersion() == 0 && bs.get( 1 ) && !bs.get( 2 );
+            // but a text has only one version and the phrase is in it
+            // once, so that is all that is highlighted
+            int at = "Vertical cliffs over ravines, then ".length();
+            ok &= t.getFirstVersion() == 1 
+                && Arrays.equals( t.getTermPositions(0), new int[]{at} )
+                && Arrays.equals( t.getTermPositions(1), 
+                    new int[]{at+"vertical ".length()} );
+        }
+        return ok;
+    }
+    /**
+     * Get the documents a term was indexed in
+     * @param ind the index
+     * @param term the term
+     * @return the docids, whether they are in its map or built segment
+     * @throws Exception 
+     */
+    private static TreeSet<String> docsOf( Index ind, String term ) 
+        throws Exception
+    {
+        TreeSet<String> docs = new TreeSet<String>();
+        Locations[] parts;
+        if ( ind.built != null )
+        {
+            // a spilled build's terms are in the segment merged from runs
+            Segment seg = Segment.open( ind.built );
+            Locations locs = seg.lookup( term );
+            parts = (locs==null)?null:new Locations[]{locs};
+            seg.close();
+        }
+        else
+            parts = ind.getLocations( term );
+        for ( int i=0;parts!=null&&i<parts.length;i++ )
+        {
+            Postings p = parts[i].postings();
+            for ( int j=0;j<p.size();j++ )
+                docs.add( ind.getDocid(p.docId(j)) );
+        }
+        return docs;
+    }
+    /**
+     * Check that "end-less" broken at a line-end is only indexed with 
+     * its hyphen after a document that has it unbroken, whatever the 
+     * number of threads and whether the build spills to disk
+     * @return true if it is
+     * @throws Exception 
+     */
+    private static boolean hyphenationsIndependent() throws Exception
+    {
+        int threads = buildThreads;
+        long memory = buildMemory;
+        try
+        {
+            TreeSet<String> before = new TreeSet<String>();
+            TreeSet<String> after = new TreeSet<String>();
+            boolean ok = true;
+            // threads and buildMemory: a byte a worker spills every document
+            int[][] settings = {{1,0},{4,0},{4,4}};
+            for ( int k=0;k<settings.length;k++ )
+            {
+                buildThreads = settings[k][0];
+                buildMemory = settings[k][1];
+                MemoryDocumentSource src = new MemoryDocumentSource();
+                for ( int d=0;d<40;d++ )
+                {
+                    String docid = "english/hyphen/doc"+(10+d);
+                    if ( d == 20 )
+                        src.add( docid, Formats.TEXT, 
+                            "an end-less road\n" );
+                    else
+                    {
+                        src.add( docid, Formats.TEXT, 
+                            "a night without end-\nless stars\n" );
+                        ((d<20)?before:after).add( docid );
+                    }
+                }
+                Index ind = new Index( "english/hyphen" );
+                ind.build( src, new Progress() );
+                ok &= docsOf(ind,"endless").equals(before)
+                    && docsOf(ind,"end-less").size() == after.size()+1
+                    && (ind.built != null) == (settings[k][1] > 0);
+                before.clear();
+                after.clear();
+            }
+            File dir = indexDir( "english/hyphen" );
+            String[] left = dir.list();
+            for ( int i=0;left!=null&&i<left.length;i++ )
+                new File( dir, left[i] ).delete();
+            dir.delete();
+            return ok;
+        }
+        finally
+        {
+            buildThreads = threads;
+            buildMemory = memory;
+        }
+    }
+    /**
+     * Check that a build spilling every document to its own run makes 
+     * the same segment, byte for byte, as one kept in memory, and that 
+     * no runs are left behind
+     * @return true if it does
+     * @throws Exception 
+     */
+    private static boolean spillsSame() throws Exception
+    {
+        int threads = buildThreads;
+        long memory = buildMemory;
+        try
+        {
+            String projid = "english/spill";
+            BenchCorpus corpus = new BenchCorpus( projid, 40, 3, 400, 1L );
+            buildThreads = 1;
+            buildMemory = 0;
+            Index whole = new Index( projid );
+            whole.build( corpus.source(), new Progress() );
+            File single = new File( JettyServer.indexRoot, "single.seg" );
+            SegmentWriter.write( single, whole.documents, whole.variants,
+                whole.map, 0 );
+            buildThreads = 4;
+            // a byte for each worker, so every document is spilled
+            buildMemory = 4;
+            Index spilled = new Index( projid );
+            spilled.build( corpus.source(), new Progress() );
+            boolean ok = spilled.built != null && Arrays.equals(
+                Files.readAllBytes(single.toPath()),
+                Files.readAllBytes(spilled.built.toPath()) );
+            single.delete();
+            if ( spilled.built != null )
+                spilled.built.delete();
+            String[] left = indexDir( projid ).list();
+            ok &= left != null && left.length == 0;
+            indexDir( projid ).delete();
+            return ok;
+        }
+        finally
+        {
+            buildThreads = threads;
+            buildMemory = memory;
+        }
+    }
+    /**
+     * Make a small index of one document
+     * @param projid the project identifier
+     * @return the index
+     * @throws SearchException
+     */
+    private static Index makeIndex( String projid ) throws SearchException
+    {
+        MemoryDocumentSource src = new MemoryDocumentSource();
+        src.add( projid+"/doc", Formats.TEXT, "a few words to index" );
+        Index ind = new Index( projid );
+        ind.build( src, new Progress() );
+        return ind;
+    }
+    /**
+     * Check that IndexRegistry evicts the least recently used indices 
+     * first and still keeps an index bigger than its budget
+     * @return true if it does
+     * @throws Exception 
+     */
+    private static boolean registryEvicts() throws Exception
+    {
+        String[] projids = {"english/a","english/b","english/c",
+            "english/d"};
+        Index[] inds = new Index[projids.length];
+        for ( int i=0;i<projids.length;i++ )
+            inds[i] = makeIndex( projids[i] );
+        long size = inds[0].memorySize();
+        IndexRegistry.setMaxBytes( size*3 );
+        for ( int i=0;i<3;i++ )
+            IndexRegistry.put( projids[i], inds[i] );
+        // a is now more recently used than b
+        boolean ok = IndexRegistry.get(projids[0]) == inds[0];
+        IndexRegistry.put( projids[3], inds[3] );
+        ok &= IndexRegistry.isResident(projids[0]) 
+            && !IndexRegistry.isResident(projids[1])
+            && IndexRegistry.isResident(projids[2]) 
+            && IndexRegistry.isResident(projids[3]) 
+            && IndexRegistry.residentBytes() == size*3;
+        IndexRegistry.setMaxBytes( size/2 );
+        ok &= IndexRegistry.residentBytes() == 0;
+        IndexRegistry.put( projids[1], inds[1] );
+        ok &= IndexRegistry.isResident(projids[1]);
+        IndexRegistry.invalidate( projids[1] );
+        ok &= !IndexRegistry.isResident(projids[1]) 
+            && IndexRegistry.residentBytes() == 0;
+        // an index loaded from a segment counts the mapped file too
+        inds[0].save();
+        Index loaded = load( projids[0] );
+        File dir = generationDir( projids[0], loaded.getGeneration() );
+        ok &= loaded.memorySize() > segmentFile(dir).length();
+        removeGeneration( projids[0], loaded.getGeneration() );
+        new File( indexDir(projids[0]), CURRENT_NAME ).delete();
+        indexDir( projids[0] ).delete();
+        return ok;
+    }
+    /**
+     * Check that an index stored as a serialised object is converted to a
+     * segment on loading, once however many threads load it at once, and
+     * finds what it found before
+     * @return true if it was
+     * @throws Exception 
+     */
+    private static boolean migrates() throws Exception
+    {
+        final String projid = "english/migrate";
+        MemoryConnection conn = new MemoryConnection();
+        MemoryConnection.install( conn );
+        MemoryDocumentSource src = new MemoryDocumentSource();
+        src.add( projid+"/azuera", Formats.TEXT, "The peninsula of Azuera "
+            +"is cut about by vertical ravines and precipices\n" );
+        src.add( projid+"/sulaco", Formats.TEXT, "The sugar-cane grows on "
+            +"the estancias by the sea near the ravines\n" );
+        Index old = new Index( projid );
+        old.build( src, new Progress() );
+        // store it as Index.save once did
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream( bos );
+        out.writeObject( old );
+        out.close();
+        JSONObject jObj = new JSONObject();
+        jObj.put( JSONKeys.BODY, Base64.encodeBytes(bos.toByteArray()) );
+        conn.putToDb( Database.INDICES, projid, jObj.toJSONString() );
+        ExecutorService pool = Executors.newFixedThreadPool( 4 );
+        ArrayList<Future<Index>> loads = new ArrayList<Future<Index>>();
+        for ( int i=0;i<4;i++ )
+        {
+            loads.add( pool.submit(new Callable<Index>() {
+                public Index call() throws Exception
+                {
+                    return Index.load( projid );
+                }
+            }) );
+        }
+        pool.shutdown();
+        Index ind = loads.get(0).get();
+        boolean ok = ind.segments != null;
+        for ( int i=1;i<loads.size();i++ )
+            ok &= loads.get(i).get().getGeneration() == ind.getGeneration();
+        String[] queries = {"ravines","vertical ravines","estancias sea",
+            "peninsula sea"};
+        for ( int i=0;i<queries.length;i++ )
+        {
+            BooleanQuery q = new BooleanQuery( queries[i], "en" );
+            TreeSet<String> expected = new TreeSet<String>();
+            TreeSet<String> found = new TreeSet<String>();
+            Match[] a = old.find( q );
+            Match[] b = ind.find( q );
+            for ( int j=0;j<a.length;j++ )
+                expected.add( old.getDocid(a[j].docId) );
+            for ( int j=0;j<b.length;j++ )
+                found.add( ind.getDocid(b[j].docId) );
+            ok &= expected.equals( found ) && (i==3)==expected.isEmpty();
+        }
+        // and loads from its segment the next time
+        ok &= Index.load(projid).getGeneration() == ind.getGeneration();
+        // converted just once, into a single generation
+        String[] made = indexDir( projid ).list();
+        ok &= made != null && made.length == 2;
+        removeGeneration( projid, ind.getGeneration() );
+        new File( indexDir(projid), CURRENT_NAME ).delete();
+        indexDir( projid ).delete();
+        return ok;
+    }
+    /**
+     * Run the self-checks that need documents and a database. The 
+     * stand-ins for them in search.source are used only here.
+     */
+    public static void main( String[] args )
+    {
+        try
+        {
+            File root = Files.createTempDirectory( "index-check" ).toFile();
+            JettyServer.indexRoot = root.getAbsolutePath();
+            MemoryConnection.install( new MemoryConnection() );
+            System.out.println( (tokenizes())
+                ?"Same terms and positions as the StringTokenizer finder"
+                :"Tokenizer test failed" );
+            System.out.println( (phrasesFound())
+                ?"Phrase split by a variant found":"Phrase test failed" );
+            System.out.println( (hyphenationsIndependent())
+                ?"Hyphenations independent of threads"
+                :"Hyphenation test failed" );
+            System.out.println( (spillsSame())
+                ?"Spilled build same as one in memory":"Spill test failed" );
+            System.out.println( (registryEvicts())
+                ?"Least recently used indices evicted"
+                :"Eviction test failed" );
+            System.out.println( (migrates())?"Serialised index converted"
+                :"Serialised index conversion failed" );
+            new File( root, "english" ).delete();
+            root.delete();
+        }
+        catch ( Exception e )
+        {
+            e.printStackTrace( System.out );
         }
     }
 }
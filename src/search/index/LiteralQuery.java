@@ -27,17 +27,36 @@ public class LiteralQuery extends Query
     /** maximum distance between end of one term and start of another */
     public static int MAX_DISTANCE = 10;
     public String original;
+    /** the characters of the stopwords left out before each term */
+    int[] skipped;
     public LiteralQuery( String quoted, String lang )
     {
         ArrayList<String> termArray = new ArrayList<String>();
         original = Utils.stripQuotes(quoted); 
         String[] parts = original.split(" ");
+        skipped = new int[parts.length];
+        int stopped = 0;
         for ( int i=0;i<parts.length;i++ )
         {
             if ( parts[i].length()>0&&!Utils.isStopWord(parts[i],lang) )
+            {
+                skipped[termArray.size()] = stopped;
                 termArray.add(parts[i]);
+                stopped = 0;
+            }
+            else if ( parts[i].length() > 0 )
+                stopped += parts[i].length()+1;
         }
         terms = new String[termArray.size()];
         termArray.toArray(terms);
     }
+    /**
+     * Get the most characters allowed between a term and the one before
+     * @param i the index of the term, from 1
+     * @return MAX_DISTANCE and room for the stopwords between them
+     */
+    int maxGap( int i )
+    {
+        return MAX_DISTANCE+skipped[i];
+    }
 }
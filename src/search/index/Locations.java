@@ -23,10 +23,11 @@ import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.Serializable;
-import java.util.ArrayList;
-import java.util.Arrays;
+import java.lang.ref.SoftReference;
 import search.exception.IndexException;
-import me.lemire.integercompression.differential.*;
+import me.lemire.integercompression.differential.IntegratedIntCompressor;
+import me.lemire.integercompression.IntWrapper;
+import java.util.Arrays;
 import java.util.Random;
 import search.exception.SearchException;
 /**
@@ -36,98 +37,350 @@ import search.exception.SearchException;
 public class Locations implements Serializable 
 {
     static final long serialVersionUID = 5983741889767318458L;
-    /** the FastPFor compressed docid list for this word */
+    /** number of postings in each compressed block */
+    static final int BLOCK_SIZE = 128;
+    /** the number of postings followed by the compressed docid blocks */
     int[] compressedDocids; 
-    /** the UnsortedIntCompressor list of word-locations in docis */
+    /** the UnsortedIntCompressor blocks of word-locations in docids */
     int[] compressedOffsets;
-    /** locs used to look up words but constructed lazily when needed */
-    transient ArrayList<Location> locs;
+    /** for each block its last docid and the start of its docids and 
+     * offsets, or null for indices saved before postings had blocks */
+    int[] skips;
+    /** the number of distinct documents, or 0 if not yet counted */
+    int docFreq;
+    /** the PostingsCodec tag of the codecs the blocks were compressed 
+     * with, 0 for the default */
+    int codec;
+    /** postings being added to while indexing, otherwise null */
+    transient PostingsBuilder building;
+    /** postings decoded on first use, which the GC may drop again */
+    transient volatile SoftReference<Postings> decoded;
     Locations()
     {
     }
     /**
-     * Get the current size of this locations object
+     * Get the current size of this locations object without decoding it
      * @return an int
      */
     int size()
     {
-        return (locs==null)?0:locs.size();
+        if ( building != null )
+            return building.size();
+        else if ( compressedDocids == null )
+            return 0;
+        else if ( skips != null || compressedDocids.length > 1 )
+            return compressedDocids[0];
+        else
+            return 1;
     }
     /**
-     * Build a location from the two indices
-     * @param index the position in the index
-     * @return a Location object
+     * Get the number of separately decodable blocks
+     * @return the number of blocks, 1 if uncompressed or in the old format
      */
-    Location location( int index )
+    int numBlocks()
     {
-        return locs.get(index);
+        if ( building != null || skips == null )
+            return (size()>0)?1:0;
+        else
+            return skips.length/3;
     }
     /**
-     * Do we contain the given location? Only works once loaded.
-     * @param loc the loc object
-     * @return true if it is there
+     * Get the last docid in a block without decoding it
+     * @param b the block number
+     * @return the greatest docid in that block
+     * @throws IndexException 
      */
-    boolean contains( Location loc )
+    int lastDocId( int b ) throws IndexException
     {
-        if ( locs != null )
+        if ( building != null || skips == null )
         {
-            // ordinary binary search
-            int top = 0;
-            int bottom = locs.size()-1;
-            while ( top <= bottom )
+            Postings p = block( 0 );
+            return p.docId(p.size()-1);
+        }
+        else
+            return skips[b*3];
+    }
+    /**
+     * Decode a single block of postings
+     * @param b the block number
+     * @return the postings in that block, sorted
+     * @throws IndexException 
+     */
+    Postings block( int b ) throws IndexException
+    {
+        if ( building != null )
+        {
+            building.sort();
+            return building;
+        }
+        else if ( skips == null )
+            return postings();
+        else
+        {
+            int[] docids = blockDocIds( b );
+            return new Postings( docids, blockPositions(b,docids.length) );
+        }
+    }
+    /**
+     * Decode just the docids of a block, leaving its offsets compressed
+     * @param b the block number
+     * @return the docids of that block in ascending order
+     * @throws IndexException 
+     */
+    int[] blockDocIds( int b ) throws IndexException
+    {
+        if ( building != null || skips == null )
+            return block(0).getDocIds();
+        int n = (b==skips.length/3-1)
+            ? compressedDocids[0]-b*BLOCK_SIZE : BLOCK_SIZE;
+        int docStart = skips[b*3+1];
+        int docEnd = (b*3+4<skips.length)
+            ? skips[b*3+4] : compressedDocids.length;
+        return PostingsCodec.get().uncompressDocIds( 
+            PostingsCodec.docCodec(codec), compressedDocids, docStart, 
+            docEnd-docStart, n, (b>0)?skips[b*3-3]:0 );
+    }
+    /**
+     * Decode just the word-offsets of a block
+     * @param b the block number
+     * @param n the number of postings in the block
+     * @return the offsets of that block, parallel to its docids
+     * @throws IndexException 
+     */
+    int[] blockPositions( int b, int n ) throws IndexException
+    {
+        if ( building != null || skips == null )
+            return block(0).getPositions();
+        int posStart = skips[b*3+2];
+        int posEnd = (b*3+5<skips.length)
+            ? skips[b*3+5] : compressedOffsets.length;
+        int[] offsets = PostingsCodec.get().uncompressOffsets( 
+            PostingsCodec.offsetCodec(codec), PostingsCodec.docDeltas(codec),
+            compressedOffsets, posStart, posEnd-posStart, n );
+        if ( offsets.length != n )
+            throw new IndexException("offsets length ("+offsets.length
+                +") not the same as docids ("+n+")");
+        return offsets;
+    }
+    /**
+     * Get the number of distinct documents the term occurs in
+     * @return the document frequency
+     * @throws IndexException 
+     */
+    int docFreq() throws IndexException
+    {
+        if ( building == null && docFreq > 0 )
+            return docFreq;
+        else
+        {
+            // still indexing or saved before we kept the count
+            Postings p = (building!=null)?block(0):postings();
+            return countDocs( p );
+        }
+    }
+    /**
+     * Count the distinct documents in some sorted postings
+     * @param p the postings
+     * @return the number of different docIds
+     */
+    private static int countDocs( Postings p )
+    {
+        int n = 0;
+        for ( int i=0;i<p.size();i++ )
+            if ( i == 0 || p.docId(i) != p.docId(i-1) )
+                n++;
+        return n;
+    }
+    /**
+     * Get the postings, decoding them if needed
+     * @return the postings, sorted by document and position once loaded
+     * @throws IndexException 
+     */
+    Postings postings() throws IndexException
+    {
+        if ( building != null )
+            return building;
+        else if ( compressedDocids == null )
+            return new Postings();
+        else
+        {
+            // two threads may decode at once but the results are the same
+            SoftReference<Postings> ref = decoded;
+            Postings p = (ref==null)?null:ref.get();
+            if ( p == null )
             {
-                int mid = (top+bottom)/2;
-                Location midLoc = locs.get(mid);
-                int res =  loc.compareTo(midLoc);
-                if ( res<0 )
-                    bottom = mid-1;
-                else if ( res > 0 )
-                    top = mid+1;
-                else
-                    return true;
+                p = decompress();
+                decoded = new SoftReference<Postings>( p );
             }
+            return p;
         }
-        return false;
     }
     /**
-     * Add a location to the index (only useful when indexing)
-     * @param loc the new location
+     * Estimate the heap occupied by this locations object
+     * @return an approximate size in bytes
+     */
+    long memorySize()
+    {
+        long size = 16;
+        if ( compressedDocids != null )
+            size += 16 + 4*compressedDocids.length;
+        if ( skips != null )
+            size += 16 + 4*skips.length;
+        if ( compressedOffsets != null )
+            size += 16 + 4*compressedOffsets.length;
+        if ( building != null )
+            size += building.memorySize();
+        return size;
+    }
+    /**
+     * Do we contain the given location?
+     * @param docId the document number
+     * @param pos the word-offset in that document
+     * @return true if it is there
      * @throws IndexException 
      */
-    void add( Location loc ) throws IndexException
+    boolean contains( int docId, int pos ) throws IndexException
     {
-        if ( locs == null )
-            locs = new ArrayList<Location>();
-        locs.add(loc);
+        return postings().contains( docId, pos );
     }
     /**
-     * Read in as a Locations object
+     * Add a location to the index (only useful when indexing)
+     * @param docId the document number
+     * @param pos the word-offset in that document
+     * @return true if it was added, false if it was already there
      */
-    private void readObject( ObjectInputStream ois) 
-        throws ClassNotFoundException, IOException, IndexException
+    boolean add( int docId, int pos )
     {
-        ois.defaultReadObject();
-        IntegratedIntCompressor iic = new IntegratedIntCompressor();
-        locs = new ArrayList<Location>();
-        if ( compressedDocids.length>1 )
+        if ( building == null )
+            building = new PostingsBuilder();
+        return building.insert( docId, pos );
+    }
+    /**
+     * Add the postings of another index being merged into this one
+     * @param p the other postings, sorted
+     * @param renumber the new number of each of their documents in 
+     * ascending order, or -1 if the document is to be dropped
+     */
+    void addAll( Postings p, int[] renumber )
+    {
+        if ( building == null )
+            building = new PostingsBuilder();
+        building.merge( p, renumber );
+    }
+    /**
+     * Create a locations object from its compressed form
+     * @param compressedDocids the compressed docids
+     * @param compressedOffsets the compressed offsets
+     * @param skips the block skip entries
+     * @param docFreq the number of distinct documents
+     * @param codec the tag of the codecs they were compressed with
+     */
+    Locations( int[] compressedDocids, int[] compressedOffsets, int[] skips,
+        int docFreq, int codec ) 
+    {
+        this.compressedDocids = compressedDocids;
+        this.compressedOffsets = compressedOffsets;
+        this.skips = skips;
+        this.docFreq = docFreq;
+        this.codec = codec;
+    }
+    /**
+     * Rebuild the postings from the compressed arrays
+     * @return the decoded postings
+     * @throws IndexException 
+     */
+    private Postings decompress() throws IndexException
+    {
+        if ( skips != null )
         {
+            int nBlocks = skips.length/3;
+            if ( nBlocks == 1 )
+                return block( 0 );
+            Postings all = new Postings( compressedDocids[0] );
+            for ( int b=0;b<nBlocks;b++ )
+            {
+                Postings p = block( b );
+                for ( int i=0;i<p.size();i++ )
+                    all.add( p.docId(i), p.position(i) );
+            }
+            return all;
+        }
+        else if ( compressedDocids.length>1 )
+        {
+            IntegratedIntCompressor iic = new IntegratedIntCompressor();
             int[] docids = iic.uncompress(compressedDocids);
             int[] offsets = UnsortedIntCompressor.decompress(compressedOffsets);
             if ( docids.length != offsets.length )
                 throw new IndexException("offsets length ("+offsets.length
                     +") not the same as docids ("+docids.length+")");
-            // locations should alreayd be sorted
-            for ( int i=0;i<docids.length;i++ )
-            {
-                Location loc = new Location(docids[i],offsets[i]);
-                locs.add(loc);
-            }
+            // locations should already be sorted
+            return new Postings( docids, offsets );
         }
         else
         {
             // common case - don't use compression
-            locs.add(new Location(compressedDocids[0],compressedOffsets[0]));
+            return new Postings( new int[]{compressedDocids[0]}, 
+                new int[]{compressedOffsets[0]} );
+        }
+    }
+    /**
+     * Sort the postings and compress them into blocks of docids and 
+     * offsets with a skip entry for each block, using the codecs that 
+     * suit them best
+     * @throws IndexException 
+     */
+    void compress() throws IndexException
+    {
+        Postings p = building;
+        if ( p == null )
+        {
+            if ( skips != null || compressedDocids == null )
+                return;     // already compressed
+            // convert from the old format
+            p = decompress();
         }
+        p.sort();
+        docFreq = countDocs( p );
+        int size = p.size();
+        int nBlocks = (size+BLOCK_SIZE-1)/BLOCK_SIZE;
+        int[] docids = p.getDocIds();
+        int[] offsets = p.getPositions();
+        PostingsCodec pc = PostingsCodec.get();
+        int docCodec = pc.chooseDocCodec( docids );
+        int offsetTag = pc.chooseOffsets( docids, offsets );
+        int offsetCodec = PostingsCodec.offsetCodec( offsetTag );
+        boolean docDeltas = PostingsCodec.docDeltas( offsetTag );
+        int[] docBuf = new int[PostingsCodec.maxLength(size)];
+        int[] posBuf = new int[PostingsCodec.maxLength(size)];
+        int[] newSkips = new int[nBlocks*3];
+        // reserve docBuf[0] for the count (the codec mustn't start at 0)
+        docBuf[0] = size;
+        IntWrapper docPos = new IntWrapper(1);
+        IntWrapper posPos = new IntWrapper(0);
+        for ( int b=0;b<nBlocks;b++ )
+        {
+            int start = b*BLOCK_SIZE;
+            int n = Math.min( BLOCK_SIZE, size-start );
+            newSkips[b*3] = docids[start+n-1];
+            newSkips[b*3+1] = docPos.get();
+            newSkips[b*3+2] = posPos.get();
+            pc.compressDocIds( docCodec, docids, start, n, 
+                (b>0)?docids[start-1]:0, docBuf, docPos );
+            pc.compressOffsets( offsetCodec, docDeltas, docids, offsets, 
+                start, n, posBuf, posPos );
+        }
+        compressedDocids = Arrays.copyOf( docBuf, docPos.get() );
+        compressedOffsets = Arrays.copyOf( posBuf, posPos.get() );
+        codec = PostingsCodec.tag( docCodec, offsetCodec, docDeltas );
+        skips = newSkips;
+    }
+    /**
+     * Read in as a Locations object, leaving it compressed until used
+     */
+    private void readObject( ObjectInputStream ois) 
+        throws ClassNotFoundException, IOException, IndexException
+    {
+        ois.defaultReadObject();
     }
     /**
     * Write out the compressed Locations index
@@ -136,31 +389,7 @@ public class Locations implements Serializable
     {
         try
         {
-            Location[] array = new Location[locs.size()];
-            if ( locs.size()==1 )
-            {
-                // common case
-                compressedDocids = new int[1];
-                compressedOffsets = new int[1];
-                compressedDocids[0] = locs.get(0).docId;
-                compressedOffsets[0] = locs.get(0).pos;
-            }
-            else
-            {
-                locs.toArray(array);
-                Arrays.sort(array); 
-                int[] docids = new int[array.length];
-                int[] offsets = new int[array.length];
-                for ( int i=0;i<array.length;i++ )
-                {
-                    Location loc = array[i];
-                    docids[i] = loc.docId;
-                    offsets[i] = loc.pos;
-                }
-                IntegratedIntCompressor iic = new IntegratedIntCompressor();
-                compressedDocids = iic.compress(docids);
-                compressedOffsets = UnsortedIntCompressor.compress(offsets);
-            }
+            compress();
             ous.defaultWriteObject();
         }
         catch ( Exception e )
@@ -211,10 +440,20 @@ public class Locations implements Serializable
     public String toString()
     {
         StringBuilder sb = new StringBuilder();
-        for ( int i=0;i<locs.size();i++ )
+        try
+        {
+            Postings p = postings();
+            for ( int i=0;i<p.size();i++ )
+            {
+                sb.append(p.docId(i));
+                sb.append(",");
+                sb.append(p.position(i));
+                sb.append( " ");
+            }
+        }
+        catch ( IndexException e )
         {
-            sb.append(locs.get(i).toString());
-            sb.append( " ");
+            sb.append( e.getMessage() );
         }
         return sb.toString();
     }
@@ -231,18 +470,8 @@ public class Locations implements Serializable
             arr2[i] = r.nextInt(1000);
         }
         Locations locs = new Locations();
-        try
-        {
-            for ( int i=0;i<100;i++ )
-            {
-                Location loc = new Location(arr1[i],arr2[i]);
-                locs.add(loc);
-            }
-        }
-        catch ( Exception e )
-        {
-            e.printStackTrace(System.out);
-        }
+        for ( int i=0;i<100;i++ )
+            locs.add(arr1[i],arr2[i]);
         // test for serialisation
         try
         {
@@ -251,11 +480,11 @@ public class Locations implements Serializable
             boolean error = false;
             for ( int i=0;i<100;i++ )
             {
-                Location loc = new Location(arr1[i],arr2[i]);
-                if ( !locs2.contains(loc) )
+                if ( !locs2.contains(arr1[i],arr2[i]) )
                 {
                     error = true;
-                    System.out.println("Location "+loc+" not found!");
+                    System.out.println("Location "+arr1[i]+","+arr2[i]
+                        +" not found!");
                 }
             }
             if ( !error )
@@ -16,10 +16,7 @@
  *  (c) copyright Desmond Schmidt 2015
  */
 package search.index;
-import java.util.HashMap;
-import java.util.ArrayList;
-import java.util.Set;
-import java.util.Iterator;
+import java.util.Arrays;
 import java.util.BitSet;
 import edu.luc.nmerge.mvd.MVD;
 /**
@@ -30,71 +27,31 @@ public class Match
 {
     /** document id in index */
     public int docId;  
-    /** terms to positions map */
-    HashMap<String,ArrayList<Integer>> map;
+    /** the distinct terms in the order they were added */
+    String[] terms;
+    /** the sorted positions of each term, parallel to terms */
+    int[][] positions;
+    /** the number of terms in use */
+    int nTerms;
     /** the score or edit distance of the matched words */
     float score;
-    /** number of characters allowed between words for literal matches */
-    static final int literalSlop = 10;
+    /** true if score is up to date with the terms */
+    boolean scored;
     /** the type of the match derived from query */
     public MatchType type;
     /** the version to follow or 0 to ignore this */
     int firstVersion;
-    ArrayList<String> terms;
     /**
-     * Create an initial match from a single location
-     * @param loc the location
-     * @param word the first term
+     * Create an empty match. Add its terms with addTerm.
+     * @param docId the document number
      * @param type the type of the match
      */
-    public Match( Location loc, String word, MatchType type )
+    public Match( int docId, MatchType type )
     {
-        this.map = new HashMap<String,ArrayList<Integer>>();
-        ArrayList<Integer> list = new ArrayList<Integer>();
-        terms = new ArrayList<String>();
-        terms.add(word);
-        list.add( loc.pos );
-        map.put( word, list );
-        this.score = 100.0f;
+        this.terms = new String[2];
+        this.positions = new int[2][];
         this.type = type;
-        this.docId = loc.docId;
-    }
-    /**
-     * Check if all terms are in the correct order
-     * @return true if it MAY be literal
-     */
-    public boolean canBeLiteral()
-    {
-        boolean globalOK = true;
-        for ( int i=0;i<terms.size()-1;i++ )
-        {
-            String term1 = terms.get(i);
-            String term2 = terms.get(i+1);
-            ArrayList<Integer> list1 = map.get(term1);
-            ArrayList<Integer> list2 = map.get(term2);
-            boolean termOK = false;
-            for ( int j=0;j<list1.size();j++ )
-            {
-                int pos1 = list1.get(j);
-                for ( int k=0;k<list2.size();k++ )
-                {
-                    int pos2 = list2.get(k);
-                    if ( pos2 > pos1 )
-                    {
-                        termOK = true;
-                        break;
-                    }
-                    if ( termOK )
-                        break;
-                }
-            }
-            if ( !termOK )
-            {
-                globalOK = false;
-                break;
-            }
-        }
-        return globalOK;
+        this.docId = docId;
     }
     /**
      * Set the first version to a specific value, not the default
@@ -120,24 +77,14 @@ public class Match
         if ( other instanceof Match )
         {
             Match oMatch = (Match) other;
-            
-            if ( oMatch.terms.size() == this.terms.size() )
+            if ( oMatch.nTerms == this.nTerms )
             {
-                for ( int i=0;i<terms.size();i++ )
+                for ( int i=0;i<nTerms;i++ )
                 {
-                    String term = terms.get(i);
-                    String oTerm = oMatch.terms.get(i);
-                    if ( !term.equals(oTerm) )
+                    if ( !terms[i].equals(oMatch.terms[i]) )
                         return false;
-                    ArrayList<Integer> list1 = map.get(term);
-                    ArrayList<Integer> list2 = oMatch.map.get(term);
-                    if ( list1.size()!=list2.size() )
+                    if ( !Arrays.equals(positions[i],oMatch.positions[i]) )
                         return false;
-                    for ( int j=0;j<list1.size();j++ )
-                    {
-                        if ( !list1.get(j).equals(list2.get(j)) )
-                            return false;
-                    }
                 }
                 // all terms overlap and are equal
                 return true;
@@ -146,69 +93,95 @@ public class Match
         return false;
     }
     /**
-     * Recalculate the score 
+     * Hash consistently with equals
+     * @return a hash of the terms and their positions
+     */
+    public int hashCode()
+    {
+        int h = 0;
+        for ( int i=0;i<nTerms;i++ )
+            h = h*31 + terms[i].hashCode()*17 + Arrays.hashCode(positions[i]);
+        return h;
+    }
+    /**
+     * Find the smallest gap between two sorted position lists by merging
+     * them in a single linear pass
+     * @param list1 the first sorted list
+     * @param list2 the second sorted list
+     * @return the minimum absolute difference between their members
+     */
+    private static int minDistance( int[] list1, int[] list2 )
+    {
+        int dist = Integer.MAX_VALUE;
+        int j = 0;
+        int k = 0;
+        while ( j < list1.length && k < list2.length && dist > 0 )
+        {
+            int diff = list1[j]-list2[k];
+            if ( diff < 0 )
+            {
+                if ( -diff < dist )
+                    dist = -diff;
+                j++;
+            }
+            else
+            {
+                if ( diff < dist )
+                    dist = diff;
+                k++;
+            }
+        }
+        return dist;
+    }
+    /**
+     * Compute the score once all the terms have been added
      */
-    private void recalcScore()
+    private void computeScore()
     {
-        if ( terms.size()== 1 )
+        if ( nTerms <= 1 )
             this.score = 100f;
         else
         {
-            int[] distances = new int[terms.size()-1];
-            for ( int i=0;i<terms.size()-1;i++ )
+            // the distance from each term but the last to its nearest other
+            int totalDist = 0;
+            for ( int i=0;i<nTerms-1;i++ )
             {
                 int dist = Integer.MAX_VALUE;
-                // find the closest term
-                for ( int j=0;j<terms.size();j++ )
+                for ( int j=0;j<nTerms;j++ )
                 {
                     if ( i != j )
                     {
-                        ArrayList<Integer> listi = map.get(terms.get(i));
-                        ArrayList<Integer> listj = map.get(terms.get(j));
-                        // this costs O(N log N) for each term
-                        for ( int k=0;k<listi.size();k++ )
-                        {
-                            int val1 = listi.get(k);
-                            int index = getIndex(listj,val1);
-                            int val2;
-                            if ( index!=-1 )
-                                val2 = listj.get(index);
-                            else
-                            {
-                                index = 0;
-                                val2 = listj.get(0);
-                            }
-                            int diff = Math.abs(val1-val2);
-                            if ( index != 0 && index != listj.size()-1 )
-                            {
-                                int index2 = index+1;
-                                int diff2 = Math.abs(val1-listj.get(index2));
-                                if ( diff2 < diff )
-                                    diff = diff2;
-                            }
-                            if ( diff < dist )
-                                dist = diff;
-                        }
+                        int d = minDistance( positions[i], positions[j] );
+                        if ( d < dist )
+                            dist = d;
                     }
                 }
-                // so now dist is the minimum distance between terms for term i
-                distances[i] = dist;
+                totalDist += dist;
             }
-            // compute total distance between matches
-            int totalDist = 0;
-            for ( int i=0;i<distances.length;i++ )
-                totalDist += distances[i];
             // compute total match range
-            ArrayList<Integer> list1 = map.get(terms.get(0));
-            ArrayList<Integer> list2 = map.get(terms.get(terms.size()-1));
-            int minPos = list1.get(0);
-            int maxEnd = list2.get(list2.size()-1);
+            int minPos = positions[0][0];
+            int[] last = positions[nTerms-1];
+            int maxEnd = last[last.length-1];
             // score is a 100 less the fraction of the distance between terms  
             // over the total distance covered by the terms. So for 0 distance  
             // score will be 100 and for maximally separated terms the score will 
             // be close to 0.
-            this.score = 100.0f-totalDist*100/(maxEnd-minPos);
+            if ( maxEnd == minPos )
+                this.score = 100.0f;
+            else
+                this.score = 100.0f-totalDist*100/(maxEnd-minPos);
         }
+        scored = true;
+    }
+    /**
+     * Get the score, computing it on first use
+     * @return the score of the match out of 100
+     */
+    public float getScore()
+    {
+        if ( !scored )
+            computeScore();
+        return score;
     }
     /**
      * Get the first term
@@ -216,7 +189,7 @@ public class Match
      */
     public String firstTerm()
     {
-        return terms.get(0);
+        return terms[0];
     }
     /**
      * Get the versions shared by the match
@@ -226,15 +199,14 @@ public class Match
     public BitSet getVersions( MVD mvd )
     {
         BitSet bs = new BitSet();
-        for ( int i=0;i<terms.size();i++ )
+        for ( int i=0;i<nTerms;i++ )
         {
-            String term = terms.get(i);
-            ArrayList<Integer> list = map.get(terms.get(i));
+            String term = terms[i];
+            int[] list = positions[i];
             BitSet versions = new BitSet();
-            for ( int j=0;j<list.size();j++ )
+            for ( int j=0;j<list.length;j++ )
             {
-                int pos = list.get(j);
-                BitSet bs2 = mvd.find( term, pos, term );
+                BitSet bs2 = mvd.find( term, list[j], term );
                 versions.or( bs2 );
             }
             if ( bs.cardinality()==0 )
@@ -251,28 +223,24 @@ public class Match
     public int[] getPositions()
     {
         int count = 0;
-        for ( int i=0;i<terms.size();i++ )
-        {
-            ArrayList<Integer> list = map.get(terms.get(i));
-            count += list.size();
-        }
-        int[] positions = new int[count];
+        for ( int i=0;i<nTerms;i++ )
+            count += positions[i].length;
+        int[] all = new int[count];
         int k=0;
-        for ( int i=0;i<terms.size();i++ )
+        for ( int i=0;i<nTerms;i++ )
         {
-            ArrayList<Integer> list = map.get(terms.get(i));
-            for ( int j=0;j<list.size();j++ )
-                positions[k++] = list.get(j);
+            System.arraycopy( positions[i], 0, all, k, positions[i].length );
+            k += positions[i].length;
         }
-        return positions;
+        return all;
     }
     public int numTerms()
     {
-        return terms.size();
+        return nTerms;
     }
     public String getTerm( int index )
     {
-        return terms.get(index);
+        return terms[index];
     }
     /**
      * Get all positions in a single array
@@ -281,17 +249,10 @@ public class Match
      */
     public int[] getTermPositions( int i )
     {
-        int[] positions;
-        ArrayList<Integer> list = map.get(terms.get(i));
-        if ( list != null )
-        {
-            positions = new int[list.size()];
-            for ( int j=0;j<positions.length;j++ )
-                positions[j] = list.get(j);
-        }
+        if ( i < nTerms )
+            return positions[i].clone();
         else    // handle error softly
-            positions = new int[0];
-        return positions;
+            return new int[0];
     }
     /**
      * Get the first position of the term
@@ -299,92 +260,59 @@ public class Match
      */
     public int firstPositionOfTerm( String term )
     {
-        ArrayList<Integer> list = map.get( term );
-        if ( list != null )
-            return list.get(0);
-        else
-            return -1;
+        for ( int i=0;i<nTerms;i++ )
+            if ( terms[i].equals(term) )
+                return positions[i][0];
+        return -1;
     }
     /**
-     * Get the index of the greatest list item less than a value
-     * @param list the list
-     * @param value the value to look for
-     * @return the index of the biggest item less than value
-     */
-    private int getIndex( ArrayList<Integer> list, int value )
-    {
-        int top = 0;
-        int bot = list.size()-1;
-        int mid=0;
-        while ( top <= bot )
-        {
-            mid = (top+bot)/2; // NB integer arithmetic
-            if ( value < list.get(mid) )
-            {
-                if ( mid == 0 )
-                    // value < than first item
-                    return -1;  
-                else
-                    bot = mid-1;
-            }
-            else    // value >= list[mid]
-            {
-                if ( mid == list.size()-1 )
-                    // value is >= last item
-                    break;
-                else if ( value >= list.get(mid+1) )
-                    top = mid+1;
-                else // list[mid] must be biggest <= value
-                    break;
-            }
-        }
-        return mid;
-    } 
-    /**
-     * Find an item in a list. This is binary search O(log N)
-     * @param list the sorted list 
-     * @param value the value to find
-     * @return true if it was there 
+     * Merge two sorted lists of positions, dropping duplicates
+     * @param list1 the first sorted list
+     * @param list2 the second sorted list
+     * @return a new sorted list of their union
      */
-    private boolean find( ArrayList<Integer> list, int value )
+    private static int[] merge( int[] list1, int[] list2 )
     {
-        int top = 0;
-        int bot = list.size()-1;
-        while ( top <= bot )
+        int[] res = new int[list1.length+list2.length];
+        int i = 0, j = 0, k = 0;
+        while ( i < list1.length || j < list2.length )
         {
-            int mid = (top+bot)/2;
-            int midVal = list.get(mid);
-            if ( value < midVal )
-                bot = mid-1;
-            else if ( value > midVal )
-                top = mid+1;
+            int val;
+            if ( j == list2.length || (i < list1.length && list1[i] <= list2[j]) )
+                val = list1[i++];
             else
-                return true;
+                val = list2[j++];
+            if ( k == 0 || res[k-1] != val )
+                res[k++] = val;
         }
-        return false;
+        return Arrays.copyOf( res, k );
     }
     /**
-     * We're expanding by one term: recalc the score and resize everything
-     * @param loc the new location to follow the current ones
-     * @param word the new word whose position is loc
+     * Add all the positions of a term. The score is worked out later.
+     * @param word the word found
+     * @param list its positions in the document in ascending order
      */
-    void addTerm( Location loc, String word )
+    void addTerm( String word, int[] list )
     {
-        ArrayList<Integer> list = map.get(word);
-        if ( list == null )
+        if ( list.length == 0 )
+            return;
+        for ( int i=0;i<nTerms;i++ )
         {
-            list = new ArrayList<Integer>();
-            list.add(loc.pos);
-            map.put( word, list );
-            terms.add(word);
+            if ( terms[i].equals(word) )
+            {
+                positions[i] = merge( positions[i], list );
+                scored = false;
+                return;
+            }
         }
-        else if ( !find(list,loc.pos) )
+        if ( nTerms == terms.length )
         {
-            // keep list sorted
-            int index = getIndex(list,loc.pos);
-            list.add( index+1, loc.pos );
+            terms = Arrays.copyOf( terms, nTerms*2 );
+            positions = Arrays.copyOf( positions, nTerms*2 );
         }
-        recalcScore();
+        terms[nTerms] = word;
+        positions[nTerms++] = list;
+        scored = false;
     }
     /**
      * For debugging
@@ -396,25 +324,22 @@ public class Match
         sb.append( "doc: ");
         sb.append( docId );
         sb.append( ", terms: ");
-        Set<String> keys = map.keySet();
-        Iterator<String> iter = keys.iterator();
-        while ( iter.hasNext() )
+        for ( int i=0;i<nTerms;i++ )
         {
-            String key = iter.next();
-            sb.append(key);
-            ArrayList<Integer> list = map.get(key);
+            sb.append(terms[i]);
+            int[] list = positions[i];
             sb.append(", positions: ");
-            for ( int i=0;i<list.size();i++ )
+            for ( int j=0;j<list.length;j++ )
             {
-                sb.append(list.get(i));
-                if ( i < list.size()-1)
+                sb.append(list[j]);
+                if ( j < list.length-1)
                     sb.append(",");
             }
-            if ( iter.hasNext() )
+            if ( i < nTerms-1 )
                 sb.append("; ");
         }
         sb.append("; score: ");
-        sb.append(score);
+        sb.append(getScore());
         return sb.toString();
     }
 }
@@ -0,0 +1,98 @@
+/*
+ * This file is part of Search.
+ *
+ *  Search is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Search is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Search.  If not, see <http://www.gnu.org/licenses/>.
+ *  (c) copyright Desmond Schmidt 2015
+ */
+package search.index;
+import java.util.HashSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import search.cache.IndexRegistry;
+/**
+ * Merge the updates of projects into their full segments in the 
+ * background, so the space taken by deleted documents is reclaimed and 
+ * queries don't have to visit too many segments
+ * @author desmond
+ */
+public class MergeScheduler
+{
+    /** minutes between background merges */
+    public static int interval = 10;
+    /** projects that have been updated since the last merge */
+    private static HashSet<String> pending = new HashSet<String>();
+    private static ScheduledExecutorService executor;
+    /**
+     * Note that a project has been updated and should be merged soon
+     * @param projid the project identifier
+     */
+    public static synchronized void schedule( String projid )
+    {
+        pending.add( projid );
+        if ( executor == null )
+        {
+            executor = Executors.newSingleThreadScheduledExecutor( 
+                new ThreadFactory() {
+                public Thread newThread( Runnable r )
+                {
+                    Thread t = new Thread( r, "index-merger" );
+                    t.setDaemon( true );
+                    t.setPriority( Thread.MIN_PRIORITY );
+                    return t;
+                }
+            });
+            executor.scheduleWithFixedDelay( new Runnable() {
+                public void run()
+                {
+                    mergePending();
+                }
+            }, interval, interval, TimeUnit.MINUTES );
+        }
+    }
+    /**
+     * Take the projects waiting to be merged
+     * @return their identifiers
+     */
+    private static synchronized String[] takePending()
+    {
+        String[] projids = new String[pending.size()];
+        pending.toArray( projids );
+        pending.clear();
+        return projids;
+    }
+    /**
+     * Merge all the projects updated since last time
+     */
+    static void mergePending()
+    {
+        String[] projids = takePending();
+        for ( int i=0;i<projids.length;i++ )
+        {
+            try
+            {
+                Index.merge( projids[i] );
+                IndexRegistry.invalidate( projids[i] );
+            }
+            catch ( Exception e )
+            {
+                // try again next time
+                System.out.println("Merge of "+projids[i]+" failed: "
+                    +e.getMessage());
+                schedule( projids[i] );
+            }
+        }
+    }
+}
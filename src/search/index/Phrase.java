@@ -0,0 +1,219 @@
+/*
+ * This file is part of Search.
+ *
+ *  Search is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Search is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Search.  If not, see <http://www.gnu.org/licenses/>.
+ *  (c) copyright Desmond Schmidt 2015
+ */
+package search.index;
+import edu.luc.nmerge.mvd.MVD;
+import edu.luc.nmerge.mvd.Pair;
+import java.util.ArrayList;
+import java.util.Arrays;
+/**
+ * Check that the terms of a literal query make up the phrase in a document
+ * using only their stored positions. Positions are offsets into the whole
+ * MVD, where the text of one version may be split by the variants of 
+ * others. But every version reads the text that all the versions share, 
+ * so the shared text between two terms is the least that can separate 
+ * them in any version. Terms are kept only if they come in order and 
+ * that least gap is within LiteralQuery.MAX_DISTANCE characters (plus 
+ * any stopwords of the query between them). In a plain text, or an MVD 
+ * without variants, that is exact; otherwise which versions really have 
+ * the phrase is left to MVD.find.
+ * @author desmond
+ */
+public class Phrase
+{
+    /**
+     * Keep only those positions that take part in the phrase
+     * @param q the literal query
+     * @param positions the sorted positions of each of its terms in one 
+     * document
+     * @param variants the document's variant spans from variants(), or 
+     * null if they aren't known, when only the order can be checked
+     * @return the positions of each term that follow a position of the 
+     * term before and precede one of the term after, near enough to both,
+     * or null if there are none
+     */
+    static int[][] match( LiteralQuery q, int[][] positions, int[] variants )
+    {
+        int n = q.terms.length;
+        int[][] reach = new int[n][];
+        int[][] shared = new int[n][];
+        reach[0] = positions[0];
+        shared[0] = shared( positions[0], variants );
+        // forwards: positions of term i that end a sequence of terms 0..i
+        for ( int i=1;i<n;i++ )
+        {
+            int[][] kept = follow( reach[i-1], shared[i-1], 
+                q.terms[i-1].length(), positions[i], 
+                shared(positions[i],variants), limit(q,i,variants) );
+            reach[i] = kept[0];
+            shared[i] = kept[1];
+            if ( reach[i].length == 0 )
+                return null;
+        }
+        // backwards: drop positions that don't lead to the last term
+        for ( int i=n-2;i>=0;i-- )
+        {
+            int[][] kept = precede( reach[i], shared[i], q.terms[i].length(),
+                reach[i+1], shared[i+1], limit(q,i+1,variants) );
+            reach[i] = kept[0];
+            shared[i] = kept[1];
+        }
+        return reach;
+    }
+    /**
+     * Get the most shared characters allowed between a term and the one 
+     * before
+     * @param q the literal query
+     * @param i the index of the term, from 1
+     * @param variants the variant spans or null if unknown
+     * @return the gap allowed in the text
+     */
+    private static int limit( LiteralQuery q, int i, int[] variants )
+    {
+        return (variants==null)?Integer.MAX_VALUE:q.maxGap(i);
+    }
+    /**
+     * Find the parts of an MVD not read by every version
+     * @param mvd the MVD
+     * @return the sorted start and end offsets of each run of such text, 
+     * in the offsets the words of the MVD are indexed by
+     */
+    static int[] variants( MVD mvd )
+    {
+        int nVersions = mvd.numVersions();
+        ArrayList<Pair> pairs = mvd.getPairs();
+        int[] spans = new int[8];
+        int n = 0;
+        int pos = 0;
+        for ( int i=0;i<pairs.size();i++ )
+        {
+            Pair p = pairs.get( i );
+            int len = p.getChars().length;
+            if ( len > 0 && p.versions.nextClearBit(1) <= nVersions )
+            {
+                if ( n > 0 && spans[n-1] == pos )
+                    spans[n-1] = pos+len;
+                else
+                {
+                    if ( n == spans.length )
+                        spans = Arrays.copyOf( spans, n*2 );
+                    spans[n++] = pos;
+                    spans[n++] = pos+len;
+                }
+            }
+            pos += len;
+        }
+        return Arrays.copyOf( spans, n );
+    }
+    /**
+     * Count the shared characters before each of a list of positions
+     * @param positions the sorted positions
+     * @param variants the variant spans or null if unknown
+     * @return the number of characters before each position that every
+     * version reads, or the positions themselves if nothing is known
+     */
+    static int[] shared( int[] positions, int[] variants )
+    {
+        if ( variants == null || variants.length == 0 )
+            return positions;
+        int[] counts = new int[positions.length];
+        int k = 0;
+        int before = 0;
+        for ( int i=0;i<positions.length;i++ )
+        {
+            int pos = positions[i];
+            // add up the variant spans that end by this position
+            while ( k < variants.length && variants[k+1] <= pos )
+            {
+                before += variants[k+1]-variants[k];
+                k += 2;
+            }
+            int inside = (k<variants.length&&variants[k]<pos)
+                ?pos-variants[k]:0;
+            counts[i] = pos-before-inside;
+        }
+        return counts;
+    }
+    /**
+     * Find the positions in a list that follow some earlier term closely
+     * @param prev the sorted positions of the previous term
+     * @param prevShared the shared characters before each of them
+     * @param len the length of the previous term
+     * @param next the sorted positions of the next term
+     * @param nextShared the shared characters before each of them
+     * @param limit the most shared characters allowed between the terms
+     * @return those members of next, and their shared counts, that start 
+     * after the end of a member of prev with at most limit shared 
+     * characters between them
+     */
+    private static int[][] follow( int[] prev, int[] prevShared, int len, 
+        int[] next, int[] nextShared, int limit )
+    {
+        int[] kept = new int[next.length];
+        int[] keptShared = new int[next.length];
+        int n = 0;
+        int j = -1;
+        for ( int i=0;i<next.length;i++ )
+        {
+            // the last prev that ends before next[i] is the nearest
+            while ( j+1 < prev.length && prev[j+1]+len <= next[i] )
+                j++;
+            if ( j >= 0 && (long)nextShared[i]-prevShared[j]-len <= limit )
+            {
+                kept[n] = next[i];
+                keptShared[n++] = nextShared[i];
+            }
+        }
+        return new int[][]{Arrays.copyOf(kept,n),
+            Arrays.copyOf(keptShared,n)};
+    }
+    /**
+     * Find the positions in a list that are closely followed by a later 
+     * term
+     * @param prev the sorted positions of the earlier term
+     * @param prevShared the shared characters before each of them
+     * @param len the length of the earlier term
+     * @param next the sorted positions of the following term
+     * @param nextShared the shared characters before each of them
+     * @param limit the most shared characters allowed between the terms
+     * @return those members of prev, and their shared counts, that end 
+     * before a member of next with at most limit shared characters 
+     * between them
+     */
+    private static int[][] precede( int[] prev, int[] prevShared, int len,
+        int[] next, int[] nextShared, int limit )
+    {
+        int[] kept = new int[prev.length];
+        int[] keptShared = new int[prev.length];
+        int n = 0;
+        int j = 0;
+        for ( int i=0;i<prev.length;i++ )
+        {
+            // the first next that starts after prev[i] is the nearest
+            while ( j < next.length && next[j] < prev[i]+len )
+                j++;
+            if ( j < next.length 
+                && (long)nextShared[j]-prevShared[i]-len <= limit )
+            {
+                kept[n] = prev[i];
+                keptShared[n++] = prevShared[i];
+            }
+        }
+        return new int[][]{Arrays.copyOf(kept,n),
+            Arrays.copyOf(keptShared,n)};
+    }
+}
@@ -0,0 +1,179 @@
+/*
+ * This file is part of Search.
+ *
+ *  Search is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Search is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Search.  If not, see <http://www.gnu.org/licenses/>.
+ *  (c) copyright Desmond Schmidt 2015
+ */
+package search.index;
+import java.util.Arrays;
+/**
+ * A growable list of postings held in parallel int arrays instead of
+ * one Location object per occurrence
+ * @author desmond
+ */
+public class Postings
+{
+    /** the document numbers of each posting */
+    int[] docIds;
+    /** the word-offsets of each posting in its document */
+    int[] positions;
+    /** the number of postings in use */
+    int size;
+    /**
+     * Create an empty list with room for a few postings
+     */
+    Postings()
+    {
+        this( 4 );
+    }
+    /**
+     * Create an empty list
+     * @param capacity the initial capacity
+     */
+    Postings( int capacity )
+    {
+        this.docIds = new int[capacity];
+        this.positions = new int[capacity];
+    }
+    /**
+     * Wrap already decoded arrays
+     * @param docIds the document numbers
+     * @param positions the word-offsets, the same length as docIds
+     */
+    Postings( int[] docIds, int[] positions )
+    {
+        this.docIds = docIds;
+        this.positions = positions;
+        this.size = docIds.length;
+    }
+    /**
+     * Get the number of postings
+     * @return an int
+     */
+    int size()
+    {
+        return size;
+    }
+    /**
+     * Get the document number of a posting
+     * @param i the index of the posting
+     * @return its docId
+     */
+    int docId( int i )
+    {
+        return docIds[i];
+    }
+    /**
+     * Get the word-offset of a posting
+     * @param i the index of the posting
+     * @return its position in the document
+     */
+    int position( int i )
+    {
+        return positions[i];
+    }
+    /**
+     * Append a posting, growing the arrays if needed
+     * @param docId the document number
+     * @param pos the word-offset
+     */
+    void add( int docId, int pos )
+    {
+        if ( size == docIds.length )
+            grow();
+        docIds[size] = docId;
+        positions[size] = pos;
+        size++;
+    }
+    /**
+     * Make room for at least one more posting
+     */
+    void grow()
+    {
+        int capacity = (size<4)?4:size+(size>>1);
+        docIds = Arrays.copyOf( docIds, capacity );
+        positions = Arrays.copyOf( positions, capacity );
+    }
+    /**
+     * Sort the postings by document and then position
+     */
+    void sort()
+    {
+        long[] packed = new long[size];
+        boolean sorted = true;
+        for ( int i=0;i<size;i++ )
+        {
+            packed[i] = ((long)docIds[i]<<32)|(positions[i]&0xFFFFFFFFL);
+            if ( i>0 && packed[i] < packed[i-1] )
+                sorted = false;
+        }
+        if ( !sorted )
+        {
+            Arrays.sort( packed );
+            for ( int i=0;i<size;i++ )
+            {
+                docIds[i] = (int)(packed[i]>>>32);
+                positions[i] = (int)packed[i];
+            }
+        }
+    }
+    /**
+     * Find a posting by binary search. Only works once sorted.
+     * @param docId the document number
+     * @param pos the word-offset
+     * @return true if it is there
+     */
+    boolean contains( int docId, int pos )
+    {
+        int top = 0;
+        int bottom = size-1;
+        while ( top <= bottom )
+        {
+            int mid = (top+bottom)>>>1;
+            int res = (docIds[mid]!=docId)?((docId<docIds[mid])?-1:1)
+                :((pos<positions[mid])?-1:(pos>positions[mid])?1:0);
+            if ( res<0 )
+                bottom = mid-1;
+            else if ( res > 0 )
+                top = mid+1;
+            else
+                return true;
+        }
+        return false;
+    }
+    /**
+     * Get a copy of the document numbers, trimmed to size
+     * @return an int array
+     */
+    int[] getDocIds()
+    {
+        return Arrays.copyOf( docIds, size );
+    }
+    /**
+     * Get a copy of the word-offsets, trimmed to size
+     * @return an int array
+     */
+    int[] getPositions()
+    {
+        return Arrays.copyOf( positions, size );
+    }
+    /**
+     * Estimate the heap occupied by these postings
+     * @return an approximate size in bytes
+     */
+    long memorySize()
+    {
+        return 48 + 8L*docIds.length;
+    }
+}
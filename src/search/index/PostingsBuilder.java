@@ -0,0 +1,112 @@
+/*
+ * This file is part of Search.
+ *
+ *  Search is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Search is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Search.  If not, see <http://www.gnu.org/licenses/>.
+ *  (c) copyright Desmond Schmidt 2015
+ */
+package search.index;
+/**
+ * Postings collected while indexing, kept sorted by document and position
+ * and free of duplicates as they are added. A document's positions arrive 
+ * nearly in order, so each one is put in place by looking back from the
+ * end over the few postings that follow it, which also finds a duplicate.
+ * There is nothing to sort when the postings are written.
+ * @author desmond
+ */
+public class PostingsBuilder extends Postings
+{
+    /**
+     * Add a posting in its place unless it is already there
+     * @param docId the document number
+     * @param pos the word-offset
+     * @return true if it was added, false if it was a duplicate
+     */
+    boolean insert( int docId, int pos )
+    {
+        int i = size;
+        while ( i > 0 && (docIds[i-1] > docId 
+            || (docIds[i-1] == docId && positions[i-1] > pos)) )
+            i--;
+        if ( i > 0 && docIds[i-1] == docId && positions[i-1] == pos )
+            return false;
+        if ( size == docIds.length )
+            grow();
+        if ( i < size )
+        {
+            System.arraycopy( docIds, i, docIds, i+1, size-i );
+            System.arraycopy( positions, i, positions, i+1, size-i );
+        }
+        docIds[i] = docId;
+        positions[i] = pos;
+        size++;
+        return true;
+    }
+    /**
+     * Merge in some sorted postings whose documents are being renumbered
+     * @param other the postings to add, sorted
+     * @param renumber the new number of each of their documents in 
+     * ascending order, or -1 if the document is to be dropped
+     */
+    void merge( Postings other, int[] renumber )
+    {
+        int[] newDocIds = new int[size+other.size()];
+        int[] newPositions = new int[newDocIds.length];
+        int i = 0, j = 0, n = 0;
+        while ( i < size || j < other.size() )
+        {
+            int docId = -1;
+            if ( j < other.size() )
+            {
+                docId = renumber[other.docId(j)];
+                if ( docId < 0 )
+                {
+                    j++;
+                    continue;
+                }
+            }
+            int cmp;
+            if ( i == size )
+                cmp = 1;
+            else if ( j == other.size() )
+                cmp = -1;
+            else if ( docIds[i] != docId )
+                cmp = (docIds[i]<docId)?-1:1;
+            else
+                cmp = (positions[i]<other.position(j))?-1
+                    :(positions[i]>other.position(j))?1:0;
+            if ( cmp <= 0 )
+            {
+                newDocIds[n] = docIds[i];
+                newPositions[n++] = positions[i++];
+                if ( cmp == 0 )
+                    j++;
+            }
+            else
+            {
+                newDocIds[n] = docId;
+                newPositions[n++] = other.position(j++);
+            }
+        }
+        docIds = newDocIds;
+        positions = newPositions;
+        size = n;
+    }
+    /**
+     * Already sorted, so there is nothing to do
+     */
+    @Override
+    void sort()
+    {
+    }
+}
@@ -0,0 +1,568 @@
+/*
+ * This file is part of Search.
+ *
+ *  Search is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Search is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Search.  If not, see <http://www.gnu.org/licenses/>.
+ *  (c) copyright Desmond Schmidt 2015
+ */
+package search.index;
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Random;
+import java.util.TreeSet;
+import me.lemire.integercompression.BinaryPacking;
+import me.lemire.integercompression.FastPFOR128;
+import me.lemire.integercompression.IntWrapper;
+import me.lemire.integercompression.OptPFD;
+import me.lemire.integercompression.Simple16;
+import me.lemire.integercompression.SkippableComposition;
+import me.lemire.integercompression.SkippableIntegerCODEC;
+import me.lemire.integercompression.VariableByte;
+import me.lemire.integercompression.differential.IntegratedBinaryPacking;
+import me.lemire.integercompression.differential.IntegratedVariableByte;
+import me.lemire.integercompression.differential.SkippableIntegratedComposition;
+import me.lemire.integercompression.differential.SkippableIntegratedIntegerCODEC;
+/**
+ * The codecs that the blocks of a posting list may be compressed with,
+ * chosen separately for its docids and its offsets. The choice is made
+ * for each list by trying the codecs that suit its length and keeping
+ * the smallest, except that a codec slower to decode must save at least
+ * an eighth over a faster one. The two choices are recorded in the
+ * list's codec tag: the docid codec in the low byte and the offsets
+ * codec in the next. A tag of 0 uses the default codec for both. Offsets are increasing within each document, so 
+ * they may also be stored as gaps, which pays when documents are long 
+ * and have many offsets each. Then the DOC_DELTAS flag of the tag is set
+ * and each block stores its number of documents, the run length of each
+ * document and then the gaps, starting again from 0 at each document. 
+ * The offsets can be rebuilt from the runs without the docids. Codecs 
+ * hold scratch buffers, so each thread has its own.
+ * @author desmond
+ */
+class PostingsCodec
+{
+    /** docids: integrated binary packing and variable byte on the docids
+     * themselves; offsets: UnsortedIntCompressor's byte widths */
+    static final int DEFAULT = 0;
+    /** binary packing of 128-int blocks, the rest variable byte */
+    static final int BINARY_PACKING = 1;
+    /** FastPFOR of 128-int blocks, the rest variable byte */
+    static final int FAST_PFOR = 2;
+    /** OptPFD of 128-int blocks, the rest variable byte */
+    static final int OPT_PFD = 3;
+    /** Simple16, which can't store values of 2^28 or more */
+    static final int SIMPLE16 = 4;
+    static final int VARIABLE_BYTE = 5;
+    /** the flag of a tag whose offsets are stored as gaps by document */
+    static final int DOC_DELTAS = 0x10000;
+    static final String[] NAMES = {"default","BinaryPacking","FastPFOR",
+        "OptPFD","Simple16","VariableByte"};
+    /** the codecs in the order they decode, fastest first */
+    static final int[] ORDER = {DEFAULT,BINARY_PACKING,FAST_PFOR,OPT_PFD,
+        SIMPLE16,VARIABLE_BYTE};
+    /** the codecs that only help lists of at least a whole block */
+    static final boolean[] BLOCKWISE = {true,true,true,true,false,false};
+    private static final ThreadLocal<PostingsCodec> local
+        = new ThreadLocal<PostingsCodec>() {
+        protected PostingsCodec initialValue()
+        {
+            return new PostingsCodec();
+        }
+    };
+    SkippableIntegratedIntegerCODEC integrated;
+    SkippableIntegerCODEC[] codecs;
+    /** scratch space for gaps, runs and trial compression */
+    int[] scratch;
+    int[] runs;
+    int[] trial;
+    private PostingsCodec()
+    {
+        integrated = new SkippableIntegratedComposition(
+            new IntegratedBinaryPacking(), new IntegratedVariableByte() );
+        codecs = new SkippableIntegerCODEC[NAMES.length];
+        codecs[BINARY_PACKING] = new SkippableComposition(
+            new BinaryPacking(), new VariableByte() );
+        // we only ever give it one block, and a page of 8 blocks is the 
+        // smallest whose exception buffers can hold a whole block
+        codecs[FAST_PFOR] = new SkippableComposition(
+            new FastPFOR128(Locations.BLOCK_SIZE*8), new VariableByte() );
+        codecs[OPT_PFD] = new SkippableComposition(
+            new OptPFD(), new VariableByte() );
+        codecs[SIMPLE16] = new Simple16();
+        codecs[VARIABLE_BYTE] = new VariableByte();
+        scratch = new int[Locations.BLOCK_SIZE];
+        runs = new int[Locations.BLOCK_SIZE];
+        trial = new int[1024];
+    }
+    /**
+     * Get this thread's codecs
+     * @return a PostingsCodec not shared with other threads
+     */
+    static PostingsCodec get()
+    {
+        return local.get();
+    }
+    /**
+     * Get the docid codec of a tag
+     * @param tag a list's codec tag
+     * @return one of the codec numbers
+     */
+    static int docCodec( int tag )
+    {
+        return tag & 0xFF;
+    }
+    /**
+     * Get the offsets codec of a tag
+     * @param tag a list's codec tag
+     * @return one of the codec numbers
+     */
+    static int offsetCodec( int tag )
+    {
+        return (tag>>>8) & 0xFF;
+    }
+    /**
+     * Are the offsets of a list stored as gaps within each document?
+     * @param tag a list's codec tag
+     * @return true if its blocks start with document run lengths
+     */
+    static boolean docDeltas( int tag )
+    {
+        return (tag & DOC_DELTAS) != 0;
+    }
+    /**
+     * Make a tag from two codecs
+     * @param docCodec the codec of the docids
+     * @param offsetCodec the codec of the offsets
+     * @param docDeltas true if offsets are stored as gaps by document
+     * @return the tag
+     */
+    static int tag( int docCodec, int offsetCodec, boolean docDeltas )
+    {
+        return docCodec | (offsetCodec<<8) | (docDeltas?DOC_DELTAS:0);
+    }
+    /**
+     * Compress a block of docids
+     * @param codec the codec to use
+     * @param docids the sorted docids of the whole list
+     * @param start the index of the block's first docid
+     * @param n the number of docids in the block
+     * @param prev the docid before the block, or 0 for the first
+     * @param out the buffer to write to, which must have room
+     * @param outPos the position to write at, updated
+     */
+    void compressDocIds( int codec, int[] docids, int start, int n,
+        int prev, int[] out, IntWrapper outPos )
+    {
+        if ( codec == DEFAULT )
+            integrated.headlessCompress( docids, new IntWrapper(start), n,
+                out, outPos, new IntWrapper(prev) );
+        else
+        {
+            for ( int i=0;i<n;i++ )
+            {
+                scratch[i] = docids[start+i]-prev;
+                prev = docids[start+i];
+            }
+            codecs[codec].headlessCompress( scratch, new IntWrapper(0), n,
+                out, outPos );
+        }
+    }
+    /**
+     * Decompress a block of docids
+     * @param codec the codec they were compressed with
+     * @param in the compressed docids of the list
+     * @param start the start of the block in it
+     * @param len the length of the block in it
+     * @param n the number of docids in the block
+     * @param prev the docid before the block, or 0 for the first
+     * @return the block's docids
+     */
+    int[] uncompressDocIds( int codec, int[] in, int start, int len, int n,
+        int prev )
+    {
+        int[] docids = new int[n];
+        if ( codec == DEFAULT )
+            integrated.headlessUncompress( in, new IntWrapper(start), len,
+                docids, new IntWrapper(0), n, new IntWrapper(prev) );
+        else
+        {
+            codecs[codec].headlessUncompress( in, new IntWrapper(start),
+                len, docids, new IntWrapper(0), n );
+            for ( int i=0;i<n;i++ )
+            {
+                prev += docids[i];
+                docids[i] = prev;
+            }
+        }
+        return docids;
+    }
+    /**
+     * Compress a block of offsets
+     * @param codec the codec to use
+     * @param docDeltas true to store them as gaps within each document
+     * @param docids the sorted docids of the whole list
+     * @param offsets the offsets of the whole list, ascending within each
+     * document
+     * @param start the index of the block's first offset
+     * @param n the number of offsets in the block
+     * @param out the buffer to write to, which must have room
+     * @param outPos the position to write at, updated
+     */
+    void compressOffsets( int codec, boolean docDeltas, int[] docids, 
+        int[] offsets, int start, int n, int[] out, IntWrapper outPos )
+    {
+        if ( docDeltas )
+        {
+            int nRuns = 0;
+            for ( int i=0;i<n;i++ )
+            {
+                int j = start+i;
+                if ( i == 0 || docids[j] != docids[j-1] )
+                {
+                    runs[nRuns++] = 1;
+                    scratch[i] = offsets[j];
+                }
+                else
+                {
+                    runs[nRuns-1]++;
+                    scratch[i] = offsets[j]-offsets[j-1];
+                }
+            }
+            out[outPos.get()] = nRuns;
+            outPos.increment();
+            codecs[codec].headlessCompress( runs, new IntWrapper(0), nRuns,
+                out, outPos );
+            codecs[codec].headlessCompress( scratch, new IntWrapper(0), n,
+                out, outPos );
+        }
+        else if ( codec == DEFAULT )
+        {
+            int[] packed = UnsortedIntCompressor.compress(
+                Arrays.copyOfRange(offsets,start,start+n) );
+            System.arraycopy( packed, 0, out, outPos.get(), packed.length );
+            outPos.add( packed.length );
+        }
+        else
+            codecs[codec].headlessCompress( offsets, new IntWrapper(start),
+                n, out, outPos );
+    }
+    /**
+     * Decompress a block of offsets
+     * @param codec the codec they were compressed with
+     * @param docDeltas true if they are gaps within each document
+     * @param in the compressed offsets of the list
+     * @param start the start of the block in it
+     * @param len the length of the block in it
+     * @param n the number of offsets in the block
+     * @return the block's offsets
+     */
+    int[] uncompressOffsets( int codec, boolean docDeltas, int[] in, 
+        int start, int len, int n )
+    {
+        if ( docDeltas )
+        {
+            int nRuns = in[start];
+            int[] lengths = new int[nRuns];
+            int[] offsets = new int[n];
+            IntWrapper inPos = new IntWrapper( start+1 );
+            int end = start+len;
+            codecs[codec].headlessUncompress( in, inPos, end-inPos.get(),
+                lengths, new IntWrapper(0), nRuns );
+            codecs[codec].headlessUncompress( in, inPos, end-inPos.get(),
+                offsets, new IntWrapper(0), n );
+            int i = 0;
+            for ( int r=0;r<nRuns;r++ )
+            {
+                int runEnd = i+lengths[r];
+                for ( i++;i<runEnd;i++ )
+                    offsets[i] += offsets[i-1];
+            }
+            return offsets;
+        }
+        else if ( codec == DEFAULT )
+            return UnsortedIntCompressor.decompress(
+                Arrays.copyOfRange(in,start,start+len) );
+        else
+        {
+            int[] offsets = new int[n];
+            codecs[codec].headlessUncompress( in, new IntWrapper(start),
+                len, offsets, new IntWrapper(0), n );
+            return offsets;
+        }
+    }
+    /**
+     * The most ints any codec may need for a list
+     * @param size the number of values in it
+     * @return a safe buffer length
+     */
+    static int maxLength( int size )
+    {
+        int nBlocks = (size+Locations.BLOCK_SIZE-1)/Locations.BLOCK_SIZE;
+        return 3*size+nBlocks*8+1024;
+    }
+    /**
+     * Can a codec be used for a list?
+     * @param codec the codec
+     * @param size the number of values in the list
+     * @param max the largest value to be compressed
+     * @return true if it is worth trying
+     */
+    private static boolean suits( int codec, int size, int max )
+    {
+        if ( codec == SIMPLE16 && max >= (1<<28) )
+            return false;
+        return size >= Locations.BLOCK_SIZE || !BLOCKWISE[codec];
+    }
+    /**
+     * Should a slower codec replace a faster one?
+     * @param len its compressed length
+     * @param best the compressed length of the best so far
+     * @return true if it is at least an eighth smaller
+     */
+    private static boolean better( int len, int best )
+    {
+        return best < 0 || len <= best-best/8-1;
+    }
+    /**
+     * Choose the codec for the docids of a list
+     * @param docids its sorted docids
+     * @return the codec number
+     */
+    int chooseDocCodec( int[] docids )
+    {
+        int size = docids.length;
+        int max = 0;
+        for ( int i=1;i<size;i++ )
+            max = Math.max( max, docids[i]-docids[i-1] );
+        if ( size > 0 )
+            max = Math.max( max, docids[0] );
+        int chosen = DEFAULT;
+        int best = -1;
+        for ( int i=0;i<ORDER.length;i++ )
+        {
+            int codec = ORDER[i];
+            if ( suits(codec,size,max) )
+            {
+                int len = trialLength( codec, false, docids, null );
+                if ( better(len,best) )
+                {
+                    best = len;
+                    chosen = codec;
+                }
+            }
+        }
+        return chosen;
+    }
+    /**
+     * Choose how to store the offsets of a list: absolute or as gaps 
+     * within each document, and with which codec. Gaps must save an 
+     * eighth like a slower codec, because rebuilding the offsets costs a 
+     * little more.
+     * @param docids its sorted docids
+     * @param offsets its offsets, ascending within each document
+     * @return the offsets part of a codec tag
+     */
+    int chooseOffsets( int[] docids, int[] offsets )
+    {
+        int size = offsets.length;
+        int max = 0;
+        for ( int i=0;i<size;i++ )
+        {
+            // only the byte widths of the default can store negatives
+            if ( offsets[i] < 0 )
+                return tag( 0, DEFAULT, false );
+            max = Math.max( max, offsets[i] );
+        }
+        int chosen = tag( 0, DEFAULT, false );
+        int best = -1;
+        for ( int i=0;i<ORDER.length;i++ )
+        {
+            int codec = ORDER[i];
+            if ( suits(codec,size,max) )
+            {
+                int len = trialLength( codec, false, docids, offsets );
+                if ( better(len,best) )
+                {
+                    best = len;
+                    chosen = tag( 0, codec, false );
+                }
+                // the default's byte widths can't tell where the runs end
+                if ( codec != DEFAULT )
+                {
+                    len = trialLength( codec, true, docids, offsets );
+                    if ( better(len,best) )
+                    {
+                        best = len;
+                        chosen = tag( 0, codec, true );
+                    }
+                }
+            }
+        }
+        return chosen;
+    }
+    /**
+     * Compress a whole list in blocks to see how long it would be
+     * @param codec the codec to try
+     * @param docDeltas true to try offsets as gaps within each document
+     * @param docids the sorted docids
+     * @param offsets the offsets, or null to try the docids
+     * @return the compressed length in ints
+     */
+    private int trialLength( int codec, boolean docDeltas, int[] docids, 
+        int[] offsets )
+    {
+        int size = docids.length;
+        if ( trial.length < maxLength(size) )
+            trial = new int[maxLength(size)];
+        IntWrapper pos = new IntWrapper( 0 );
+        for ( int start=0;start<size;start+=Locations.BLOCK_SIZE )
+        {
+            int n = Math.min( Locations.BLOCK_SIZE, size-start );
+            if ( offsets == null )
+                compressDocIds( codec, docids, start, n,
+                    (start>0)?docids[start-1]:0, trial, pos );
+            else
+                compressOffsets( codec, docDeltas, docids, offsets, start, 
+                    n, trial, pos );
+        }
+        return pos.get();
+    }
+    /**
+     * Make a locations object from lists of postings
+     * @param docIds the docids of the postings
+     * @param positions their offsets
+     * @return the locations
+     */
+    private static Locations fill( int[] docIds, int[] positions )
+    {
+        Locations locs = new Locations();
+        for ( int i=0;i<docIds.length;i++ )
+            locs.add( docIds[i], positions[i] );
+        return locs;
+    }
+    /**
+     * Do two sets of postings have the same postings?
+     * @param a the first
+     * @param b the second
+     * @return true if they are the same
+     */
+    private static boolean same( Postings a, Postings b )
+    {
+        return Arrays.equals( a.getDocIds(), b.getDocIds() )
+            && Arrays.equals( a.getPositions(), b.getPositions() );
+    }
+    /**
+     * Make posting lists of several shapes, one each
+     * @return pairs of arrays of docids and offsets
+     */
+    private static int[][][] shapes()
+    {
+        Random r = new Random( 20 );
+        int[][][] shapes = new int[7][2][];
+        // one posting
+        shapes[0] = new int[][]{{0},{0}};
+        // shorter than a block
+        shapes[1] = new int[][]{new int[50],new int[50]};
+        for ( int i=0;i<50;i++ )
+        {
+            shapes[1][0][i] = r.nextInt( 20 );
+            shapes[1][1][i] = r.nextInt( 500 );
+        }
+        // exactly a block
+        shapes[2] = new int[][]{new int[Locations.BLOCK_SIZE],
+            new int[Locations.BLOCK_SIZE]};
+        for ( int i=0;i<Locations.BLOCK_SIZE;i++ )
+        {
+            shapes[2][0][i] = i;
+            shapes[2][1][i] = 1;
+        }
+        // many blocks
+        shapes[3] = new int[][]{new int[5000],new int[5000]};
+        for ( int i=0;i<5000;i++ )
+        {
+            shapes[3][0][i] = r.nextInt( 2000 );
+            shapes[3][1][i] = r.nextInt( 100000 );
+        }
+        // every document, with small offsets
+        shapes[4] = new int[][]{new int[3000],new int[3000]};
+        for ( int i=0;i<3000;i++ )
+        {
+            shapes[4][0][i] = i/3;
+            shapes[4][1][i] = i%3;
+        }
+        // values too big for Simple16
+        shapes[5] = new int[][]{new int[300],new int[300]};
+        for ( int i=0;i<300;i++ )
+        {
+            shapes[5][0][i] = (1<<29)+r.nextInt( 1<<20 );
+            shapes[5][1][i] = (1<<30)+r.nextInt( 1<<20 );
+        }
+        // one long document
+        shapes[6] = new int[][]{new int[3000],new int[3000]};
+        for ( int i=0;i<3000;i++ )
+        {
+            shapes[6][0][i] = 7;
+            shapes[6][1][i] = i*3;
+        }
+        return shapes;
+    }
+    /**
+     * Check that lists of several shapes come back the same after being
+     * compressed and after being written to a segment
+     */
+    public static void main( String[] args )
+    {
+        try
+        {
+            File root = Files.createTempDirectory( "codec-check" ).toFile();
+            int[][][] shapes = shapes();
+            HashMap<String,Locations> map = new HashMap<String,Locations>();
+            TreeSet<String> used = new TreeSet<String>();
+            boolean ok = true;
+            for ( int i=0;i<shapes.length;i++ )
+            {
+                Locations locs = fill( shapes[i][0], shapes[i][1] );
+                Postings expected = locs.postings();
+                locs.compress();
+                used.add( NAMES[docCodec(locs.codec)]+"/"
+                    +NAMES[offsetCodec(locs.codec)] );
+                Locations copy = new Locations( locs.compressedDocids,
+                    locs.compressedOffsets, locs.skips, locs.docFreq,
+                    locs.codec );
+                ok &= same( expected, copy.postings() );
+                map.put( "shape"+i, fill(shapes[i][0],shapes[i][1]) );
+            }
+            File file = new File( root, "shapes.seg" );
+            SegmentWriter.write( file, new ArrayList<String>(), map );
+            Segment seg = Segment.open( file );
+            for ( int i=0;i<shapes.length;i++ )
+                ok &= same( fill(shapes[i][0],shapes[i][1]).postings(),
+                    seg.lookup("shape"+i).postings() );
+            String report = seg.codecReport();
+            seg.close();
+            file.delete();
+            if ( ok )
+                System.out.println( "Lists round-tripped using "+used
+                    +"\n"+report );
+            else
+                System.out.println( "Codec round-trip failed" );
+            root.delete();
+        }
+        catch ( Exception e )
+        {
+            e.printStackTrace( System.out );
+        }
+    }
+}
@@ -0,0 +1,177 @@
+/*
+ * This file is part of Search.
+ *
+ *  Search is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Search is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Search.  If not, see <http://www.gnu.org/licenses/>.
+ *  (c) copyright Desmond Schmidt 2015
+ */
+package search.index;
+import java.util.Arrays;
+import search.exception.IndexException;
+/**
+ * Walk forwards through the postings of one term, using the block skip
+ * entries to jump over blocks and decoding only the blocks we land in.
+ * The offsets of a block are only decoded if one of its documents matches.
+ * A term may have postings in several segments, each numbering its 
+ * documents after those of the one before, so their blocks are simply 
+ * visited one after the other.
+ * @author desmond
+ */
+public class PostingsCursor
+{
+    /** returned when there are no more documents */
+    static final int NO_MORE_DOCS = Integer.MAX_VALUE;
+    /** the locations of the term in each segment, in document order */
+    Locations[] parts;
+    /** the part and block within it of each block we visit */
+    int[] partOf;
+    int[] blockOf;
+    int nBlocks;
+    /** the current block number or -1 before the first */
+    int block;
+    /** the decoded docids of the current block */
+    int[] docIds;
+    /** the offsets of the current block, or null until needed */
+    int[] offsets;
+    /** the index of the current posting in the block */
+    int index;
+    /**
+     * Create a cursor positioned before the first posting
+     * @param locs the locations of the term
+     */
+    PostingsCursor( Locations locs )
+    {
+        this( new Locations[]{locs} );
+    }
+    /**
+     * Create a cursor over the postings of a term in several segments
+     * @param parts the term's locations in each, in ascending docId order
+     */
+    PostingsCursor( Locations[] parts )
+    {
+        this.parts = parts;
+        for ( int i=0;i<parts.length;i++ )
+            nBlocks += parts[i].numBlocks();
+        this.partOf = new int[nBlocks];
+        this.blockOf = new int[nBlocks];
+        int b = 0;
+        for ( int i=0;i<parts.length;i++ )
+        {
+            int n = parts[i].numBlocks();
+            for ( int j=0;j<n;j++,b++ )
+            {
+                partOf[b] = i;
+                blockOf[b] = j;
+            }
+        }
+        this.block = -1;
+    }
+    /**
+     * Get the number of documents we may visit
+     * @return the term's document frequency
+     * @throws IndexException
+     */
+    int docFreq() throws IndexException
+    {
+        int df = 0;
+        for ( int i=0;i<parts.length;i++ )
+            df += parts[i].docFreq();
+        return df;
+    }
+    /**
+     * Get the current document
+     * @return its docId or NO_MORE_DOCS
+     */
+    int docId()
+    {
+        if ( docIds == null || index >= docIds.length )
+            return NO_MORE_DOCS;
+        else
+            return docIds[index];
+    }
+    /**
+     * Load a block and go to its start
+     * @param b the block number
+     * @throws IndexException
+     */
+    private void load( int b ) throws IndexException
+    {
+        block = b;
+        index = 0;
+        docIds = (b<nBlocks)
+            ? parts[partOf[b]].blockDocIds(blockOf[b]) : null;
+        offsets = null;
+    }
+    /**
+     * Move to the first posting whose docId is at least target. Never
+     * moves backwards.
+     * @param target the smallest acceptable docId
+     * @return the docId we arrived at or NO_MORE_DOCS
+     * @throws IndexException
+     */
+    int advance( int target ) throws IndexException
+    {
+        if ( block < 0 )
+            load( skipTo(0,target) );
+        else if ( docIds != null && docIds[docIds.length-1] < target )
+            load( skipTo(block+1,target) );
+        while ( docIds != null )
+        {
+            while ( index < docIds.length )
+            {
+                if ( docIds[index] >= target )
+                    return docIds[index];
+                index++;
+            }
+            load( block+1 );
+        }
+        return NO_MORE_DOCS;
+    }
+    /**
+     * Find the first block that may contain a docId using the skip entries
+     * @param b the block to start from
+     * @param target the docId to look for
+     * @return the first block whose last docId is at least target
+     * @throws IndexException
+     */
+    private int skipTo( int b, int target ) throws IndexException
+    {
+        while ( b < nBlocks 
+            && parts[partOf[b]].lastDocId(blockOf[b]) < target )
+            b++;
+        return b;
+    }
+    /**
+     * Collect the positions of the current document and move past it
+     * @return the positions in the current document in ascending order
+     * @throws IndexException
+     */
+    int[] positions() throws IndexException
+    {
+        int doc = docId();
+        int[] res = new int[4];
+        int n = 0;
+        while ( docIds != null && docId() == doc )
+        {
+            if ( offsets == null )
+                offsets = parts[partOf[block]].blockPositions( blockOf[block], 
+                    docIds.length );
+            if ( n == res.length )
+                res = Arrays.copyOf( res, n*2 );
+            res[n++] = offsets[index++];
+            if ( index == docIds.length )
+                load( block+1 );
+        }
+        return Arrays.copyOf( res, n );
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ * This file is part of Search.
+ *
+ *  Search is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Search is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Search.  If not, see <http://www.gnu.org/licenses/>.
+ *  (c) copyright Desmond Schmidt 2015
+ */
+package search.index;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.PrintWriter;
+import search.JettyServer;
+import search.exception.SearchException;
+/**
+ * Write out the postings of a built index as the integer lists its codecs
+ * compress, one list per term per segment, so that codecs can be compared
+ * on a real corpus (see BenchmarkPostings). Three files are written, each
+ * with one comma-separated list per line: the docid of every posting, in 
+ * order; the offset of every posting; and the offsets as gaps within 
+ * each document, the first offset in a document being kept whole.
+ * @author desmond
+ */
+public class PostingsExport
+{
+    static final String DOCIDS = "docids.csv";
+    static final String OFFSETS = "offsets.csv";
+    static final String GAPS = "offset-gaps.csv";
+    /**
+     * Write a list of ints as one line
+     * @param pw the file to write to
+     * @param values the values
+     */
+    private static void writeLine( PrintWriter pw, int[] values )
+    {
+        StringBuilder sb = new StringBuilder();
+        for ( int i=0;i<values.length;i++ )
+        {
+            if ( i > 0 )
+                sb.append( ',' );
+            sb.append( values[i] );
+        }
+        pw.println( sb.toString() );
+    }
+    /**
+     * Export the postings of the current generation of an index
+     * @param projid the project identifier
+     * @param dir the directory to write the lists to
+     * @return the number of lists written to each file
+     * @throws SearchException 
+     */
+    public static int export( String projid, File dir ) 
+        throws SearchException
+    {
+        PrintWriter docs = null;
+        PrintWriter offs = null;
+        PrintWriter gaps = null;
+        try
+        {
+            if ( !dir.exists() && !dir.mkdirs() )
+                throw new SearchException("Couldn't create "+dir);
+            Index ind = Index.load( projid );
+            docs = new PrintWriter( new BufferedWriter(new FileWriter(
+                new File(dir,DOCIDS))) );
+            offs = new PrintWriter( new BufferedWriter(new FileWriter(
+                new File(dir,OFFSETS))) );
+            gaps = new PrintWriter( new BufferedWriter(new FileWriter(
+                new File(dir,GAPS))) );
+            int nLists = 0;
+            for ( int i=0;i<ind.segments.size();i++ )
+            {
+                TermCursor tc = ind.segments.get(i).terms();
+                while ( tc.next() )
+                {
+                    Postings p = tc.locations().postings();
+                    int[] docids = p.getDocIds();
+                    int[] offsets = p.getPositions();
+                    int[] deltas = new int[offsets.length];
+                    for ( int j=0;j<offsets.length;j++ )
+                    {
+                        if ( j > 0 && docids[j] == docids[j-1] )
+                            deltas[j] = offsets[j]-offsets[j-1];
+                        else
+                            deltas[j] = offsets[j];
+                    }
+                    writeLine( docs, docids );
+                    writeLine( offs, offsets );
+                    writeLine( gaps, deltas );
+                    nLists++;
+                }
+            }
+            return nLists;
+        }
+        catch ( SearchException se )
+        {
+            throw se;
+        }
+        catch ( Exception e )
+        {
+            throw new SearchException( e );
+        }
+        finally
+        {
+            if ( docs != null )
+                docs.close();
+            if ( offs != null )
+                offs.close();
+            if ( gaps != null )
+                gaps.close();
+        }
+    }
+    /**
+     * Export an index from the command line
+     * @param args the index root, the project and the output directory
+     */
+    public static void main( String[] args )
+    {
+        if ( args.length != 3 )
+            System.out.println("usage: java search.index.PostingsExport "
+                +"<index-root> <projid> <output-dir>");
+        else
+        {
+            try
+            {
+                JettyServer.indexRoot = args[0];
+                int n = export( args[1], new File(args[2]) );
+                System.out.println("Wrote "+n+" lists of each kind to "
+                    +args[2]);
+            }
+            catch ( Exception e )
+            {
+                e.printStackTrace();
+            }
+        }
+    }
+}
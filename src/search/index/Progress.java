@@ -19,41 +19,70 @@ package search.index;
 import java.io.PrintWriter;
 
 /**
- * Provide a kind of callback facility to report progress
+ * Provide a kind of callback facility to report progress. The counts can
+ * also be read at any time by another thread, e.g. to report the status of
+ * a build running in the background.
  * @author desmond
  */
 public class Progress
 {
     int total;
     int amount;
+    long words;
     int lastValue;
     int last;
     int interval;
+    long started;
     PrintWriter pw;
+    /**
+     * Report progress to nobody, only keeping count of it
+     */
+    public Progress()
+    {
+        this( null );
+    }
+    /**
+     * Report progress as percentages, one per line
+     * @param pw the writer to print them to or null
+     */
     public Progress( PrintWriter pw )
     {
         this.pw = pw;
         this.interval = 5;
         this.last = 0;
+        this.started = System.currentTimeMillis();
     }
     /**
      * Set the total we are working towards
      * @param total the total value when finished
      */
-    public void setTotal( int total )
+    public synchronized void setTotal( int total )
     {
         this.total = total;
     }
-    public boolean finished()
+    public synchronized boolean finished()
     {
         return this.amount==this.total;
     }
     /**
-     * Update the progress
+     * Update the progress. Several build threads may call this at once.
+     * @param value the number of documents done since the last update
      */
     public void update( int value ) 
+    {
+        update( value, 0 );
+    }
+    /**
+     * Update the progress. Several build threads may call this at once.
+     * @param value the number of documents done since the last update
+     * @param nWords the number of words they contained
+     */
+    public synchronized void update( int value, int nWords ) 
     {
         amount += value;
+        words += nWords;
+        if ( total == 0 || pw == null )
+            return;
         int diff = (amount-last)*100/total;
         if ( diff >= interval || amount == total )
         {
@@ -62,4 +91,44 @@ public class Progress
             pw.flush();
         }
     }
+    /**
+     * Get the total we are working towards
+     * @return the number of documents or 0 if not yet known
+     */
+    public synchronized int getTotal()
+    {
+        return total;
+    }
+    /**
+     * Get the amount done so far
+     * @return the number of documents done
+     */
+    public synchronized int getAmount()
+    {
+        return amount;
+    }
+    /**
+     * Get the number of words in the documents done so far
+     * @return a long
+     */
+    public synchronized long getWords()
+    {
+        return words;
+    }
+    /**
+     * Get the percentage done
+     * @return a number from 0 to 100
+     */
+    public synchronized int getPercent()
+    {
+        return (total==0)?0:(int)(amount*100L/total);
+    }
+    /**
+     * Get the time since we started
+     * @return the elapsed time in milliseconds
+     */
+    public long getElapsed()
+    {
+        return System.currentTimeMillis()-started;
+    }
 }
@@ -0,0 +1,594 @@
+/*
+ * This file is part of Search.
+ *
+ *  Search is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Search is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Search.  If not, see <http://www.gnu.org/licenses/>.
+ *  (c) copyright Desmond Schmidt 2015
+ */
+package search.index;
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import search.exception.IndexException;
+/**
+ * A read-only, memory-mapped binary index segment. The layout is:
+ * <ul><li>a header of 9 ints: magic, version, number of documents, number
+ * of terms, the offsets of the docid table, term index, term
+ * dictionary and postings, and the number of the first document in the
+ * segment</li>
+ * <li>the docid table: a short length and UTF-8 bytes per document, then 
+ * an int count, or -1 if they aren't known, and the start and end 
+ * offsets of its text not read by every version (see Phrase.variants).
+ * Segments written by an update continue the numbering of the documents
+ * before them.</li>
+ * <li>the term index: one int offset into the dictionary per block of 
+ * BLOCK_TERMS terms</li>
+ * <li>the term dictionary, sorted by UTF-8 bytes and front-coded with 
+ * vints: the length of the prefix shared with the term before (0 at the
+ * start of a block), the length and bytes of the rest, the int index of
+ * the postings (only at the start of a block, since each term's postings
+ * follow the last's), the lengths of its compressed docids, offsets and
+ * skip entries, its document frequency and the PostingsCodec tag of the
+ * codecs its blocks were compressed with</li>
+ * <li>the postings: compressed docid blocks, compressed offset blocks 
+ * and block skip entries for each term, as ints</li></ul>
+ * Nothing but the docid table is read until a term is looked up. All 
+ * offsets are ints and the file is mapped as one buffer, so a segment 
+ * can be at most MAX_SIZE bytes long. SegmentWriter refuses to write a 
+ * bigger one.
+ * @author desmond
+ */
+public class Segment
+{
+    static final int MAGIC = 0x53524348;
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 36;
+    /** the longest segment we can map and address with int offsets */
+    static final long MAX_SIZE = Integer.MAX_VALUE;
+    /** the number of terms in each front-coded block of the dictionary */
+    static final int BLOCK_TERMS = 16;
+    /** keys of the index record kept in the database */
+    static final String FORMAT = "SEGMENT";
+    static final String NDOCS = "documents";
+    static final String NTERMS = "terms";
+    static final String GENERATION = "generation";
+    MappedByteBuffer buf;
+    IntBuffer postings;
+    /** the number of our first document in the whole index */
+    int docBase;
+    int nTerms;
+    int termIndexOffset;
+    int termsOffset;
+    int postingsOffset;
+    ArrayList<String> documents;
+    /** the variant spans of each document, or null where not known */
+    ArrayList<int[]> variants;
+    /** the chunks the segment is read from, or null for a local file */
+    ChunkCache chunks;
+    /**
+     * Map a segment file into memory
+     * @param file the segment file
+     * @throws IndexException
+     */
+    private Segment( File file ) throws IndexException
+    {
+        try
+        {
+            RandomAccessFile raf = new RandomAccessFile( file, "r" );
+            FileChannel fc = raf.getChannel();
+            if ( fc.size() > MAX_SIZE )
+            {
+                raf.close();
+                throw new IndexException(file+" is "+fc.size()
+                    +" bytes long but a segment can be at most "+MAX_SIZE);
+            }
+            // the mapping stays valid after the channel is closed
+            buf = fc.map( FileChannel.MapMode.READ_ONLY, 0, fc.size() );
+            raf.close();
+        }
+        catch ( IndexException ie )
+        {
+            throw ie;
+        }
+        catch ( Exception e )
+        {
+            throw new IndexException( e );
+        }
+        readHeader( file.toString() );
+    }
+    /**
+     * Read a segment from a local copy of one kept in a ChunkStore
+     * @param cache the local copy
+     * @throws IndexException
+     */
+    private Segment( ChunkCache cache ) throws IndexException
+    {
+        this.chunks = cache;
+        this.buf = cache.getBuffer();
+        cache.ensure( 0, HEADER_SIZE );
+        readHeader( cache.getName() );
+    }
+    /**
+     * Read the header and the docid table
+     * @param name the name of the segment for messages
+     * @throws IndexException
+     */
+    private void readHeader( String name ) throws IndexException
+    {
+        if ( buf.getInt(0) != MAGIC )
+            throw new IndexException(name+" is not an index segment");
+        int version = buf.getInt(4);
+        if ( version != VERSION )
+            throw new IndexException("Unsupported segment version "
+                +version);
+        int nDocs = buf.getInt(8);
+        nTerms = buf.getInt(12);
+        int docsOffset = buf.getInt(16);
+        termIndexOffset = buf.getInt(20);
+        termsOffset = buf.getInt(24);
+        postingsOffset = buf.getInt(28);
+        docBase = buf.getInt(32);
+        // the docid table and the term index
+        need( docsOffset, termsOffset );
+        documents = new ArrayList<String>( nDocs );
+        variants = new ArrayList<int[]>( nDocs );
+        int pos = docsOffset;
+        for ( int i=0;i<nDocs;i++ )
+        {
+            int len = buf.getShort(pos)&0xFFFF;
+            documents.add( readUTF8(pos+2,len) );
+            pos += 2+len;
+            int nSpans = buf.getInt( pos );
+            pos += 4;
+            int[] spans = null;
+            if ( nSpans >= 0 )
+            {
+                spans = new int[nSpans];
+                for ( int j=0;j<nSpans;j++ )
+                    spans[j] = buf.getInt( pos+j*4 );
+                pos += nSpans*4;
+            }
+            variants.add( spans );
+        }
+        ByteBuffer dup = buf.duplicate();
+        dup.position( postingsOffset );
+        postings = dup.slice().asIntBuffer();
+    }
+    /**
+     * Open a segment file
+     * @param file the file to map
+     * @return the segment
+     * @throws IndexException
+     */
+    public static Segment open( File file ) throws IndexException
+    {
+        return new Segment( file );
+    }
+    /**
+     * Open a segment kept in a ChunkStore
+     * @param cache the local copy of its chunks
+     * @return the segment
+     * @throws IndexException
+     */
+    static Segment open( ChunkCache cache ) throws IndexException
+    {
+        return new Segment( cache );
+    }
+    /**
+     * Unmap a segment file now instead of whenever its buffer is garbage
+     * collected, so that it can be deleted at once on any platform. Only 
+     * for segments no other thread can see, such as the runs spilled by a
+     * build: reading one after it is closed is an error.
+     */
+    void close()
+    {
+        if ( chunks == null && buf != null )
+            unmap( buf );
+        buf = null;
+        postings = null;
+    }
+    /**
+     * Release the memory mapping of a buffer. There is no public way to 
+     * do this, so if the JVM's own ways aren't there we leave it to the 
+     * garbage collector.
+     * @param mapped the mapped buffer
+     */
+    private static void unmap( MappedByteBuffer mapped )
+    {
+        try
+        {
+            try
+            {
+                // Java 9 and later
+                Class<?> uc = Class.forName( "sun.misc.Unsafe" );
+                Method clean = uc.getMethod( "invokeCleaner", 
+                    ByteBuffer.class );
+                Field f = uc.getDeclaredField( "theUnsafe" );
+                f.setAccessible( true );
+                clean.invoke( f.get(null), mapped );
+            }
+            catch ( NoSuchMethodException e )
+            {
+                // Java 7 and 8
+                Method cm = mapped.getClass().getMethod( "cleaner" );
+                cm.setAccessible( true );
+                Object cleaner = cm.invoke( mapped );
+                if ( cleaner != null )
+                    cleaner.getClass().getMethod( "clean" ).invoke( cleaner );
+            }
+        }
+        catch ( Exception e )
+        {
+        }
+    }
+    /**
+     * Make sure a range of bytes has been fetched, if the segment is kept 
+     * in a ChunkStore
+     * @param from the offset of the first byte
+     * @param to the offset after the last
+     * @throws IndexException
+     */
+    void need( int from, int to ) throws IndexException
+    {
+        if ( chunks != null )
+            chunks.ensure( from, to );
+    }
+    /**
+     * Read a UTF-8 string from the buffer
+     * @param pos the byte offset
+     * @param len its length in bytes
+     * @return the string
+     */
+    private String readUTF8( int pos, int len )
+    {
+        byte[] bytes = new byte[len];
+        for ( int i=0;i<len;i++ )
+            bytes[i] = buf.get(pos+i);
+        return new String( bytes, SegmentWriter.UTF8 );
+    }
+    /**
+     * Compare two byte arrays as unsigned bytes (i.e. UTF-8 order)
+     * @param a the first array
+     * @param b the second array
+     * @return negative, 0 or positive if a is less, equal or greater than b
+     */
+    static int compare( byte[] a, byte[] b )
+    {
+        int len = Math.min( a.length, b.length );
+        for ( int i=0;i<len;i++ )
+        {
+            int diff = (a[i]&0xFF) - (b[i]&0xFF);
+            if ( diff != 0 )
+                return diff;
+        }
+        return a.length - b.length;
+    }
+    /**
+     * Compare the first term of a block of the dictionary with a key. It
+     * shares no prefix, so it is stored whole after two vints, the first 0.
+     * @param block the block number
+     * @param key the UTF-8 key
+     * @return negative, 0 or positive as for compare
+     */
+    private int compareBlock( int block, byte[] key ) throws IndexException
+    {
+        needBlock( block );
+        int pos = blockStart( block )+1;
+        int len = 0;
+        int shift = 0;
+        byte b;
+        do
+        {
+            b = buf.get( pos++ );
+            len |= (b&0x7F)<<shift;
+            shift += 7;
+        }
+        while ( (b&0x80) != 0 );
+        int min = Math.min( len, key.length );
+        for ( int i=0;i<min;i++ )
+        {
+            int diff = (buf.get(pos+i)&0xFF) - (key[i]&0xFF);
+            if ( diff != 0 )
+                return diff;
+        }
+        return len - key.length;
+    }
+    /**
+     * Get the byte offset of a block of the front-coded dictionary
+     * @param block the block number
+     * @return the offset of its first entry in the buffer
+     */
+    int blockStart( int block )
+    {
+        return termsOffset + buf.getInt(termIndexOffset+block*4);
+    }
+    /**
+     * Make sure a block of the dictionary has been fetched
+     * @param block the block number
+     * @throws IndexException
+     */
+    void needBlock( int block ) throws IndexException
+    {
+        if ( chunks != null )
+        {
+            int nBlocks = (nTerms+BLOCK_TERMS-1)/BLOCK_TERMS;
+            int end = (block+1<nBlocks)?blockStart(block+1):postingsOffset;
+            chunks.ensure( blockStart(block), end );
+        }
+    }
+    /**
+     * Get a cursor before the first term of the dictionary
+     * @return a new cursor
+     */
+    public TermCursor terms()
+    {
+        return new TermCursor( this );
+    }
+    /**
+     * Find the first term no less than a key. We search the first terms 
+     * of the blocks and then decode along the block.
+     * @param key the UTF-8 key
+     * @return a cursor on that term, or with an ordinal of nTerms if every
+     * term is less than the key
+     * @throws IndexException
+     */
+    TermCursor ceiling( byte[] key ) throws IndexException
+    {
+        TermCursor tc = new TermCursor( this );
+        // the last block whose first term is no greater than the key
+        int top = 0;
+        int bot = (nTerms+BLOCK_TERMS-1)/BLOCK_TERMS-1;
+        int block = 0;
+        while ( top <= bot )
+        {
+            int mid = (top+bot)>>>1;
+            if ( compareBlock(mid,key) <= 0 )
+            {
+                block = mid;
+                top = mid+1;
+            }
+            else
+                bot = mid-1;
+        }
+        if ( tc.seek(block*BLOCK_TERMS) )
+        {
+            while ( tc.compareTo(key) < 0 )
+                if ( !tc.next() )
+                    break;
+            return tc;
+        }
+        tc.ord = nTerms;
+        return tc;
+    }
+    /**
+     * Look up a term in the dictionary
+     * @param term the term to look for
+     * @return its locations or null if it isn't there
+     * @throws IndexException
+     */
+    public Locations lookup( String term ) throws IndexException
+    {
+        byte[] key = term.getBytes( SegmentWriter.UTF8 );
+        TermCursor tc = ceiling( key );
+        if ( tc.ord() < nTerms && tc.compareTo(key) == 0 )
+            return tc.locations();
+        else
+            return null;
+    }
+    /**
+     * Get the ordinal of a term
+     * @param term the term to look for
+     * @return its position in the sorted dictionary or -1 if it isn't there
+     * @throws IndexException
+     */
+    public int ordinal( String term ) throws IndexException
+    {
+        byte[] key = term.getBytes( SegmentWriter.UTF8 );
+        TermCursor tc = ceiling( key );
+        if ( tc.ord() < nTerms && tc.compareTo(key) == 0 )
+            return tc.ord();
+        else
+            return -1;
+    }
+    /**
+     * Get a term by its ordinal
+     * @param ord its position in the sorted dictionary
+     * @return the term or null if there is no such term
+     * @throws IndexException
+     */
+    public String term( int ord ) throws IndexException
+    {
+        TermCursor tc = new TermCursor( this );
+        return (tc.seek(ord))?tc.term():null;
+    }
+    /**
+     * Get the ordinals of the terms that start with a prefix
+     * @param prefix the prefix
+     * @return the first ordinal and one past the last, equal if none match
+     * @throws IndexException
+     */
+    public int[] prefixRange( String prefix ) throws IndexException
+    {
+        byte[] from = prefix.getBytes( SegmentWriter.UTF8 );
+        // 0xFF never occurs in UTF-8 so it sorts after every extension
+        byte[] to = Arrays.copyOf( from, from.length+1 );
+        to[from.length] = (byte)0xFF;
+        return new int[]{ceiling(from).ord(),ceiling(to).ord()};
+    }
+    /**
+     * Get the ordinals of the terms in a range
+     * @param from the least term to include
+     * @param to the term to stop before or null for all the rest
+     * @return the first ordinal and one past the last, equal if none match
+     * @throws IndexException
+     */
+    public int[] range( String from, String to ) throws IndexException
+    {
+        int first = ceiling(from.getBytes(SegmentWriter.UTF8)).ord();
+        int last = (to==null)?nTerms
+            :ceiling(to.getBytes(SegmentWriter.UTF8)).ord();
+        return new int[]{first,Math.max(first,last)};
+    }
+    /**
+     * Read the compressed postings of a dictionary entry
+     * @param start the int index of its postings
+     * @param docLen the number of ints of compressed docids
+     * @param offLen the number of ints of compressed offsets
+     * @param skipLen the number of ints of skip entries
+     * @param docFreq the number of documents
+     * @param codec the PostingsCodec tag
+     * @return a Locations object
+     * @throws IndexException
+     */
+    Locations readLocations( int start, int docLen, int offLen, 
+        int skipLen, int docFreq, int codec ) throws IndexException
+    {
+        need( postingsOffset+start*4, 
+            postingsOffset+(start+docLen+offLen+skipLen)*4 );
+        int[] docids = new int[docLen];
+        int[] offsets = new int[offLen];
+        int[] skips = new int[skipLen];
+        // a private view so concurrent lookups don't share a position
+        IntBuffer ib = postings.duplicate();
+        ib.position( start );
+        ib.get( docids );
+        ib.get( offsets );
+        ib.get( skips );
+        return new Locations( docids, offsets, skips, docFreq, codec );
+    }
+    /**
+     * Describe how well the postings are compressed: for the docids and 
+     * the offsets, how many lists use each codec and the bits they take 
+     * per posting. Offsets stored as gaps within each document are counted
+     * apart from absolute ones. Only the dictionary and the first int of 
+     * each list are read.
+     * @return a report of several lines
+     * @throws IndexException
+     */
+    public String codecReport() throws IndexException
+    {
+        int n = PostingsCodec.NAMES.length;
+        // offsets by document follow the absolute ones
+        long[][] lists = new long[2][2*n];
+        long[][] ints = new long[2][2*n];
+        long[][] values = new long[2][2*n];
+        long skipInts = 0;
+        long total = 0;
+        TermCursor tc = terms();
+        while ( tc.next() )
+        {
+            int start = tc.start;
+            int docLen = tc.docLen;
+            int offLen = tc.offLen;
+            skipInts += tc.skipLen;
+            int codec = tc.codec;
+            // the count comes first unless the list is a lone posting
+            int size = (docLen>1)?postings.get(start):1;
+            int docCodec = PostingsCodec.docCodec( codec );
+            int offCodec = PostingsCodec.offsetCodec( codec );
+            if ( PostingsCodec.docDeltas(codec) )
+                offCodec += n;
+            lists[0][docCodec]++;
+            ints[0][docCodec] += docLen;
+            values[0][docCodec] += size;
+            lists[1][offCodec]++;
+            ints[1][offCodec] += offLen;
+            values[1][offCodec] += size;
+            total += size;
+        }
+        StringBuilder sb = new StringBuilder();
+        String[] kinds = {"docids","offsets"};
+        for ( int k=0;k<2;k++ )
+        {
+            long allInts = 0;
+            for ( int c=0;c<2*n;c++ )
+            {
+                allInts += ints[k][c];
+                if ( lists[k][c] > 0 )
+                    sb.append( kinds[k]+": "+PostingsCodec.NAMES[c%n]
+                        +((c>=n)?" by document ":" ")+lists[k][c]
+                        +" lists, "+values[k][c]+" postings, "
+                        +bitsPerInt(ints[k][c],values[k][c])
+                        +" bits/int\n" );
+            }
+            sb.append( kinds[k]+": "+bitsPerInt(allInts,total)
+                +" bits/int overall\n" );
+        }
+        sb.append( "skips: "+bitsPerInt(skipInts,total)+" bits/int\n" );
+        return sb.toString();
+    }
+    /**
+     * Format the bits used per value
+     * @param nInts the number of compressed ints
+     * @param nValues the number of values they hold
+     * @return a number with two decimal places
+     */
+    private static String bitsPerInt( long nInts, long nValues )
+    {
+        return String.format( "%.2f", (nValues==0)?0.0:nInts*32.0/nValues );
+    }
+    /**
+     * Get the table of docids
+     * @return the docids, indexed by document number less the docBase
+     */
+    public ArrayList<String> getDocuments()
+    {
+        return documents;
+    }
+    /**
+     * Get the variant spans of each document
+     * @return the spans, or null where not known, indexed like the docids
+     */
+    public ArrayList<int[]> getVariants()
+    {
+        return variants;
+    }
+    /**
+     * Get the number of the first document in this segment
+     * @return 0 for a full index, otherwise the documents before it
+     */
+    public int getDocBase()
+    {
+        return docBase;
+    }
+    /**
+     * Get the number of terms in the dictionary
+     * @return an int
+     */
+    public int numTerms()
+    {
+        return nTerms;
+    }
+    /**
+     * Estimate the memory this segment will occupy once queries have read
+     * all of it. Its file is mapped, so most of it is outside the heap.
+     * @return its mapped length plus its docid and variant tables
+     */
+    long memorySize()
+    {
+        long size = buf.capacity();
+        for ( int i=0;i<documents.size();i++ )
+            size += 48 + 2*documents.get(i).length();
+        for ( int i=0;i<variants.size();i++ )
+            if ( variants.get(i) != null )
+                size += 16 + 4*variants.get(i).length;
+        return size;
+    }
+}
@@ -0,0 +1,143 @@
+/*
+ * This file is part of Search.
+ *
+ *  Search is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Search is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Search.  If not, see <http://www.gnu.org/licenses/>.
+ *  (c) copyright Desmond Schmidt 2015
+ */
+package search.index;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import search.exception.IndexException;
+/**
+ * Merge several segments into one by walking their sorted term 
+ * dictionaries together, so only one term's postings are in memory at 
+ * once. Deleted documents are dropped and the rest renumbered in order.
+ * The segments' documents may interleave, as in the runs spilled by a 
+ * build.
+ * @author desmond
+ */
+public class SegmentMerger
+{
+    /**
+     * Merge segments into a new segment file
+     * @param segs the segments in document order, each numbering its 
+     * documents after those of the one before
+     * @param deleted the documents to drop or null to keep them all
+     * @param dst the file to write the merged segment to
+     * @return the number of documents in the merged segment
+     * @throws IndexException 
+     */
+    public static int merge( List<Segment> segs, BitSet deleted, File dst ) 
+        throws IndexException
+    {
+        // number the live documents in their existing order
+        ArrayList<String> documents = new ArrayList<String>();
+        ArrayList<int[]> variants = new ArrayList<int[]>();
+        Segment last = segs.get(segs.size()-1);
+        int[] renumber = new int[last.getDocBase()
+            +last.getDocuments().size()];
+        for ( int i=0;i<segs.size();i++ )
+        {
+            Segment seg = segs.get( i );
+            ArrayList<String> docs = seg.getDocuments();
+            for ( int j=0;j<docs.size();j++ )
+            {
+                int docId = seg.getDocBase()+j;
+                if ( deleted != null && deleted.get(docId) )
+                    renumber[docId] = -1;
+                else
+                {
+                    renumber[docId] = documents.size();
+                    documents.add( docs.get(j) );
+                    variants.add( seg.getVariants().get(j) );
+                }
+            }
+        }
+        merge( segs, renumber, documents, variants, 0, dst );
+        return documents.size();
+    }
+    /**
+     * Merge segments into a new segment file, renumbering their documents
+     * @param segs the segments to merge
+     * @param renumber the new number of each document in the segments, in
+     * the same order as the old numbers, or -1 to drop it
+     * @param documents the docids of the merged segment
+     * @param variants the variant spans of its documents, or null
+     * @param docBase the new number of its first document
+     * @param dst the file to write the merged segment to
+     * @return the number of terms in the merged segment
+     * @throws IndexException 
+     */
+    public static int merge( List<Segment> segs, int[] renumber, 
+        List<String> documents, List<int[]> variants, int docBase, 
+        File dst ) throws IndexException
+    {
+        SegmentWriter sw = new SegmentWriter( dst );
+        try
+        {
+            sw.setDocuments( documents, variants, docBase );
+            int n = segs.size();
+            int nTerms = 0;
+            TermCursor[] heads = new TermCursor[n];
+            for ( int i=0;i<n;i++ )
+                heads[i] = head( segs.get(i).terms() );
+            while ( true )
+            {
+                // find the least term at the head of any segment
+                byte[] term = null;
+                for ( int i=0;i<n;i++ )
+                    if ( heads[i] != null 
+                        && (term == null || heads[i].compareTo(term) < 0) )
+                        term = heads[i].termBytes();
+                if ( term == null )
+                    break;
+                Locations merged = new Locations();
+                for ( int i=0;i<n;i++ )
+                {
+                    if ( heads[i] != null && heads[i].compareTo(term) == 0 )
+                    {
+                        merged.addAll( heads[i].locations().postings(), 
+                            renumber );
+                        heads[i] = head( heads[i] );
+                    }
+                }
+                // the term may only have been in deleted documents
+                if ( merged.size() > 0 )
+                {
+                    sw.addTerm( term, merged );
+                    nTerms++;
+                }
+            }
+            sw.close();
+            return nTerms;
+        }
+        finally
+        {
+            // nothing is left to clean up once it has closed
+            sw.abort();
+        }
+    }
+    /**
+     * Move a segment's cursor on to its next term
+     * @param tc the cursor
+     * @return the cursor or null if there are no more terms
+     * @throws IndexException 
+     */
+    private static TermCursor head( TermCursor tc ) throws IndexException
+    {
+        return (tc.next())?tc:null;
+    }
+}
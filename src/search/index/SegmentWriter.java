@@ -0,0 +1,370 @@
+/*
+ * This file is part of Search.
+ *
+ *  Search is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Search is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Search.  If not, see <http://www.gnu.org/licenses/>.
+ *  (c) copyright Desmond Schmidt 2015
+ */
+package search.index;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import search.exception.IndexException;
+/**
+ * Write an index out as a binary segment file (see Segment for the layout).
+ * Terms must be added in the order of their UTF-8 bytes.
+ * @author desmond
+ */
+public class SegmentWriter
+{
+    static final Charset UTF8 = Charset.forName("UTF-8");
+    File dst;
+    File tmp;
+    File postingsFile;
+    DataOutputStream postings;
+    ByteArrayOutputStream terms;
+    DataOutputStream termsOut;
+    /** the offset of each block of terms in the dictionary */
+    int[] termOffsets;
+    int nTerms;
+    int postingsPos;
+    byte[] docs;
+    int nDocs;
+    int docBase;
+    byte[] lastTerm;
+    /**
+     * Start a new segment file
+     * @param dst the file to write it to when finished
+     * @throws IndexException
+     */
+    public SegmentWriter( File dst ) throws IndexException
+    {
+        try
+        {
+            this.dst = dst;
+            File dir = dst.getAbsoluteFile().getParentFile();
+            if ( !dir.exists() && !dir.mkdirs() )
+                throw new IndexException("Couldn't create "+dir);
+            this.tmp = new File( dir, dst.getName()+".tmp" );
+            this.terms = new ByteArrayOutputStream();
+            this.termsOut = new DataOutputStream( terms );
+            this.termOffsets = new int[1024];
+            this.postingsFile = File.createTempFile( "postings", ".tmp", dir );
+            this.postings = new DataOutputStream( new BufferedOutputStream(
+                new FileOutputStream(postingsFile)) );
+        }
+        catch ( IndexException ie )
+        {
+            abort();
+            throw ie;
+        }
+        catch ( Exception e )
+        {
+            abort();
+            throw new IndexException( e );
+        }
+    }
+    /**
+     * Give up writing the segment, closing and deleting our temporary 
+     * files. Each method that fails does this itself, and it does nothing
+     * once the segment is closed, so callers can call it in a finally.
+     */
+    public void abort()
+    {
+        if ( postings != null )
+        {
+            try
+            {
+                postings.close();
+            }
+            catch ( IOException ioe )
+            {
+                // we are deleting it anyway
+            }
+            postings = null;
+        }
+        if ( postingsFile != null )
+            postingsFile.delete();
+        if ( tmp != null )
+            tmp.delete();
+    }
+    /**
+     * Set the table of document identifiers
+     * @param documents the docids, indexed by document number
+     * @throws IndexException
+     */
+    public void setDocuments( List<String> documents ) throws IndexException
+    {
+        setDocuments( documents, null, 0 );
+    }
+    /**
+     * Set the table of document identifiers of a segment that follows others
+     * @param documents the docids, indexed by document number less docBase
+     * @param variants the variant spans of each document from 
+     * Phrase.variants, null where not known, or null if none are known
+     * @param docBase the number of the first document
+     * @throws IndexException
+     */
+    public void setDocuments( List<String> documents, List<int[]> variants,
+        int docBase ) throws IndexException
+    {
+        try
+        {
+            this.docBase = docBase;
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            DataOutputStream dos = new DataOutputStream( bos );
+            for ( int i=0;i<documents.size();i++ )
+            {
+                byte[] bytes = documents.get(i).getBytes(UTF8);
+                dos.writeShort( bytes.length );
+                dos.write( bytes );
+                int[] spans = (variants==null)?null:variants.get(i);
+                if ( spans == null )
+                    dos.writeInt( -1 );
+                else
+                {
+                    dos.writeInt( spans.length );
+                    for ( int j=0;j<spans.length;j++ )
+                        dos.writeInt( spans[j] );
+                }
+            }
+            dos.close();
+            this.docs = bos.toByteArray();
+            this.nDocs = documents.size();
+        }
+        catch ( Exception e )
+        {
+            abort();
+            throw new IndexException( e );
+        }
+    }
+    /**
+     * Add a term and its compressed postings
+     * @param term the term in its UTF-8 form
+     * @param locs its locations
+     * @throws IndexException
+     */
+    public void addTerm( byte[] term, Locations locs ) throws IndexException
+    {
+        try
+        {
+            if ( lastTerm != null && Segment.compare(lastTerm,term) >= 0 )
+                throw new IndexException("terms out of order");
+            if ( term.length > Short.MAX_VALUE )
+                throw new IndexException("term too long");
+            locs.compress();
+            int prefix = 0;
+            if ( nTerms % Segment.BLOCK_TERMS == 0 )
+            {
+                int block = nTerms/Segment.BLOCK_TERMS;
+                if ( block == termOffsets.length )
+                    termOffsets = Arrays.copyOf( termOffsets, block*2 );
+                termOffsets[block] = termsOut.size();
+            }
+            else
+            {
+                int max = Math.min( lastTerm.length, term.length );
+                while ( prefix < max && lastTerm[prefix] == term[prefix] )
+                    prefix++;
+            }
+            writeVInt( prefix );
+            writeVInt( term.length-prefix );
+            termsOut.write( term, prefix, term.length-prefix );
+            if ( nTerms % Segment.BLOCK_TERMS == 0 )
+                writeVInt( postingsPos );
+            writeVInt( locs.compressedDocids.length );
+            writeVInt( locs.compressedOffsets.length );
+            writeVInt( locs.skips.length );
+            writeVInt( locs.docFreq );
+            writeVInt( locs.codec );
+            nTerms++;
+            for ( int i=0;i<locs.compressedDocids.length;i++ )
+                postings.writeInt( locs.compressedDocids[i] );
+            for ( int i=0;i<locs.compressedOffsets.length;i++ )
+                postings.writeInt( locs.compressedOffsets[i] );
+            for ( int i=0;i<locs.skips.length;i++ )
+                postings.writeInt( locs.skips[i] );
+            postingsPos += locs.compressedDocids.length
+                +locs.compressedOffsets.length+locs.skips.length;
+            lastTerm = term;
+            if ( size() > Segment.MAX_SIZE )
+                throw new IndexException("Segment "+dst+" would be over "
+                    +Segment.MAX_SIZE+" bytes, the most a segment can hold");
+        }
+        catch ( IndexException ie )
+        {
+            abort();
+            throw ie;
+        }
+        catch ( Exception e )
+        {
+            abort();
+            throw new IndexException( e );
+        }
+    }
+    /**
+     * Work out how long the segment would be if it were finished now
+     * @return its length in bytes, allowing for padding
+     */
+    private long size()
+    {
+        long nBlocks = (nTerms+Segment.BLOCK_TERMS-1)/Segment.BLOCK_TERMS;
+        long docsLen = (docs==null)?0:docs.length;
+        return Segment.HEADER_SIZE + docsLen + nBlocks*4 + termsOut.size() 
+            + 3 + postingsPos*4L;
+    }
+    /**
+     * Write a variable-byte int to the dictionary, 7 bits at a time
+     * @param value a non-negative int
+     * @throws IOException
+     */
+    private void writeVInt( int value ) throws IOException
+    {
+        while ( (value & ~0x7F) != 0 )
+        {
+            termsOut.write( (value&0x7F)|0x80 );
+            value >>>= 7;
+        }
+        termsOut.write( value );
+    }
+    /**
+     * Assemble the sections and move the finished file into place
+     * @throws IndexException
+     */
+    public void close() throws IndexException
+    {
+        try
+        {
+            postings.close();
+            postings = null;
+            termsOut.close();
+            int docsOffset = Segment.HEADER_SIZE;
+            int termIndexOffset = docsOffset + docs.length;
+            int nBlocks = (nTerms+Segment.BLOCK_TERMS-1)/Segment.BLOCK_TERMS;
+            int termsOffset = termIndexOffset + nBlocks*4;
+            int postingsOffset = termsOffset + terms.size();
+            int padding = (4 - postingsOffset%4) % 4;
+            postingsOffset += padding;
+            try ( DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(tmp)));
+                InputStream in = new BufferedInputStream(
+                    new FileInputStream(postingsFile)) )
+            {
+                out.writeInt( Segment.MAGIC );
+                out.writeInt( Segment.VERSION );
+                out.writeInt( nDocs );
+                out.writeInt( nTerms );
+                out.writeInt( docsOffset );
+                out.writeInt( termIndexOffset );
+                out.writeInt( termsOffset );
+                out.writeInt( postingsOffset );
+                out.writeInt( docBase );
+                out.write( docs );
+                for ( int i=0;i<nBlocks;i++ )
+                    out.writeInt( termOffsets[i] );
+                terms.writeTo( out );
+                for ( int i=0;i<padding;i++ )
+                    out.write( 0 );
+                byte[] buf = new byte[65536];
+                int n;
+                while ( (n=in.read(buf)) > 0 )
+                    out.write( buf, 0, n );
+            }
+            if ( dst.exists() )
+                dst.delete();
+            if ( !tmp.renameTo(dst) )
+                throw new IndexException("Couldn't rename "+tmp+" to "+dst);
+        }
+        catch ( IndexException ie )
+        {
+            throw ie;
+        }
+        catch ( Exception e )
+        {
+            throw new IndexException( e );
+        }
+        finally
+        {
+            // once renamed there is no tmp left to delete
+            abort();
+        }
+    }
+    /**
+     * Write an in-memory term map and its document table to a segment,
+     * not knowing the documents' variants
+     * @param dst the segment file
+     * @param documents the docids indexed by document number
+     * @param map the term map
+     * @throws IndexException
+     */
+    public static void write( File dst, List<String> documents,
+        Map<String,Locations> map ) throws IndexException
+    {
+        write( dst, documents, null, map, 0 );
+    }
+    /**
+     * Write an in-memory term map and its document table to a segment
+     * @param dst the segment file
+     * @param documents the docids indexed by document number less docBase
+     * @param variants the variant spans of each document, or null
+     * @param map the term map
+     * @param docBase the number of the first document
+     * @throws IndexException
+     */
+    public static void write( File dst, List<String> documents,
+        List<int[]> variants, Map<String,Locations> map, int docBase ) 
+        throws IndexException
+    {
+        Set<String> keys = map.keySet();
+        byte[][] terms = new byte[keys.size()][];
+        String[] strs = new String[keys.size()];
+        keys.toArray( strs );
+        Integer[] order = new Integer[strs.length];
+        for ( int i=0;i<strs.length;i++ )
+        {
+            terms[i] = strs[i].getBytes(UTF8);
+            order[i] = i;
+        }
+        final byte[][] sortTerms = terms;
+        Arrays.sort( order, new Comparator<Integer>() {
+            public int compare( Integer a, Integer b )
+            {
+                return Segment.compare( sortTerms[a], sortTerms[b] );
+            }
+        });
+        SegmentWriter sw = new SegmentWriter( dst );
+        try
+        {
+            sw.setDocuments( documents, variants, docBase );
+            for ( int i=0;i<order.length;i++ )
+                sw.addTerm( terms[order[i]], map.get(strs[order[i]]) );
+            sw.close();
+        }
+        finally
+        {
+            sw.abort();
+        }
+    }
+}
@@ -0,0 +1,191 @@
+/*
+ * This file is part of Search.
+ *
+ *  Search is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Search is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Search.  If not, see <http://www.gnu.org/licenses/>.
+ *  (c) copyright Desmond Schmidt 2015
+ */
+package search.index;
+import java.util.Arrays;
+import search.exception.IndexException;
+/**
+ * Walk forwards through the term dictionary of a segment, decoding each
+ * entry from the one before. The dictionary is front-coded in blocks of
+ * Segment.BLOCK_TERMS terms: each term stores only the bytes that differ
+ * from the term before, and only the first term of a block says where 
+ * its postings start, since each term's postings follow those of the 
+ * term before. Each cursor has its own position, so a segment may
+ * be read by several threads at once.
+ * @author desmond
+ */
+public class TermCursor
+{
+    Segment seg;
+    /** the ordinal of the current term, -1 before the first */
+    int ord;
+    /** the byte offset of the next entry */
+    int pos;
+    /** the current term's UTF-8 bytes */
+    byte[] term;
+    int termLen;
+    /** the int index of its postings and the lengths of their parts */
+    int start;
+    int docLen;
+    int offLen;
+    int skipLen;
+    int docFreq;
+    int codec;
+    /**
+     * Create a cursor before the first term
+     * @param seg the segment to read
+     */
+    TermCursor( Segment seg )
+    {
+        this.seg = seg;
+        this.ord = -1;
+        this.term = new byte[32];
+    }
+    /**
+     * Get the ordinal of the current term
+     * @return its position in the sorted dictionary
+     */
+    public int ord()
+    {
+        return ord;
+    }
+    /**
+     * Move to the next term
+     * @return true if there was one
+     * @throws IndexException
+     */
+    public boolean next() throws IndexException
+    {
+        if ( ord+1 >= seg.nTerms )
+        {
+            ord = seg.nTerms;
+            return false;
+        }
+        ord++;
+        if ( ord % Segment.BLOCK_TERMS == 0 )
+        {
+            seg.needBlock( ord/Segment.BLOCK_TERMS );
+            pos = seg.blockStart( ord/Segment.BLOCK_TERMS );
+            readEntry( true );
+        }
+        else
+            readEntry( false );
+        return true;
+    }
+    /**
+     * Go to a term by its ordinal
+     * @param n the ordinal
+     * @return true if there is such a term
+     * @throws IndexException
+     */
+    public boolean seek( int n ) throws IndexException
+    {
+        if ( n < 0 || n >= seg.nTerms )
+            return false;
+        // decode from the start of its block
+        if ( n < ord || ord < 0
+            || n/Segment.BLOCK_TERMS != ord/Segment.BLOCK_TERMS )
+            ord = n - n%Segment.BLOCK_TERMS - 1;
+        while ( ord < n )
+            next();
+        return true;
+    }
+    /**
+     * Read a variable-byte int
+     * @return its value
+     */
+    private int readVInt()
+    {
+        int value = 0;
+        int shift = 0;
+        byte b;
+        do
+        {
+            b = seg.buf.get( pos++ );
+            value |= (b&0x7F)<<shift;
+            shift += 7;
+        }
+        while ( (b&0x80) != 0 );
+        return value;
+    }
+    /**
+     * Read a front-coded entry
+     * @param first true if it starts a block
+     */
+    private void readEntry( boolean first )
+    {
+        int prefix = readVInt();
+        int suffix = readVInt();
+        termLen = prefix+suffix;
+        if ( term.length < termLen )
+            term = Arrays.copyOf( term, Math.max(termLen,term.length*2) );
+        for ( int i=prefix;i<termLen;i++ )
+            term[i] = seg.buf.get( pos++ );
+        if ( first )
+            start = readVInt();
+        else
+            start += docLen+offLen+skipLen;
+        docLen = readVInt();
+        offLen = readVInt();
+        skipLen = readVInt();
+        docFreq = readVInt();
+        codec = readVInt();
+    }
+    /**
+     * Compare the current term with a key
+     * @param key the UTF-8 key
+     * @return negative, 0 or positive if the term is less, equal or
+     * greater than the key
+     */
+    int compareTo( byte[] key )
+    {
+        int min = Math.min( termLen, key.length );
+        for ( int i=0;i<min;i++ )
+        {
+            int diff = (term[i]&0xFF) - (key[i]&0xFF);
+            if ( diff != 0 )
+                return diff;
+        }
+        return termLen - key.length;
+    }
+    /**
+     * Get the current term
+     * @return a copy of its UTF-8 bytes
+     */
+    public byte[] termBytes()
+    {
+        return Arrays.copyOf( term, termLen );
+    }
+    /**
+     * Get the current term
+     * @return the term as a string
+     */
+    public String term()
+    {
+        return new String( term, 0, termLen, SegmentWriter.UTF8 );
+    }
+    /**
+     * Get the locations of the current term
+     * @return its compressed postings
+     * @throws IndexException
+     */
+    public Locations locations() throws IndexException
+    {
+        return seg.readLocations( start, docLen, offLen, skipLen, docFreq,
+            codec );
+    }
+}
@@ -0,0 +1,304 @@
+/*
+ * This file is part of Search.
+ *
+ *  Search is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Search is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Search.  If not, see <http://www.gnu.org/licenses/>.
+ *  (c) copyright Desmond Schmidt 2015
+ */
+package search.index;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Set;
+/**
+ * The terms seen while indexing, looked up directly from the characters
+ * of a word. Each distinct lowercased term gets a dense ordinal and its
+ * String is only made the first time it is seen, when it is also added to
+ * the term map. Stopwords get ordinals too but have no locations. Not
+ * thread-safe: each indexing thread has its own table.
+ * @author desmond
+ */
+public class TermTable
+{
+    /** the term map we fill, shared with the index */
+    Map<String,Locations> map;
+    Set<String> stopwords;
+    /** open-addressed hash table of ordinal+1, 0 if the slot is empty */
+    int[] slots;
+    /** the hash of each term by ordinal */
+    int[] hashes;
+    /** the lowercased terms by ordinal */
+    String[] terms;
+    /** the locations of each term or null for stopwords */
+    Locations[] locs;
+    int size;
+    /** the word being looked up, lowercased */
+    char[] key;
+    int keyLen;
+    /** where to leave hyphenations to be decided later or null */
+    HyphenChoices choices;
+    /**
+     * Create an empty table
+     * @param map the term map to add new terms to
+     * @param stopwords lowercased words not to index
+     */
+    public TermTable( Map<String,Locations> map, Set<String> stopwords )
+    {
+        this( map, stopwords, null );
+    }
+    /**
+     * Create an empty table for one of several indexing threads
+     * @param map the term map to add new terms to
+     * @param stopwords lowercased words not to index
+     * @param choices where to note hyphenated words that depend on what
+     * the other threads index, or null to decide them from this table
+     */
+    TermTable( Map<String,Locations> map, Set<String> stopwords,
+        HyphenChoices choices )
+    {
+        this.map = map;
+        this.stopwords = stopwords;
+        this.choices = choices;
+        this.slots = new int[1024];
+        this.hashes = new int[256];
+        this.terms = new String[256];
+        this.locs = new Locations[256];
+        this.key = new char[64];
+    }
+    /**
+     * Get the number of distinct terms seen
+     * @return an int
+     */
+    public int size()
+    {
+        return size;
+    }
+    /**
+     * Get a term
+     * @param ord its ordinal
+     * @return the lowercased term
+     */
+    String term( int ord )
+    {
+        return terms[ord];
+    }
+    /**
+     * Get the locations of a term
+     * @param ord its ordinal
+     * @return its locations or null if it is a stopword
+     */
+    Locations locations( int ord )
+    {
+        return locs[ord];
+    }
+    /**
+     * Lowercase a word into the key. Characters whose lowercase form
+     * depends on their context or is longer than one char go through
+     * String.toLowerCase so we agree with it exactly.
+     * @param buf the buffer holding the word
+     * @param off the offset of the word in buf
+     * @param len its length
+     * @return the hash of the lowercased word
+     */
+    private int lower( char[] buf, int off, int len )
+    {
+        if ( key.length < len )
+            key = new char[Math.max(len,key.length*2)];
+        int h = 0;
+        for ( int i=0;i<len;i++ )
+        {
+            char c = buf[off+i];
+            if ( c >= '\u0370' || c == '\u0130' )
+                return lowerSlowly( buf, off, len );
+            c = Character.toLowerCase( c );
+            key[i] = c;
+            h = 31*h + c;
+        }
+        keyLen = len;
+        return h;
+    }
+    /**
+     * Lowercase a word into the key via a String
+     * @param buf the buffer holding the word
+     * @param off the offset of the word in buf
+     * @param len its length
+     * @return the hash of the lowercased word
+     */
+    private int lowerSlowly( char[] buf, int off, int len )
+    {
+        String lw = new String( buf, off, len ).toLowerCase();
+        keyLen = lw.length();
+        if ( key.length < keyLen )
+            key = new char[keyLen*2];
+        lw.getChars( 0, keyLen, key, 0 );
+        return lw.hashCode();
+    }
+    /**
+     * Find the slot of the key, or the empty slot where it would go
+     * @param h the key's hash
+     * @return an index into slots
+     */
+    private int probe( int h )
+    {
+        int m = slots.length-1;
+        int i = (h ^ (h>>>16)) & m;
+        while ( slots[i] != 0 )
+        {
+            int ord = slots[i]-1;
+            if ( hashes[ord] == h && sameAsKey(terms[ord]) )
+                break;
+            i = (i+1) & m;
+        }
+        return i;
+    }
+    /**
+     * Is a term the same as the key?
+     * @param term the term
+     * @return true if they have the same chars
+     */
+    private boolean sameAsKey( String term )
+    {
+        if ( term.length() != keyLen )
+            return false;
+        for ( int i=0;i<keyLen;i++ )
+        {
+            if ( term.charAt(i) != key[i] )
+                return false;
+        }
+        return true;
+    }
+    /**
+     * Look up a word without adding it
+     * @param buf the buffer holding the word
+     * @param off the offset of the word in buf
+     * @param len its length
+     * @return the ordinal of its lowercased form or -1 if not seen yet
+     */
+    int lookup( char[] buf, int off, int len )
+    {
+        int slot = probe( lower(buf,off,len) );
+        return slots[slot]-1;
+    }
+    /**
+     * Is a word in the term map, i.e. seen and not a stopword?
+     * @param word the word in any case
+     * @return true if it has locations
+     */
+    boolean contains( String word )
+    {
+        char[] chars = word.toCharArray();
+        int ord = lookup( chars, 0, chars.length );
+        return ord >= 0 && locs[ord] != null;
+    }
+    /**
+     * Is a word in the term map, i.e. seen and not a stopword?
+     * @param buf the buffer holding the word in any case
+     * @param off the offset of the word in buf
+     * @param len its length
+     * @return true if it has locations
+     */
+    boolean contains( char[] buf, int off, int len )
+    {
+        int ord = lookup( buf, off, len );
+        return ord >= 0 && locs[ord] != null;
+    }
+    /**
+     * Store a word that keeps its hyphen only if the hyphenated form has
+     * already been indexed
+     * @param hyphenated the word with its hyphen
+     * @param joined the word without it, which may be empty
+     * @param docId the number of its document
+     * @param pos its position in the document
+     * @return true if the word had a new location
+     */
+    boolean addEither( String hyphenated, String joined, int docId, 
+        int pos )
+    {
+        if ( choices != null )
+            return choices.add( docId, pos, hyphenated.toLowerCase(),
+                joined.toLowerCase() );
+        String word = contains(hyphenated)?hyphenated:joined;
+        if ( word.length() == 0 )
+            return false;
+        int ord = intern( word );
+        return locs[ord] != null && locs[ord].add( docId, pos );
+    }
+    /**
+     * Get the ordinal of a word, adding it if it is new
+     * @param buf the buffer holding the word
+     * @param off the offset of the word in buf
+     * @param len its length
+     * @return the ordinal of its lowercased form
+     */
+    int intern( char[] buf, int off, int len )
+    {
+        int h = lower( buf, off, len );
+        int slot = probe( h );
+        if ( slots[slot] != 0 )
+            return slots[slot]-1;
+        if ( size == terms.length )
+        {
+            int capacity = size*2;
+            hashes = Arrays.copyOf( hashes, capacity );
+            terms = Arrays.copyOf( terms, capacity );
+            locs = Arrays.copyOf( locs, capacity );
+        }
+        String term = new String( key, 0, keyLen );
+        int ord = size++;
+        hashes[ord] = h;
+        terms[ord] = term;
+        if ( !stopwords.contains(term) )
+        {
+            Locations l = map.get( term );
+            if ( l == null )
+            {
+                l = new Locations();
+                map.put( term, l );
+            }
+            locs[ord] = l;
+        }
+        slots[slot] = ord+1;
+        if ( size*2 > slots.length )
+            rehash();
+        return ord;
+    }
+    /**
+     * Get the ordinal of a word, adding it if it is new
+     * @param word the word in any case
+     * @return the ordinal of its lowercased form
+     */
+    int intern( String word )
+    {
+        int len = word.length();
+        if ( key.length < len )
+            key = new char[len*2];
+        // lower() reads and writes the key in step so this is safe
+        word.getChars( 0, len, key, 0 );
+        return intern( key, 0, len );
+    }
+    /**
+     * Double the hash table and reinsert every term
+     */
+    private void rehash()
+    {
+        slots = new int[slots.length*2];
+        int m = slots.length-1;
+        for ( int ord=0;ord<size;ord++ )
+        {
+            int h = hashes[ord];
+            int i = (h ^ (h>>>16)) & m;
+            while ( slots[i] != 0 )
+                i = (i+1) & m;
+            slots[i] = ord+1;
+        }
+    }
+}
@@ -16,13 +16,9 @@
  *  (c) copyright Desmond Schmidt 2016
  */
 package search.index;
-import java.util.HashMap;
+import java.util.Arrays;
 import java.util.StringTokenizer;
-import java.util.HashSet;
 import search.exception.IndexException;
-import calliope.AeseSpeller;
-import java.io.FileInputStream;
-import java.io.File;
 
 
 /**
@@ -32,42 +28,40 @@ import java.io.File;
 public class TextWordFinder 
 {
     String text;
-    HashSet<String> sw;
-    HashMap<String,Locations> map;
+    /** the text being parsed */
+    char[] chars;
+    /** the word being read, which may span several tokens */
+    char[] word;
+    int wordLen;
+    /** the terms seen so far and their locations */
+    TermTable table;
     String lang;
     int docId;
     int nWords;
-    AeseSpeller speller;
-    static HashMap<String,AeseSpeller> spellers;
-    static HashSet<Character> roman;
-    static {
-        roman = new HashSet<Character>();
-        roman.add('i');
-        roman.add('v');
-        roman.add('l');
-        roman.add('d');
-        roman.add('c');
-        roman.add('m');
-        spellers = new HashMap<String,AeseSpeller>();
-    }
+    /** the project's shared speller and hyphenation decisions */
+    Hyphenator hyphenator;
+    /** the lowercase roman numerals */
+    static final String ROMAN = "ivldcm";
     /**
      * Is this token a page number?
-     * @param text the text
+     * @param buf the buffer holding the token
+     * @param off the offset of the token in buf
+     * @param len its length
      * @return true if it is an arabic or roman page number
      */
-    boolean isPageNumber( String text )
+    static boolean isPageNumber( char[] buf, int off, int len )
     {
         int state = 0;
         int i;
-        for ( i=0;i<text.length();i++ )
+        for ( i=0;i<len;i++ )
         {
-            char token = text.charAt(i);
+            char token = buf[off+i];
             switch ( state )
             {
                 case 0: // looking for roman or arabic
                     if ( Character.isDigit(token) )
                         state = 1;
-                    else if ( roman.contains(Character.toLowerCase(token)) )
+                    else if ( isRoman(token) )
                         state = 2;
                     else
                         state = -1;
@@ -81,7 +75,7 @@ public class TextWordFinder
                         state = -1;
                     break;
                 case 2: // looking for a Roman number
-                    if ( roman.contains(Character.toLowerCase(token)) )
+                    if ( isRoman(token) )
                         continue;
                     else
                         state = -1;
@@ -96,7 +90,16 @@ public class TextWordFinder
             if ( state < 0 )
                 break;
         }
-        return i==text.length();
+        return i==len;
+    }
+    /**
+     * Is a character a roman numeral?
+     * @param c the character in either case
+     * @return true if it is one of ivldcm
+     */
+    private static boolean isRoman( char c )
+    {
+        return ROMAN.indexOf(Character.toLowerCase(c)) >= 0;
     }
     /**
      * Constructor for debugging
@@ -107,56 +110,66 @@ public class TextWordFinder
     /**
      * Regular constructor
      * @param text the text to parse
-     * @param map the word-map
-     * @param sw stopwords
+     * @param table the terms and their locations
      * @param lang the iso-2-letter language it is in
+     * @param projid the project the text belongs to
      * @param docId the document id
      */
-    TextWordFinder( String text, HashMap<String,Locations> map, 
-        HashSet<String> sw, String lang, int docId ) throws IndexException
+    TextWordFinder( String text, TermTable table, String lang, 
+        String projid, int docId ) throws IndexException
     {
         this.text = text;
-        this.map = map;
-        this.sw = sw;
+        this.table = table;
         this.lang = lang;
         this.docId = docId;
-        if ( !spellers.containsKey(lang) )
+        this.word = new char[64];
+        try
         {
-            try
-            {
-                this.speller = new AeseSpeller(lang);
-            }
-            catch ( Exception e )
-            {
-                throw new IndexException("No speller found for "+lang);
-            }
+            this.hyphenator = Hyphenator.forProject( projid, lang );
         }
+        catch ( Exception e )
+        {
+            throw new IndexException("No speller found for "+lang);
+        }
+    }
+    /**
+     * Find the start of a token less its leading punctuation
+     * @param start the offset of the token in chars
+     * @param end the offset after it
+     * @return the offset of its first letter or end
+     */
+    private int stripStart( int start, int end )
+    {
+        while ( start < end && !Character.isLetter(chars[start]) )
+            start++;
+        return start;
     }
     /**
-     * Strip punctuation off the front and end of a word
-     * @param token the word to strip
-     * @return a word or the empty string
+     * Find the end of a token less its trailing punctuation
+     * @param start the offset of its first letter
+     * @param end the offset after it
+     * @return the offset after its last letter or start
      */
-    String stripPunctuation( String token )
+    private int stripEnd( int start, int end )
     {
-        while ( token.length()>0 
-            && !Character.isLetter(token.charAt(0)) )
-            token = token.substring(1);
-        while ( token.length()>0 
-            && !Character.isLetter(token.charAt(token.length()-1)) )
-            token = token.substring(0,token.length()-1);
-        return token;
+        while ( end > start && !Character.isLetter(chars[end-1]) )
+            end--;
+        return end;
     }
     /**
      * Is this token a word? Don't look it up in dictionary.
+     * @param buf the buffer holding the token
+     * @param off the offset of the token in buf
+     * @param len its length
+     * @return true if it is all letters, capitalised or all one case
     */
-    boolean isWord( String word )
+    static boolean isWord( char[] buf, int off, int len )
     {
         int state = 0;
         int i;
-        for ( i=0;i<word.length();i++ )
+        for ( i=0;i<len;i++ )
         {
-            char c = word.charAt(i);
+            char c = buf[off+i];
             switch ( state )
             {
                 case 0:
@@ -193,68 +206,110 @@ public class TextWordFinder
             if ( state == -1 )
                 break;
         }
-        return i==word.length();
+        return i==len;
     }
     /**
-     * Store the word after making some final checks
-     * @param word the word to store
+     * Store a word after making some final checks
+     * @param buf the buffer holding the word
+     * @param off the offset of the word in buf
+     * @param len its length
      * @param pos the position in the input where it occurred
-     * @throws IndexException 
      */
-    void storeWord( String word, int pos ) throws IndexException
+    void storeWord( char[] buf, int off, int len, int pos )
     {
-        String lower = word.toLowerCase();
-        if ( !sw.contains(lower) && lower.length()>0 )
-        {
-            Locations locs = map.get(lower);
-            if ( locs != null )
-                locs.add(new Location(docId,pos));
-            else
-            {
-                locs = new Locations();
-                locs.add( new Location(docId,pos) );
-                map.put( lower, locs );
-            }
+        Locations locs = (len>0)
+            ? table.locations(table.intern(buf,off,len)) : null;
+        if ( locs != null && locs.add(docId,pos) )
             nWords++;
-            // debug
-            //System.out.print(lower+" ");
-        }
+    }
+    /**
+     * Store the word we have been reading and clear it
+     * @param pos the position in the input where it occurred
+     */
+    private void storeWord( int pos )
+    {
+        storeWord( word, 0, wordLen, pos );
+        wordLen = 0;
+    }
+    /**
+     * Add some of the text to the end of the word we are reading
+     * @param start the offset in chars to copy from
+     * @param len the number of chars to copy
+     */
+    private void appendToWord( int start, int len )
+    {
+        if ( wordLen+len > word.length )
+            word = Arrays.copyOf( word, Math.max(wordLen+len,word.length*2) );
+        System.arraycopy( chars, start, word, wordLen, len );
+        wordLen += len;
+    }
+    /**
+     * Add a hyphen to the end of the word we are reading
+     */
+    private void appendHyphen()
+    {
+        if ( wordLen == word.length )
+            word = Arrays.copyOf( word, word.length*2 );
+        word[wordLen++] = '-';
+    }
+    /**
+     * Is a token a single character?
+     * @param start the offset of the token in chars
+     * @param len its length
+     * @param c the character
+     * @return true if it is just c
+     */
+    private boolean is( int start, int len, char c )
+    {
+        return len==1 && chars[start]==c;
     }
     /**
      * Is the token just whitespace?
-     * @param token a token to test
-     * @return 
+     * @param start the offset of the token in chars
+     * @param len its length
+     * @return true if it is one whitespace character
      */
-    boolean isWhitespace( String token )
+    private boolean isWhitespace( int start, int len )
     {
-        return token.length()==1&&Character.isWhitespace(token.charAt(0));
+        return len==1 && Character.isWhitespace(chars[start]);
     }
     /**
-     * Resolve the ambiguity of a word followed by a hyphen and another word
-     * @param first the first word in the dictionary
-     * @param second the second word maybe in the dictionary
+     * Resolve the ambiguity of the word we are reading being followed by 
+     * a hyphen, a line-break and another word, then store it. Whether 
+     * the hyphenated form was already indexed is asked of its lowercased 
+     * form, as terms are stored. Before, the form was looked up as it was
+     * written, so a capitalised word like "End-less" broken at a line-end
+     * was always joined, even after "end-less" had been indexed.
+     * @param start the offset of the second word in chars
+     * @param len its length
      * @param pos the position of the first word
-     * @throws IndexException 
      */
-    void resolveHyphenated( String first, String second, int pos ) 
-        throws IndexException
+    void resolveHyphenated( int start, int len, int pos ) 
     {
-        String hyphenated = first+"-"+second;
-        String composite = first+second;
-        if ( speller.hasWord(second,lang) )
+        int firstLen = wordLen;
+        int res = hyphenator.resolve( new String(word,0,wordLen), 
+            new String(chars,start,len) );
+        if ( res != Hyphenator.JOIN )
+            appendHyphen();
+        appendToWord( start, len );
+        if ( res == Hyphenator.KEEP_HYPHEN_IF_INDEXED )
         {
-            if ( map.containsKey(hyphenated) )
-                storeWord(hyphenated,pos);
-            else if ( speller.hasWord(composite,lang) )
-                storeWord(composite,pos);
-            else
-                storeWord(hyphenated,pos);
+            // keep the hyphen only if the word has been indexed thus
+            String hyphenated = new String( word, 0, wordLen );
+            System.arraycopy( word, firstLen+1, word, firstLen, len );
+            wordLen--;
+            if ( table.addEither(hyphenated,new String(word,0,wordLen),
+                docId,pos) )
+                nWords++;
+            wordLen = 0;
         }
         else
-            storeWord(composite,pos);
+            storeWord( pos );
     }                            
     /**
-     * Parse the text file looking for indexable words
+     * Parse the text file looking for indexable words. Tokens are runs of
+     * characters between the delimiters space, tab, CR, LF and hyphen, 
+     * and the delimiters themselves, read as spans of the text.
      * @return number of word-locations found
      * @throws IndexException 
      */
@@ -262,94 +317,430 @@ public class TextWordFinder
     {
         try
         {
-            StringTokenizer st = new StringTokenizer( text," \t\r\n-", true );
+            chars = text.toCharArray();
+            wordLen = 0;
             int state = 0;
             int pos = 0;
             int lastPos = 0;
-            String lastWord = "";
-            String pageNo = "";
-            while ( st.hasMoreTokens() )
+            // the span of a roman page-number after a line-break
+            int pageStart = 0;
+            int pageLen = 0;
+            int end = 0;
+            while ( end < chars.length )
             {
-                String token = st.nextToken();
+                int start = end;
+                if ( isDelimiter(chars[end]) )
+                    end++;
+                else
+                {
+                    while ( end < chars.length && !isDelimiter(chars[end]) )
+                        end++;
+                }
+                int len = end-start;
                 switch ( state )
                 {
                     case 0: // looking for word
-                        if ( isWhitespace(token) )
+                        if ( isWhitespace(start,len) )
                             continue;
-                        else if ( isPageNumber(token) )
+                        else if ( isPageNumber(chars,start,len) )
                         {
-                            if ( isWord(token) )
+                            if ( isWord(chars,start,len) )
                             {
                                 state = 1;
-                                lastWord = token;
+                                wordLen = 0;
+                                appendToWord( start, len );
                                 lastPos = pos;
                             }
                             // ignore arabic numbers anywhere
                         }
                         else // not a page-number or whitespace
                         {
-                            lastWord = stripPunctuation(token);
+                            int s = stripStart( start, end );
+                            int e = stripEnd( s, end );
                             lastPos = pos;
-                            if ( isWord(lastWord) )
+                            wordLen = 0;
+                            if ( isWord(chars,s,e-s) )
+                            {
+                                appendToWord( s, e-s );
                                 state = 2;
-                            else
-                                lastWord = "";
+                            }
                         }
                         break;
                     case 1: // initial roman page-number
-                        if ( token.equals("\n") || token.equals("\r") )
+                        if ( is(start,len,'\n') || is(start,len,'\r') )
                         {
                             state = 0;
                             break;
                         }
                         // fall through 
                     case 2: // word
-                        if ( isWhitespace(token) )
+                        if ( isWhitespace(start,len) )
                         {
-                            storeWord(lastWord,lastPos);
-                            lastWord = "";
+                            storeWord( lastPos );
                             state = 0;
                         }
-                        else if ( token.equals("-") )
+                        else if ( is(start,len,'-') )
                         {
                             // look up last word in dictionary
-                            if ( speller.hasWord(lastWord,lang) )
-                                state = 3;
-                            else
-                                state = 4;
+                            String w = new String( word, 0, wordLen );
+                            state = (hyphenator.hasWord(w))?3:4;
                         }
                         break;
                     case 3: // dict-word, -
-                        if ( token.equals("\r") )
-                            state = 5;
-                        else if ( token.equals("\n") )
-                            state = 6;
+                    case 4: // not-dict-word, hyphen
+                        if ( is(start,len,'\r') )
+                            state = (state==3)?5:7;
+                        else if ( is(start,len,'\n') )
+                            state = (state==3)?6:8;
                         else 
                         {
-                            String newWord = stripPunctuation(token);
-                            if ( isWord(newWord) )
+                            int s = stripStart( start, end );
+                            int e = stripEnd( s, end );
+                            if ( isWord(chars,s,e-s) )
                             {
-                                lastWord = lastWord+"-"+newWord;
+                                // accept leading non-dict word,hyphen,dict-word
+                                appendHyphen();
+                                appendToWord( s, e-s );
                                 state = 2;
                             }
                             else
                             {
-                                storeWord(lastWord,lastPos);
+                                storeWord( word, 0, wordLen, lastPos );
                                 state = 0;
                             }
                         }
                         break;
-                    case 4: // not-dict-word, hyphen
+                    case 5: // dict-word, hyphen, \r
+                        if ( is(start,len,'\n') )
+                        {
+                            state = 6;
+                            break;
+                        }
+                        // fall through
+                    case 6: // dict-word, -, \n|\r\n|\r
+                        if ( isWhitespace(start,len) )
+                        {
+                            if ( wordLen>0 )
+                                storeWord( pos );
+                            state = 0;
+                        }
+                        else if ( isPageNumber(chars,start,len) )
+                        {
+                            if ( isWord(chars,start,len) )
+                            {
+                                pageStart = start;
+                                pageLen = len;
+                                state = 11;
+                            }
+                            else
+                                state = 3; 
+                        }
+                        else 
+                        {
+                            int s = stripStart( start, end );
+                            resolveHyphenated( s, stripEnd(s,end)-s, lastPos );
+                            state = 0;
+                        }
+                        break;
+                    case 7: //non-dict-word,-,\r
+                        if ( is(start,len,'\n') )
+                        {
+                            state = 8;
+                            break;
+                        }
+                        // fall-through
+                    case 8:    // non-dict-word,-,\n|\r\n|\r
+                        if ( isWhitespace(start,len) )
+                        {
+                            if ( wordLen>0 )
+                                storeWord( lastPos );
+                            state = 0;
+                        }
+                        else if ( isPageNumber(chars,start,len) )
+                        {
+                            if ( isWord(chars,start,len) )
+                            {
+                                pageStart = start;
+                                pageLen = len;
+                                state = 9;
+                            }
+                            else
+                                state = 4;  
+                        }
+                        else 
+                        {
+                            int s = stripStart( start, end );
+                            appendToWord( s, stripEnd(s,end)-s );
+                            storeWord( lastPos );
+                            state = 0;
+                        }
+                        break;
+                    case 9: // non-dict-word,-,\n|\r\n|\r,roman-page-no
+                    case 11: // dict-word,-,\n|\r\n|\r,roman-page-no
+                        if ( is(start,len,'\r') )
+                        {
+                            state = (state==9)?10:12;
+                            break;
+                        }
+                        // fall through
+                    case 10:// non-dict-word,-,\n|\r\n|\r,roman-page-no
+                    case 12:// dict-word,-,\n|\r\n|\r,roman-page-no
+                        boolean dictWord = (state==11||state==12);
+                        if ( is(start,len,'\n') )
+                        {
+                            pageLen = 0;
+                            state = (dictWord)?6:7;
+                        }
+                        else if ( isWhitespace(start,len) )
+                        {
+                            if ( !dictWord )
+                            {
+                                appendToWord( pageStart, pageLen );
+                                storeWord( lastPos );
+                            }
+                            else
+                                resolveHyphenated( pageStart, pageLen, 
+                                    lastPos );
+                            pageLen = 0;
+                            state = 0;
+                        }
+                        else if ( is(start,len,'-') )
+                        {
+                            appendHyphen();
+                            appendToWord( pageStart, pageLen );
+                            pageLen = 0;
+                            state = (dictWord)?3:4;
+                        }
+                        break;
+                }
+                pos += len;
+            }
+            return nWords;
+        }
+        catch ( Exception e )
+        {
+            throw new IndexException( e );
+        }
+    }
+    /**
+     * Is a character one of those that separate tokens?
+     * @param c the character
+     * @return true if it is a space, tab, CR, LF or hyphen
+     */
+    private static boolean isDelimiter( char c )
+    {
+        return c==' '||c=='\t'||c=='\r'||c=='\n'||c=='-';
+    }
+    /**
+     * The finder as it was when it read its tokens with a StringTokenizer,
+     * kept so that Index.main can check that reading spans gives the same
+     * terms and positions. It differs from the original in one way: the hyphenated form of a 
+     * word broken at a line-end is looked up lowercased, as it is stored, 
+     * where the original looked up the form as written, and so never 
+     * found a capitalised word as already indexed.
+     */
+    static class StringTokenizerFinder
+    {
+        String text;
+        TermTable table;
+        int docId;
+        int nWords;
+        Hyphenator hyphenator;
+        StringTokenizerFinder( String text, TermTable table, 
+            Hyphenator hyphenator, int docId )
+        {
+            this.text = text;
+            this.table = table;
+            this.hyphenator = hyphenator;
+            this.docId = docId;
+        }
+        boolean isPageNumber( String token )
+        {
+            int state = 0;
+            int i;
+            for ( i=0;i<token.length();i++ )
+            {
+                char c = token.charAt(i);
+                switch ( state )
+                {
+                    case 0:
+                        if ( Character.isDigit(c) )
+                            state = 1;
+                        else if ( ROMAN.indexOf(Character.toLowerCase(c))>=0 )
+                            state = 2;
+                        else
+                            state = -1;
+                        break;
+                    case 1:
+                        if ( Character.isDigit(c) )
+                            continue;
+                        else if ( Character.isLowerCase(c) )
+                            state = 3;
+                        else
+                            state = -1;
+                        break;
+                    case 2:
+                        if ( ROMAN.indexOf(Character.toLowerCase(c))>=0 )
+                            continue;
+                        else
+                            state = -1;
+                        break;
+                    case 3:
+                        if ( Character.isLowerCase(c) )
+                            continue;
+                        else
+                            state = -1;
+                        break;
+                }
+                if ( state < 0 )
+                    break;
+            }
+            return i==token.length();
+        }
+        String stripPunctuation( String token )
+        {
+            while ( token.length()>0 
+                && !Character.isLetter(token.charAt(0)) )
+                token = token.substring(1);
+            while ( token.length()>0 
+                && !Character.isLetter(token.charAt(token.length()-1)) )
+                token = token.substring(0,token.length()-1);
+            return token;
+        }
+        boolean isWord( String word )
+        {
+            int state = 0;
+            int i;
+            for ( i=0;i<word.length();i++ )
+            {
+                char c = word.charAt(i);
+                switch ( state )
+                {
+                    case 0:
+                        if ( Character.isUpperCase(c) )
+                            state = 1;
+                        else if ( Character.isLowerCase(c) )
+                            state = 2;
+                        else
+                            state = -1;
+                        break;
+                    case 1:
+                        if ( Character.isUpperCase(c) )
+                            state = 3;
+                        else if ( Character.isLowerCase(c) )
+                            state = 2;
+                        else
+                            state = -1;
+                        break;
+                    case 2:
+                        if ( Character.isLowerCase(c) )
+                            continue;
+                        else if ( c=='\''||c=='’' )
+                            continue;
+                        else
+                            state = -1;
+                        break;
+                    case 3:
+                        if ( Character.isUpperCase(c) )
+                            continue;
+                        else
+                            state = -1;
+                        break;
+                }
+                if ( state == -1 )
+                    break;
+            }
+            return i==word.length();
+        }
+        void storeWord( String word, int pos )
+        {
+            Locations locs = (word.length()>0)
+                ? table.locations(table.intern(word)) : null;
+            if ( locs != null && locs.add(docId,pos) )
+                nWords++;
+        }
+        boolean isWhitespace( String token )
+        {
+            return token.length()==1&&Character.isWhitespace(token.charAt(0));
+        }
+        void resolveHyphenated( String first, String second, int pos )
+        {
+            String hyphenated = first+"-"+second;
+            String composite = first+second;
+            if ( hyphenator.hasWord(second) )
+            {
+                if ( table.contains(hyphenated) )
+                    storeWord(hyphenated,pos);
+                else if ( hyphenator.hasWord(composite) )
+                    storeWord(composite,pos);
+                else
+                    storeWord(hyphenated,pos);
+            }
+            else
+                storeWord(composite,pos);
+        }
+        int find()
+        {
+            StringTokenizer st = new StringTokenizer( text," \t\r\n-", true );
+            int state = 0;
+            int pos = 0;
+            int lastPos = 0;
+            String lastWord = "";
+            String pageNo = "";
+            while ( st.hasMoreTokens() )
+            {
+                String token = st.nextToken();
+                switch ( state )
+                {
+                    case 0:
+                        if ( isWhitespace(token) )
+                            continue;
+                        else if ( isPageNumber(token) )
+                        {
+                            if ( isWord(token) )
+                            {
+                                state = 1;
+                                lastWord = token;
+                                lastPos = pos;
+                            }
+                        }
+                        else
+                        {
+                            lastWord = stripPunctuation(token);
+                            lastPos = pos;
+                            if ( isWord(lastWord) )
+                                state = 2;
+                            else
+                                lastWord = "";
+                        }
+                        break;
+                    case 1:
+                        if ( token.equals("\n") || token.equals("\r") )
+                        {
+                            state = 0;
+                            break;
+                        }
+                    case 2:
+                        if ( isWhitespace(token) )
+                        {
+                            storeWord(lastWord,lastPos);
+                            lastWord = "";
+                            state = 0;
+                        }
+                        else if ( token.equals("-") )
+                            state = (hyphenator.hasWord(lastWord))?3:4;
+                        break;
+                    case 3:
+                    case 4:
                         if ( token.equals("\r") )
-                            state = 7;
+                            state = (state==3)?5:7;
                         else if ( token.equals("\n") )
-                            state = 8;
+                            state = (state==3)?6:8;
                         else 
                         {
                             String newWord = stripPunctuation(token);
                             if ( isWord(newWord) )
                             {
-                                // accept leading non-dict word,hyphen,dict-word
                                 lastWord = lastWord+"-"+newWord;
                                 state = 2;
                             }
@@ -360,14 +751,13 @@ public class TextWordFinder
                             }
                         }
                         break;
-                    case 5: // dict-word, hyphen, \r
+                    case 5:
                         if ( token.equals("\n") )
                         {
                             state = 6;
                             break;
                         }
-                        // fall through
-                    case 6: // dict-word, -, \n|\r\n|\r
+                    case 6:
                         if ( isWhitespace(token) )
                         {
                             if ( lastWord.length()>0 )
@@ -398,14 +788,13 @@ public class TextWordFinder
                             }
                         }
                         break;
-                    case 7: //non-dict-word,-,\r
+                    case 7:
                         if ( token.equals("\n") )
                         {
                             state = 8;
                             break;
                         }
-                        // fall-through
-                    case 8:    // non-dict-word,-,\n|\r\n|\r
+                    case 8:
                         if ( isWhitespace(token) )
                         {
                             if ( lastWord.length()>0 )
@@ -413,77 +802,52 @@ public class TextWordFinder
                             lastWord = "";
                             state = 0;
                         }
-                        else
+                        else if ( isPageNumber(token) )
                         {
-                            if ( isPageNumber(token) )
-                            {
-                                if ( isWord(token) )
-                                {
-                                    pageNo = token;
-                                    state = 9;
-                                }
-                                else
-                                    state = 4;  
-                            }
-                            else 
+                            if ( isWord(token) )
                             {
-                                String newWord = stripPunctuation(token);
-                                String composite = lastWord+newWord;
-                                storeWord(composite,lastPos);
-                                state = 0;
-                                lastWord = "";
+                                pageNo = token;
+                                state = 9;
                             }
+                            else
+                                state = 4;  
                         }
-                        break;
-                    case 9: // non-dict-word,-,\n|\r\n|\r,roman-page-no
-                        if ( token.equals("\r") )
-                        {
-                            state = 10;
-                            break;
-                        }
-                        // fall through
-                    case 10:// non-dict-word,-,\n|\r\n|\r,roman-page-no
-                        if ( token.equals("\n") )
-                        {
-                            pageNo = "";
-                            state = 7;
-                        }
-                        else if ( isWhitespace(token) )
+                        else 
                         {
-                            storeWord(lastWord+pageNo,lastPos);
+                            String newWord = stripPunctuation(token);
+                            storeWord(lastWord+newWord,lastPos);
                             state = 0;
-                            lastWord = pageNo = "";
-                        }
-                        else if ( token.equals("-") )
-                        {
-                            lastWord = lastWord+"-"+pageNo;
-                            state = 4;
-                            pageNo = "";
+                            lastWord = "";
                         }
                         break;
-                    case 11: // dict-word,-,\n|\r\n|\r,roman-page-no
+                    case 9:
+                    case 11:
                         if ( token.equals("\r") )
                         {
-                            state = 12;
+                            state = (state==9)?10:12;
                             break;
                         }
-                        // fall through
-                    case 12:// dict-word,-,\n|\r\n|\r,roman-page-no
+                    case 10:
+                    case 12:
+                        boolean dictWord = (state==11||state==12);
                         if ( token.equals("\n") )
                         {
                             pageNo = "";
-                            state = 6;
+                            state = (dictWord)?6:7;
                         }
                         else if ( isWhitespace(token) )
                         {
-                            resolveHyphenated(lastWord,pageNo,lastPos);
+                            if ( dictWord )
+                                resolveHyphenated(lastWord,pageNo,lastPos);
+                            else
+                                storeWord(lastWord+pageNo,lastPos);
                             lastWord = pageNo = "";
                             state = 0;
                         }
                         else if ( token.equals("-") )
                         {
                             lastWord = lastWord+"-"+pageNo;
-                            state = 3;
+                            state = (dictWord)?3:4;
                             pageNo = "";
                         }
                         break;
@@ -492,31 +856,5 @@ public class TextWordFinder
             }
             return nWords;
         }
-        catch ( Exception e )
-        {
-            throw new IndexException( e );
-        }
-    }
-    public static void main(String[] args )
-    {
-        File f = new File(args[0]);
-        try
-        {
-            FileInputStream bis = new FileInputStream(f);
-            byte[] data = new byte[(int)f.length()];
-            bis.read(data);
-            String text = new String(data,"UTF-8");
-            HashSet<String> stopwords = new HashSet<String>();
-            stopwords.add("the");
-            stopwords.add("a");
-            stopwords.add("is");
-            HashMap<String,Locations> wordMap = new HashMap<String,Locations>();
-            TextWordFinder twf = new TextWordFinder( text, wordMap, stopwords, "en", 0);
-            twf.find();
-        }
-        catch ( Exception e )
-        {
-            e.printStackTrace(System.out);
-        }
     }
 }
@@ -22,12 +22,12 @@ package search.index;
 import edu.luc.nmerge.mvd.Pair;
 import search.exception.*;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.BitSet;
-import java.util.Map;
-import java.util.HashSet;
 
 /**
- * Navigate through an MVD looking for words
+ * Navigate through an MVD looking for words. The states reading each 
+ * version are kept in array worklists and recycled through a pool.
  * @author desmond
  */
 public class WordFinder
@@ -35,24 +35,34 @@ public class WordFinder
     /** local copy of MVDs pairs list - read only */
     ArrayList<Pair> pairs;
     int mvdPosition;
-    Map<String,Locations> map;
+    /** the terms seen so far and their locations */
+    TermTable table;
     int docId;
     String lang;
     String projid;
-    HashSet<String> stopwords;
     Hyphenator hyphenator;
-    WordFinder( ArrayList<Pair> pairs, Map<String,Locations> map, 
-        HashSet<String> sw, String lang, String projid, int docId ) throws SearchException
+    /** true if there are more than 64 versions */
+    boolean wide;
+    /** the states reading the current pair */
+    WordSearchState[] active = new WordSearchState[16];
+    int nActive;
+    /** the states waiting for a pair that contains their versions */
+    WordSearchState[] inactive = new WordSearchState[16];
+    int nInactive;
+    /** states not in use */
+    WordSearchState[] free = new WordSearchState[16];
+    int nFree;
+    WordFinder( ArrayList<Pair> pairs, TermTable table, String lang, 
+        String projid, int docId ) throws SearchException
     {
         try
         {
             this.pairs = pairs;
-            this.map = map;
+            this.table = table;
             this.docId = docId;
-            this.stopwords = sw;
             this.lang = lang;
             this.projid = projid;
-            this.hyphenator = new Hyphenator( projid, lang );
+            this.hyphenator = Hyphenator.forProject( projid, lang );
         }
         catch ( Exception e )
         {
@@ -60,122 +70,166 @@ public class WordFinder
         }
     }
     /**
-     * is one bitset a subset of the other?
-     * @param v1 the subset
-     * @param v2 the set it may be inside
-     * @return true if it is else false
+     * Get a state from the pool, or make one if it is empty
+     * @return a state whose contents will be overwritten
      */
-    boolean isSubsetOf( BitSet v1, BitSet v2 )
+    private WordSearchState obtain()
     {
-        for (int i=v1.nextSetBit(0); i>=0; i=v1.nextSetBit(i+1))
-		{
-			if ( !v1.get(i) )
-			{
-				return false;
-			}
-		}
-        return true;
+        if ( nFree > 0 )
+            return free[--nFree];
+        else
+            return new WordSearchState( this, wide );
     }
-    WordSearchState appendToList( WordSearchState list, WordSearchState s )
+    /**
+     * Return a state to the pool
+     * @param s the state, no longer in either worklist
+     */
+    private void release( WordSearchState s )
     {
-        if ( list != null )
-            list.append(s);
-        else
-            list = s;
-        return list;
+        if ( nFree == free.length )
+            free = Arrays.copyOf( free, nFree*2 );
+        free[nFree++] = s;
     }
-    WordSearchState pruneList( WordSearchState list, BitSet versions )
+    /**
+     * Add a state to the end of the active list
+     * @param s the state to add
+     */
+    private void addActive( WordSearchState s )
     {
-        WordSearchState mergeables = null;
-        WordSearchState s = list;
-        WordSearchState prev=null;
-        while ( s != null )
-        {
-            if ( isSubsetOf(s.v,versions) )
-            {
-                if ( s == list )
-                    list = s.following;
-                else
-                    prev.following = s.following;
-                s.following = null;
-                mergeables = appendToList( mergeables, s );
-                prev = s;
-            }
-            s = s.following;
-        }
-        s = mergeables;
-        prev = null;
-        while ( s.following != null )
+        if ( nActive == active.length )
+            active = Arrays.copyOf( active, nActive*2 );
+        active[nActive++] = s;
+    }
+    /**
+     * Add a state to the end of the inactive list
+     * @param s the state to add
+     */
+    private void addInactive( WordSearchState s )
+    {
+        if ( nInactive == inactive.length )
+            inactive = Arrays.copyOf( inactive, nInactive*2 );
+        inactive[nInactive++] = s;
+    }
+    /**
+     * Convert a set of versions numbered from 1 to a mask
+     * @param bs the versions, none greater than 64
+     * @return a mask with bit i-1 set for version i
+     */
+    static long toMask( BitSet bs )
+    {
+        long[] words = bs.toLongArray();
+        long m = (words.length>0)?words[0]>>>1:0L;
+        if ( words.length > 1 )
+            m |= words[1]<<63;
+        return m;
+    }
+    /**
+     * Merge active states that will read the same words from now on, 
+     * so that the text they share is only read once. Removal swaps the 
+     * last state into the hole.
+     */
+    private void mergeActive()
+    {
+        for ( int i=0;i<nActive;i++ )
         {
-            // only delete word states when they are empty or equal
-            if ( s.following.isEmpty() || s.equals(s.following) )
-            {
-                s.merge(s.following);
-                s.following = s.following.following;
-            }
-            else if ( s.isEmpty() )
+            WordSearchState s = active[i];
+            for ( int j=i+1;j<nActive; )
             {
-                s.following.merge(s);
-                if ( s == mergeables )
-                    mergeables = s.following;
+                if ( s.equals(active[j]) )
+                {
+                    s.merge( active[j] );
+                    release( active[j] );
+                    active[j] = active[--nActive];
+                    active[nActive] = null;
+                }
                 else
-                    prev.following = s.following;
+                    j++;
             }
-            prev = s;
         }
-        list = appendToList( list, mergeables );
-        return list;
     }
     /**
      * Navigate an MVD finding all words and stuff them in an index
+     * @param bs the versions to read
      * @return the number of word-locations found
      */
     public int find( BitSet bs ) throws Exception
     {
-	    WordSearchState inactive = null;
-		WordSearchState active = null;
         this.mvdPosition = 0;
         int nWords = 0;
-        inactive = new WordSearchState( bs, this );
+        // versions are numbered from 1 so 64 of them fit in 65 bits
+        boolean needsBitSet = bs.length() > 65;
+        if ( needsBitSet != wide )
+        {
+            // pooled states have the wrong kind of version set
+            Arrays.fill( free, 0, nFree, null );
+            nFree = 0;
+            wide = needsBitSet;
+        }
+        nActive = nInactive = 0;
+        WordSearchState first = obtain();
+        first.index = first.state = 0;
+        first.hasHyphen = false;
+        if ( wide )
+        {
+            first.v.clear();
+            first.v.or( bs );
+        }
+        else
+            first.mask = toMask( bs );
+        addInactive( first );
         for ( int i=0;i<pairs.size();i++ )
 	    {
 		    Pair temp = pairs.get( i );
+            long pairMask = (wide)?0L:toMask( temp.versions );
             // move all states from active to inactive
-		    inactive = appendToList( inactive, active );
-            active = null;
-		    // move states matching the pair into active
-		    WordSearchState s = inactive;
-		    while ( s != null )
+            for ( int j=0;j<nActive;j++ )
+            {
+                addInactive( active[j] );
+                active[j] = null;
+            }
+            nActive = 0;
+		    // split the states matching the pair into active, 
+            // dropping any inactive states left with no versions
+            int kept = 0;
+            for ( int j=0;j<nInactive;j++ )
 		    {
-			    WordSearchState sequential = s.following;
-			    if ( s.v.intersects(temp.versions) )
+			    WordSearchState s = inactive[j];
+			    if ( s.intersects(pairMask,temp.versions) )
 			    {
-                    WordSearchState child = s.split(temp.versions);
-				    active = appendToList( active, child );
-				    if ( s.v.isEmpty() )
-                        inactive = inactive.remove( s );
+                    WordSearchState child = obtain();
+                    child.split( s, pairMask, temp.versions );
+                    addActive( child );
+                    if ( s.hasNoVersions() )
+                    {
+                        release( s );
+                        continue;
+                    }
 			    }
-			    s = sequential;
+                inactive[kept++] = s;
 		    }
-            active = pruneList( active, temp.versions );
+            for ( int j=kept;j<nInactive;j++ )
+                inactive[j] = null;
+            nInactive = kept;
+            mergeActive();
 		    // now process each char of the pair
-		    if ( active != null )
+		    char[] data = temp.getChars();
+		    for ( int j=0;j<data.length;j++ )
 		    {
-			    char[] data = temp.getChars();
-			    for ( int j=0;j<data.length;j++ )
-			    {
-                    // processs the active states
-				    WordSearchState ss = active;
-				    while ( ss != null )
-				    {
-					    if ( ss.update(data[j]) )
-                            nWords++;
-					    ss = ss.following;
-				    }
-                    this.mvdPosition++;
-			    }
+                // processs the active states
+                for ( int k=0;k<nActive;k++ )
+                {
+				    if ( active[k].update(data[j]) )
+                        nWords++;
+                }
+                this.mvdPosition++;
 		    }
 	    }
+        // keep the states for the next call
+        for ( int j=0;j<nActive;j++ )
+            release( active[j] );
+        for ( int j=0;j<nInactive;j++ )
+            release( inactive[j] );
+        nActive = nInactive = 0;
         return nWords;
     }
 }
@@ -20,15 +20,20 @@
  */
 package search.index;
 
-import edu.luc.nmerge.exception.MVDException;
+import java.util.Arrays;
 import java.util.BitSet;
 /**
- * Based on KMPSearchState we navigate an MVD reading words
+ * Based on KMPSearchState we navigate an MVD reading words. States are 
+ * pooled by their WordFinder and reused, so a split copies into an 
+ * existing state rather than allocating a new one.
  * @author desmond
  */
 public class WordSearchState
 {
-    WordSearchState following;
+    /** the versions as a mask, bit i-1 for version i, when there are 64 
+     * or fewer */
+    long mask;
+    /** the versions if there are more than 64, otherwise null */
     BitSet v;
     int index;
     char[] word;
@@ -39,99 +44,85 @@ public class WordSearchState
     static final int MAX_WORD_LEN = 128;
 	
     /**
-	 * Initialisation is easy.
-	 * @param v the current versions of the state
+	 * Initialisation is easy. The versions are set by the caller.
+	 * @param parent the finder whose pool we belong to
+	 * @param wide true if the versions need a BitSet
 	 */
-	public WordSearchState( BitSet v, WordFinder parent )
+	WordSearchState( WordFinder parent, boolean wide )
 	{
-		this.v = v;
         this.word = new char[MAX_WORD_LEN];
         this.parent = parent;
+        if ( wide )
+            this.v = new BitSet();
 	}
     /**
-	 *	Constructor for cloning this object - useful for split. 
-	 *	Leave the versions empty
-	 *	@param ss the SearchState object to clone
-	 */
-	private WordSearchState( WordSearchState ss, BitSet bs )
-	{
-		this.v = new BitSet();
-		this.v.or( bs );	
-		this.index = ss.index;
-        this.word = new char[MAX_WORD_LEN];
+     * Become a copy of another state, all but its versions
+     * @param ss the state to copy
+     */
+    void copyFrom( WordSearchState ss )
+    {
+        this.index = ss.index;
         this.state = ss.state;
         this.mvdPos = ss.mvdPos;
-        this.parent = ss.parent;
         this.hasHyphen = ss.hasHyphen;
-        if ( this.index > 0 )   
-        {
-            for ( int i=0;i<ss.index;i++ )
-                this.word[i] = ss.word[i];
-        }
-	}
+        if ( this.word.length < ss.index )
+            this.word = new char[ss.word.length];
+        System.arraycopy( ss.word, 0, this.word, 0, ss.index );
+    }
     /**
-	 *	Split off a clone of ourselves intersecting with bs as its set of 
-	 * 	versions. Should only be called after this.v.intersects(bs) has  
-	 *  returned true.
-	 *	@param bs the set which must intersect with our versions.
-	 *	@return a clone of everything we stand for.
-	 */
-	WordSearchState split( BitSet bs )
-	{
-		BitSet newBs = new BitSet();
-		for (int i=bs.nextSetBit(0); i>=0; i=bs.nextSetBit(i+1))
-		{
-			if ( v.nextSetBit(i)==i )
-			{
-				// move each bit in v & bs to newBs
-				v.clear( i );
-				newBs.set( i );
-			}
-		}
-		return new WordSearchState( this, newBs );
-	}
-	/**
-	 *	Concatenate a list of SearchState objects to the end of our list.
-	 *	@param list a list of SearchState objects
-	 */
-	void append( WordSearchState list )
-	{
-		WordSearchState temp = this;
-		while ( temp.following != null )
-			temp = temp.following;
-		temp.following = list;
-	}
-	/**
-	 *	Remove a SearchState object from the list of which we are a part.
-	 *	The object must be in the list FROM the point at which we are at 
-	 *	(because we are not doubly-linked).
-	 *	@param item the list item to remove
-	 *	@return the list with the item removed (may be null)
-	 *	@throws MVDException
+     * Do our versions overlap those of a pair?
+     * @param pairMask the pair's versions as a mask
+     * @param pairVersions the pair's versions as a BitSet
+     * @return true if they intersect
+     */
+    boolean intersects( long pairMask, BitSet pairVersions )
+    {
+        if ( v != null )
+            return v.intersects( pairVersions );
+        else
+            return (mask & pairMask) != 0;
+    }
+    /**
+	 *	Take over the versions of ss that are also in a pair's versions. 
+     *  Should only be called after ss.intersects has returned true.
+	 *	@param ss the state to split
+	 *	@param pairMask the pair's versions as a mask
+	 *	@param pairVersions the pair's versions as a BitSet
 	 */
-	WordSearchState remove( WordSearchState item ) throws MVDException
+	void split( WordSearchState ss, long pairMask, BitSet pairVersions )
 	{
-		WordSearchState previous,list,temp;
-		previous = temp = list = this;
-		while ( temp != null && temp != item )
-		{
-			previous = temp;
-			temp = temp.following;
-		}
-		if ( previous == temp )	// it matched immediately
-		{
-			list = temp.following;	// could be null!
-			temp.following = null;
-		}
-		else if ( temp == null )	// it didn't find it!
-			throw new MVDException("List item not found");
-		else					// temp in the middle of the list
-		{
-			previous.following = temp.following;
-			temp.following = null;
-		}
-		return list;
+        copyFrom( ss );
+        if ( v != null )
+        {
+            v.clear();
+            v.or( ss.v );
+            v.and( pairVersions );
+            ss.v.andNot( pairVersions );
+        }
+        else
+        {
+            mask = ss.mask & pairMask;
+            ss.mask &= ~pairMask;
+        }
 	}
+    /**
+     * Have all our versions been split off?
+     * @return true if we have no versions left
+     */
+    boolean hasNoVersions()
+    {
+        return (v != null) ? v.isEmpty() : mask == 0;
+    }
+    /**
+     * Append a character to the word, growing it if it is very long
+     * @param c the character
+     */
+    private void append( char c )
+    {
+        if ( this.index == this.word.length )
+            this.word = Arrays.copyOf( this.word, this.index*2 );
+        this.word[this.index++] = c;
+    }
     /**
      * Store a word in the map
      * @return true if the word had a new location
@@ -139,37 +130,27 @@ public class WordSearchState
     boolean storeWord()
     {
         boolean res = false;
-        String w = new String( this.word, 0, this.index );
-        // force lowercase
-        w = w.toLowerCase();
-        if ( this.hasHyphen )
+        TermTable table = parent.table;
+        int len = this.index;
+        if ( this.hasHyphen && !parent.hyphenator.wantsHyphen(
+            new String(this.word,0,len).toLowerCase()) )
         {
-            // if the word is already in the dictionary in  
-            // hyphented form then it must be right thus
-            if ( !parent.map.containsKey(w) 
-                && !parent.hyphenator.wantsHyphen(w) )
-                w = w.replaceAll("-","");
+            // keep the hyphens only if the word has been indexed thus
+            String hyphenated = new String( this.word, 0, len );
+            int j = 0;
+            for ( int i=0;i<len;i++ )
+                if ( this.word[i] != '-' )
+                    this.word[j++] = this.word[i];
+            res = table.addEither( hyphenated, new String(this.word,0,j),
+                parent.docId, this.mvdPos );
         }
-        if ( !parent.stopwords.contains(w) )
+        else
         {
-            Location loc = new Location( parent.docId, this.mvdPos );
-            Locations locs = parent.map.get(w);
-            if ( locs == null )
+            Locations locs = table.locations( table.intern(this.word,0,len) );
+            if ( locs != null )
             {
-                locs = new Locations();
-                parent.map.put( w, locs );
-            }
-            if ( !locs.contains(loc) )
-            {
-                try
-                {
-                    locs.add( loc );
-                }
-                catch ( Exception e )
-                {
-                    e.printStackTrace(System.out);
-                }
-                res = true;
+                // the same word is read by every version that shares it
+                res = locs.add( parent.docId, this.mvdPos );
             }
         }
         this.index = 0;
@@ -185,16 +166,23 @@ public class WordSearchState
     {
         return this.index==0;
     }
+    /**
+     * Will we read the same words as another state from now on?
+     * @param other the other state
+     * @return true if our states and partial words are the same
+     */
     boolean equals( WordSearchState other )
     {
-        if ( this.index == other.index )
+        if ( this.index == other.index && this.state == other.state
+            && this.hasHyphen == other.hasHyphen )
         {
             for ( int i=0;i<this.index;i++ )
             {
                 if ( this.word[i] != other.word[i] )
                     return false;
             }
-            return this.mvdPos==other.mvdPos;
+            // the position of an empty word is set by its first letter
+            return this.index==0 || this.mvdPos==other.mvdPos;
         }
         else
             return false;
@@ -212,7 +200,7 @@ public class WordSearchState
             case 0: // looking for first char
                 if ( Character.isLetter(token) )
                 {
-                    this.word[this.index++] = token;
+                    append( token );
                     this.state = 1;
                     this.mvdPos = this.parent.mvdPosition;
                 }
@@ -227,50 +215,50 @@ public class WordSearchState
                 else if ( !Character.isLetter(token) )
                     res = storeWord();
                 else 
-                    this.word[this.index++] = token;
+                    append( token );
                 break;
             case 2: // seen hyphen
                 if ( Character.isWhitespace(token) )
                     state = 5;
                 else if ( Character.isLetter(token) )
                 {
-                    this.word[this.index++] = '-';
-                    this.word[this.index++] = token;
+                    append( '-' );
+                    append( token );
                     state = 1;
                 }
                 else
-                    storeWord();
+                    res = storeWord();
                 break;
             case 3: // seen a single straight apostrophe
                 if ( Character.isLetter(token) )
                 {
-                    this.word[this.index++] = '\'';
-                    this.word[this.index++] = token;
+                    append( '\'' );
+                    append( token );
                     state = 1;
                 }
                 else
-                    storeWord();
+                    res = storeWord();
                 break;
             case 4: // seen a single curly apostrophe
                 if ( Character.isLetter(token) )
                 {
-                    this.word[this.index++] = '’';
-                    this.word[this.index++] = token;
+                    append( '’' );
+                    append( token );
                     state = 1;
                 }
                 else
-                    storeWord();
+                    res = storeWord();
                 break;
             case 5: // seen letter, hyphen followed by whitespace
                 if ( Character.isLetter(token) )
                 {
-                    this.word[this.index++] = '-';
-                    this.word[this.index++] = token;
+                    append( '-' );
+                    append( token );
                     this.hasHyphen = true;
                     state = 1;
                 }
                 else if ( !Character.isWhitespace(token) )
-                    storeWord();
+                    res = storeWord();
                 break;
         }
         return res;
@@ -281,6 +269,9 @@ public class WordSearchState
 	 */
 	void merge( WordSearchState s )
 	{
-		v.or( s.v );
+        if ( v != null )
+            v.or( s.v );
+        else
+            mask |= s.mask;
 	}
 }
\ No newline at end of file
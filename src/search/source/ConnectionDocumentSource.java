@@ -0,0 +1,95 @@
+/*
+ * This file is part of Search.
+ *
+ *  Search is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Search is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Search.  If not, see <http://www.gnu.org/licenses/>.
+ *  (c) copyright Desmond Schmidt 2015
+ */
+package search.source;
+import calliope.core.constants.Database;
+import calliope.core.constants.JSONKeys;
+import calliope.core.database.Connection;
+import org.json.simple.JSONObject;
+import org.json.simple.JSONValue;
+import search.exception.IndexException;
+/**
+ * Fetch documents one at a time through a calliope Connection, for
+ * repositories we can't open a cursor on directly
+ * @author desmond
+ */
+public class ConnectionDocumentSource implements DocumentSource
+{
+    Connection conn;
+    String[] docids;
+    int next;
+    /**
+     * List the documents of a project
+     * @param conn the database connection
+     * @param projid the project identifier
+     * @throws IndexException 
+     */
+    public ConnectionDocumentSource( Connection conn, String projid ) 
+        throws IndexException
+    {
+        try
+        {
+            this.conn = conn;
+            this.docids = conn.listDocuments( Database.CORTEX, 
+                projid+"/.*", JSONKeys.DOCID );
+        }
+        catch ( Exception e )
+        {
+            throw new IndexException( e );
+        }
+    }
+    /**
+     * Fetch some given documents
+     * @param conn the database connection
+     * @param docids the documents to fetch
+     */
+    public ConnectionDocumentSource( Connection conn, String[] docids )
+    {
+        this.conn = conn;
+        this.docids = docids;
+    }
+    public int size()
+    {
+        return docids.length;
+    }
+    public SourceDocument next() throws IndexException
+    {
+        try
+        {
+            if ( next < docids.length )
+            {
+                String docid = docids[next++];
+                String bson = conn.getFromDb( Database.CORTEX, docid );
+                if ( bson == null )
+                    return new SourceDocument( docid, null, null );
+                JSONObject jObj = (JSONObject)JSONValue.parse( bson );
+                return new SourceDocument( docid, 
+                    (String)jObj.get(JSONKeys.FORMAT),
+                    (String)jObj.get(JSONKeys.BODY) );
+            }
+            else
+                return null;
+        }
+        catch ( Exception e )
+        {
+            throw new IndexException( e );
+        }
+    }
+    public void close()
+    {
+    }
+}
@@ -0,0 +1,43 @@
+/*
+ * This file is part of Search.
+ *
+ *  Search is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Search is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Search.  If not, see <http://www.gnu.org/licenses/>.
+ *  (c) copyright Desmond Schmidt 2015
+ */
+package search.source;
+import search.exception.IndexException;
+/**
+ * Something that hands the documents of a project to the indexer one at a
+ * time, so that they needn't all be listed and fetched separately first
+ * @author desmond
+ */
+public interface DocumentSource
+{
+    /**
+     * Get the number of documents we expect to return, for progress
+     * @return the number of documents
+     * @throws IndexException 
+     */
+    int size() throws IndexException;
+    /**
+     * Get the next document
+     * @return the document or null if there are no more
+     * @throws IndexException 
+     */
+    SourceDocument next() throws IndexException;
+    /**
+     * Release any resources held by the source
+     */
+    void close();
+}
@@ -0,0 +1,127 @@
+/*
+ * This file is part of Search.
+ *
+ *  Search is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Search is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Search.  If not, see <http://www.gnu.org/licenses/>.
+ *  (c) copyright Desmond Schmidt 2015
+ */
+package search.source;
+import calliope.core.constants.JSONKeys;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import org.json.simple.JSONObject;
+import org.json.simple.JSONValue;
+import search.exception.IndexException;
+/**
+ * Read the documents of a project from a directory of JSON files laid out
+ * like their docids, e.g. root/english/conrad/nostromo/1/1.json. Each file
+ * holds a CORTEX document with its format and body.
+ * @author desmond
+ */
+public class FileDocumentSource implements DocumentSource
+{
+    File root;
+    ArrayList<File> files;
+    int next;
+    /**
+     * Find the files of a project
+     * @param root the directory holding all the projects
+     * @param projid the project identifier
+     * @throws IndexException 
+     */
+    public FileDocumentSource( File root, String projid ) throws IndexException
+    {
+        if ( projid.contains("..") )
+            throw new IndexException("Invalid project id "+projid);
+        this.root = root;
+        this.files = new ArrayList<File>();
+        File dir = new File( root, projid );
+        if ( !dir.isDirectory() )
+            throw new IndexException(dir+" is not a directory");
+        listFiles( dir );
+    }
+    /**
+     * Collect the JSON files in a directory tree in a stable order
+     * @param dir the directory to search
+     */
+    private void listFiles( File dir )
+    {
+        File[] contents = dir.listFiles();
+        if ( contents != null )
+        {
+            Arrays.sort( contents );
+            for ( int i=0;i<contents.length;i++ )
+            {
+                if ( contents[i].isDirectory() )
+                    listFiles( contents[i] );
+                else if ( contents[i].getName().endsWith(".json") )
+                    files.add( contents[i] );
+            }
+        }
+    }
+    /**
+     * Work out a file's docid from its path under the root
+     * @param file the file
+     * @return its docid
+     */
+    private String docidOf( File file )
+    {
+        String path = file.getAbsolutePath().substring( 
+            root.getAbsolutePath().length()+1 );
+        path = path.substring( 0, path.length()-".json".length() );
+        return path.replace( File.separatorChar, '/' );
+    }
+    public int size()
+    {
+        return files.size();
+    }
+    public SourceDocument next() throws IndexException
+    {
+        if ( next < files.size() )
+        {
+            File file = files.get( next++ );
+            try
+            {
+                Reader r = new InputStreamReader( new FileInputStream(file),
+                    "UTF-8" );
+                try
+                {
+                    JSONObject jObj = (JSONObject)JSONValue.parse( r );
+                    String docid = (String)jObj.get( JSONKeys.DOCID );
+                    if ( docid == null )
+                        docid = docidOf( file );
+                    return new SourceDocument( docid, 
+                        (String)jObj.get(JSONKeys.FORMAT),
+                        (String)jObj.get(JSONKeys.BODY) );
+                }
+                finally
+                {
+                    r.close();
+                }
+            }
+            catch ( Exception e )
+            {
+                throw new IndexException( e );
+            }
+        }
+        else
+            return null;
+    }
+    public void close()
+    {
+    }
+}
@@ -0,0 +1,246 @@
+/*
+ * This file is part of Search.
+ *
+ *  Search is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Search is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Search.  If not, see <http://www.gnu.org/licenses/>.
+ *  (c) copyright Desmond Schmidt 2015
+ */
+package search.source;
+import calliope.core.database.Connection;
+import calliope.core.database.Connector;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.regex.Pattern;
+import org.json.simple.JSONObject;
+import org.json.simple.JSONValue;
+import search.exception.IndexException;
+/**
+ * A database held in memory, standing in for the document store when
+ * there is no database, e.g. for benchmarks and the self-checks in 
+ * Index.main. Each collection maps docids
+ * to JSON documents.
+ * @author desmond
+ */
+public class MemoryConnection extends Connection
+{
+    HashMap<String,TreeMap<String,String>> collections;
+    public MemoryConnection()
+    {
+        super( "", "", "localhost", "calliope", 27017, 8080, "/" );
+        this.collections = new HashMap<String,TreeMap<String,String>>();
+    }
+    /**
+     * Make a connection the one Connector hands out. Connector can only
+     * open real databases, so its connection is set directly.
+     * @param conn the connection to use from now on
+     * @return the connection it replaces or null
+     * @throws IndexException
+     */
+    public static Connection install( Connection conn ) throws IndexException
+    {
+        try
+        {
+            Field f = Connector.class.getDeclaredField( "connection" );
+            f.setAccessible( true );
+            Connection old = (Connection)f.get( null );
+            f.set( null, conn );
+            return old;
+        }
+        catch ( Exception e )
+        {
+            throw new IndexException( e );
+        }
+    }
+    /**
+     * Get a collection, creating it if needed
+     * @param collection its name
+     * @return the map of docids to documents
+     */
+    private synchronized TreeMap<String,String> collection(
+        String collection )
+    {
+        TreeMap<String,String> coll = collections.get( collection );
+        if ( coll == null )
+        {
+            coll = new TreeMap<String,String>();
+            collections.put( collection, coll );
+        }
+        return coll;
+    }
+    /**
+     * Get a field of a stored document
+     * @param doc the document's JSON
+     * @param field the field name
+     * @return its value as a string or null
+     */
+    private static String field( String doc, String field )
+    {
+        JSONObject jObj = (JSONObject)JSONValue.parse( doc );
+        Object value = (jObj==null)?null:jObj.get( field );
+        return (value==null)?null:value.toString();
+    }
+    /**
+     * Get the docids of documents whose field matches a pattern
+     * @param collection the collection name
+     * @param field the field to test or null for the docid
+     * @param expr the regular expression to match
+     * @return the docids of the documents that match
+     */
+    private String[] matching( String collection, String field,
+        String expr )
+    {
+        TreeMap<String,String> coll = collection( collection );
+        Pattern p = Pattern.compile( expr );
+        ArrayList<String> found = new ArrayList<String>();
+        synchronized ( coll )
+        {
+            for ( Map.Entry<String,String> e : coll.entrySet() )
+            {
+                String value = (field==null)?e.getKey()
+                    :field(e.getValue(),field);
+                if ( value != null && p.matcher(value).matches() )
+                    found.add( e.getKey() );
+            }
+        }
+        String[] arr = new String[found.size()];
+        return found.toArray( arr );
+    }
+    public String[] listCollection( String collection )
+    {
+        TreeMap<String,String> coll = collection( collection );
+        synchronized ( coll )
+        {
+            String[] arr = new String[coll.size()];
+            return coll.keySet().toArray( arr );
+        }
+    }
+    public String[] listCollectionByKey( String collection, String key )
+    {
+        TreeMap<String,String> coll = collection( collection );
+        ArrayList<String> values = new ArrayList<String>();
+        synchronized ( coll )
+        {
+            for ( String doc : coll.values() )
+            {
+                String value = field( doc, key );
+                if ( value != null )
+                    values.add( value );
+            }
+        }
+        String[] arr = new String[values.size()];
+        return values.toArray( arr );
+    }
+    /**
+     * List the docids matching an expression. Documents are stored by
+     * docid, so only the docid is matched, whatever the key.
+     */
+    public String[] listDocuments( String collection, String expr,
+        String key )
+    {
+        return matching( collection, null, expr );
+    }
+    public String getFromDb( String collection, String docid )
+    {
+        TreeMap<String,String> coll = collection( collection );
+        synchronized ( coll )
+        {
+            return coll.get( docid );
+        }
+    }
+    public String getFromDbByField( String collection, String value,
+        String field )
+    {
+        TreeMap<String,String> coll = collection( collection );
+        synchronized ( coll )
+        {
+            for ( String doc : coll.values() )
+            {
+                if ( value.equals(field(doc,field)) )
+                    return doc;
+            }
+        }
+        return null;
+    }
+    public String putToDb( String collection, String docid, String json )
+    {
+        TreeMap<String,String> coll = collection( collection );
+        synchronized ( coll )
+        {
+            coll.put( docid, json );
+        }
+        return docid;
+    }
+    public String addToDb( String collection, String json )
+    {
+        TreeMap<String,String> coll = collection( collection );
+        synchronized ( coll )
+        {
+            String docid = Integer.toString( coll.size() );
+            while ( coll.containsKey(docid) )
+                docid += "_";
+            coll.put( docid, json );
+            return docid;
+        }
+    }
+    public String removeFromDb( String collection, String docid )
+    {
+        TreeMap<String,String> coll = collection( collection );
+        synchronized ( coll )
+        {
+            coll.remove( docid );
+        }
+        return docid;
+    }
+    public String removeFromDbByField( String collection, String field,
+        String value )
+    {
+        return removeFromDbByExpr( collection, field, Pattern.quote(value) );
+    }
+    public String getMetadata( String docid )
+    {
+        return null;
+    }
+    public String removeFromDbByExpr( String collection, String field,
+        String expr )
+    {
+        String[] docids = matching( collection, field, expr );
+        for ( int i=0;i<docids.length;i++ )
+            removeFromDb( collection, docids[i] );
+        return (docids.length>0)?docids[0]:null;
+    }
+    public void updateByField( String collection, String findField,
+        Object findValue, String setField, Object setValue )
+    {
+        TreeMap<String,String> coll = collection( collection );
+        synchronized ( coll )
+        {
+            Iterator<Map.Entry<String,String>> iter
+                = coll.entrySet().iterator();
+            while ( iter.hasNext() )
+            {
+                Map.Entry<String,String> e = iter.next();
+                JSONObject jObj = (JSONObject)JSONValue.parse( e.getValue() );
+                Object value = jObj.get( findField );
+                if ( value != null && value.equals(findValue) )
+                {
+                    jObj.put( setField, setValue );
+                    e.setValue( jObj.toJSONString() );
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,54 @@
+/*
+ * This file is part of Search.
+ *
+ *  Search is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Search is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Search.  If not, see <http://www.gnu.org/licenses/>.
+ *  (c) copyright Desmond Schmidt 2015
+ */
+package search.source;
+import java.util.ArrayList;
+/**
+ * A source of documents held in memory, e.g. for testing the indexer
+ * without a database
+ * @author desmond
+ */
+public class MemoryDocumentSource implements DocumentSource
+{
+    ArrayList<SourceDocument> docs;
+    int next;
+    public MemoryDocumentSource()
+    {
+        this.docs = new ArrayList<SourceDocument>();
+    }
+    /**
+     * Add a document to the end of the source
+     * @param docid the document identifier
+     * @param format its format, e.g. Formats.TEXT
+     * @param body its content
+     */
+    public void add( String docid, String format, String body )
+    {
+        docs.add( new SourceDocument(docid,format,body) );
+    }
+    public int size()
+    {
+        return docs.size();
+    }
+    public SourceDocument next()
+    {
+        return (next<docs.size())?docs.get(next++):null;
+    }
+    public void close()
+    {
+    }
+}
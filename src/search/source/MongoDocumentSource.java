@@ -0,0 +1,156 @@
+/*
+ * This file is part of Search.
+ *
+ *  Search is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Search is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Search.  If not, see <http://www.gnu.org/licenses/>.
+ *  (c) copyright Desmond Schmidt 2015
+ */
+package search.source;
+import calliope.core.constants.Database;
+import calliope.core.constants.JSONKeys;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+import com.mongodb.MongoClient;
+import java.util.Arrays;
+import java.util.regex.Pattern;
+import search.exception.IndexException;
+/**
+ * Stream the CORTEX documents of a project straight from MongoDB with a 
+ * cursor, fetching them in batches and reading only the fields we need
+ * @author desmond
+ */
+public class MongoDocumentSource implements DocumentSource
+{
+    /** the database the calliope collections are kept in */
+    public static final String DATABASE = "calliope";
+    /** default number of documents fetched per round trip */
+    static final int BATCH_SIZE = 16;
+    MongoClient client;
+    DBCursor cursor;
+    /**
+     * Open a cursor over the documents of a project
+     * @param host the database host
+     * @param port the database port
+     * @param projid the project whose documents we want
+     * @throws IndexException 
+     */
+    public MongoDocumentSource( String host, int port, String projid ) 
+        throws IndexException
+    {
+        this( host, port, projid, BATCH_SIZE );
+    }
+    /**
+     * Open a cursor over the documents of a project
+     * @param host the database host
+     * @param port the database port
+     * @param projid the project whose documents we want
+     * @param batchSize the number of documents to fetch at a time
+     * @throws IndexException 
+     */
+    public MongoDocumentSource( String host, int port, String projid, 
+        int batchSize ) throws IndexException
+    {
+        open( host, port, new BasicDBObject(JSONKeys.DOCID, 
+            Pattern.compile("^"+Pattern.quote(projid+"/"))), batchSize );
+    }
+    /**
+     * Open a cursor over some given documents
+     * @param host the database host
+     * @param port the database port
+     * @param docids the documents we want
+     * @throws IndexException 
+     */
+    public MongoDocumentSource( String host, int port, String[] docids ) 
+        throws IndexException
+    {
+        open( host, port, new BasicDBObject(JSONKeys.DOCID, 
+            new BasicDBObject("$in",Arrays.asList(docids))), BATCH_SIZE );
+    }
+    /**
+     * Connect and start the query
+     * @param host the database host
+     * @param port the database port
+     * @param query the query selecting the documents
+     * @param batchSize the number of documents to fetch at a time
+     * @throws IndexException 
+     */
+    private void open( String host, int port, DBObject query, int batchSize ) 
+        throws IndexException
+    {
+        try
+        {
+            client = new MongoClient( host, port );
+            DBCollection coll = client.getDB(DATABASE).getCollection(
+                Database.CORTEX );
+            BasicDBObject keys = new BasicDBObject( JSONKeys.DOCID, 1 );
+            keys.put( JSONKeys.FORMAT, 1 );
+            keys.put( JSONKeys.BODY, 1 );
+            cursor = coll.find( query, keys ).batchSize( batchSize );
+        }
+        catch ( Exception e )
+        {
+            close();
+            throw new IndexException( e );
+        }
+    }
+    /**
+     * Get a field of a document as a string
+     * @param obj the document
+     * @param key the field name
+     * @return its value or null
+     */
+    private static String getString( DBObject obj, String key )
+    {
+        Object value = obj.get( key );
+        return (value==null)?null:value.toString();
+    }
+    public int size() throws IndexException
+    {
+        try
+        {
+            return cursor.count();
+        }
+        catch ( Exception e )
+        {
+            throw new IndexException( e );
+        }
+    }
+    public SourceDocument next() throws IndexException
+    {
+        try
+        {
+            if ( cursor.hasNext() )
+            {
+                DBObject obj = cursor.next();
+                return new SourceDocument( getString(obj,JSONKeys.DOCID),
+                    getString(obj,JSONKeys.FORMAT), 
+                    getString(obj,JSONKeys.BODY) );
+            }
+            else
+                return null;
+        }
+        catch ( Exception e )
+        {
+            throw new IndexException( e );
+        }
+    }
+    public void close()
+    {
+        if ( cursor != null )
+            cursor.close();
+        if ( client != null )
+            client.close();
+    }
+}
@@ -0,0 +1,43 @@
+/*
+ * This file is part of Search.
+ *
+ *  Search is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Search is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Search.  If not, see <http://www.gnu.org/licenses/>.
+ *  (c) copyright Desmond Schmidt 2015
+ */
+package search.source;
+/**
+ * The parts of a CORTEX document needed for indexing
+ * @author desmond
+ */
+public class SourceDocument
+{
+    /** the document identifier */
+    public String docid;
+    /** its format, e.g. Formats.MVD_TEXT */
+    public String format;
+    /** the document's text or MVD */
+    public String body;
+    /**
+     * Create a document
+     * @param docid the document identifier
+     * @param format its format
+     * @param body its content
+     */
+    public SourceDocument( String docid, String format, String body )
+    {
+        this.docid = docid;
+        this.format = format;
+        this.body = body;
+    }
+}
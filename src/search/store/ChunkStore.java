@@ -0,0 +1,64 @@
+/*
+ * This file is part of Search.
+ *
+ *  Search is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Search is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Search.  If not, see <http://www.gnu.org/licenses/>.
+ *  (c) copyright Desmond Schmidt 2015
+ */
+package search.store;
+import search.exception.IndexException;
+/**
+ * Somewhere to keep the files of an index in the database as numbered 
+ * binary chunks, so that no one document need hold a whole index and an 
+ * index can be read a piece at a time. Each chunk belongs to a file of a 
+ * generation of a project's index. The table of each file's chunks is 
+ * kept in the index's record, not here.
+ * @author desmond
+ */
+public interface ChunkStore
+{
+    /** the collection the chunks are kept in */
+    static final String COLLECTION = "index_chunks";
+    /**
+     * Store a chunk, replacing any with the same key
+     * @param projid the project identifier
+     * @param generation the generation of the index
+     * @param name the name of the file the chunk belongs to
+     * @param n the number of the chunk in the file
+     * @param data its bytes
+     * @throws IndexException 
+     */
+    void put( String projid, long generation, String name, int n, 
+        byte[] data ) throws IndexException;
+    /**
+     * Fetch a chunk
+     * @param projid the project identifier
+     * @param generation the generation of the index
+     * @param name the name of the file the chunk belongs to
+     * @param n the number of the chunk in the file
+     * @return its bytes or null if it isn't there
+     * @throws IndexException 
+     */
+    byte[] get( String projid, long generation, String name, int n ) 
+        throws IndexException;
+    /**
+     * Remove the chunks of a file
+     * @param projid the project identifier
+     * @param generation the generation of the index
+     * @param name the name of the file
+     * @param nChunks the number of chunks it has
+     * @throws IndexException 
+     */
+    void remove( String projid, long generation, String name, int nChunks )
+        throws IndexException;
+}
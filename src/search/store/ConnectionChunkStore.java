@@ -0,0 +1,101 @@
+/*
+ * This file is part of Search.
+ *
+ *  Search is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Search is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Search.  If not, see <http://www.gnu.org/licenses/>.
+ *  (c) copyright Desmond Schmidt 2015
+ */
+package search.store;
+import calliope.core.database.Connection;
+import edu.luc.nmerge.mvd.Base64;
+import org.json.simple.JSONObject;
+import org.json.simple.JSONValue;
+import search.exception.IndexException;
+/**
+ * Keep index chunks through the calliope Connection API, for databases 
+ * other than MongoDB. The API only stores JSON text, so each chunk's 
+ * bytes are Base64-encoded in its own document.
+ * @author desmond
+ */
+public class ConnectionChunkStore implements ChunkStore
+{
+    static final String DATA = "data";
+    Connection conn;
+    /**
+     * Keep chunks through a connection
+     * @param conn the connection to the database
+     */
+    public ConnectionChunkStore( Connection conn )
+    {
+        this.conn = conn;
+    }
+    /**
+     * Make the docid of a chunk
+     * @param projid the project identifier
+     * @param generation the generation of the index
+     * @param name the name of the file
+     * @param n the chunk number
+     * @return a unique docid
+     */
+    static String docid( String projid, long generation, String name, 
+        int n )
+    {
+        return projid+"/"+generation+"/"+name+"/"+n;
+    }
+    public void put( String projid, long generation, String name, int n, 
+        byte[] data ) throws IndexException
+    {
+        try
+        {
+            JSONObject jObj = new JSONObject();
+            jObj.put( DATA, Base64.encodeBytes(data) );
+            conn.putToDb( COLLECTION, docid(projid,generation,name,n), 
+                jObj.toJSONString() );
+        }
+        catch ( Exception e )
+        {
+            throw new IndexException( e );
+        }
+    }
+    public byte[] get( String projid, long generation, String name, int n ) 
+        throws IndexException
+    {
+        try
+        {
+            String json = conn.getFromDb( COLLECTION, 
+                docid(projid,generation,name,n) );
+            if ( json == null )
+                return null;
+            JSONObject jObj = (JSONObject)JSONValue.parse( json );
+            return Base64.decode( (String)jObj.get(DATA) );
+        }
+        catch ( Exception e )
+        {
+            throw new IndexException( e );
+        }
+    }
+    public void remove( String projid, long generation, String name, 
+        int nChunks ) throws IndexException
+    {
+        try
+        {
+            for ( int i=0;i<nChunks;i++ )
+                conn.removeFromDb( COLLECTION, 
+                    docid(projid,generation,name,i) );
+        }
+        catch ( Exception e )
+        {
+            throw new IndexException( e );
+        }
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * This file is part of Search.
+ *
+ *  Search is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Search is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Search.  If not, see <http://www.gnu.org/licenses/>.
+ *  (c) copyright Desmond Schmidt 2015
+ */
+package search.store;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import com.mongodb.MongoClient;
+import search.exception.IndexException;
+import search.source.MongoDocumentSource;
+/**
+ * Keep index chunks in MongoDB as binary fields, which the string-based
+ * Connection API can't do. One client is shared by all lookups.
+ * @author desmond
+ */
+public class MongoChunkStore implements ChunkStore
+{
+    static final String PROJID = "projid";
+    static final String GENERATION = "generation";
+    static final String NAME = "name";
+    static final String DATA = "data";
+    MongoClient client;
+    DBCollection coll;
+    /**
+     * Connect to the database
+     * @param host the database host
+     * @param port the database port
+     * @throws IndexException 
+     */
+    public MongoChunkStore( String host, int port ) throws IndexException
+    {
+        try
+        {
+            client = new MongoClient( host, port );
+            coll = client.getDB(MongoDocumentSource.DATABASE).getCollection(
+                COLLECTION );
+            BasicDBObject keys = new BasicDBObject( PROJID, 1 );
+            keys.put( GENERATION, 1 );
+            coll.ensureIndex( keys );
+        }
+        catch ( Exception e )
+        {
+            if ( client != null )
+                client.close();
+            throw new IndexException( e );
+        }
+    }
+    /**
+     * Make the key of a chunk
+     * @param projid the project identifier
+     * @param generation the generation of the index
+     * @param name the name of the file
+     * @param n the chunk number
+     * @return a unique id
+     */
+    static String key( String projid, long generation, String name, int n )
+    {
+        return projid+"/"+generation+"/"+name+"/"+n;
+    }
+    public void put( String projid, long generation, String name, int n, 
+        byte[] data ) throws IndexException
+    {
+        try
+        {
+            BasicDBObject obj = new BasicDBObject( "_id", 
+                key(projid,generation,name,n) );
+            obj.put( PROJID, projid );
+            obj.put( GENERATION, generation );
+            obj.put( NAME, name );
+            obj.put( DATA, data );
+            coll.save( obj );
+        }
+        catch ( Exception e )
+        {
+            throw new IndexException( e );
+        }
+    }
+    public byte[] get( String projid, long generation, String name, int n ) 
+        throws IndexException
+    {
+        try
+        {
+            DBObject obj = coll.findOne( new BasicDBObject("_id",
+                key(projid,generation,name,n)) );
+            return (obj==null)?null:(byte[])obj.get(DATA);
+        }
+        catch ( Exception e )
+        {
+            throw new IndexException( e );
+        }
+    }
+    public void remove( String projid, long generation, String name, 
+        int nChunks ) throws IndexException
+    {
+        try
+        {
+            BasicDBObject query = new BasicDBObject( PROJID, projid );
+            query.put( GENERATION, generation );
+            query.put( NAME, name );
+            coll.remove( query );
+        }
+        catch ( Exception e )
+        {
+            throw new IndexException( e );
+        }
+    }
+}